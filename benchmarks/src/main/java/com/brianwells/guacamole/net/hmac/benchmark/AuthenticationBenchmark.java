@@ -0,0 +1,98 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import com.brianwells.guacamole.net.hmac.DefaultTimeProvider;
+import com.brianwells.guacamole.net.hmac.HmacAuthenticationProvider;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.net.auth.AuthenticatedUser;
+import org.glyptodon.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of a signed login through the provider, against catalogs
+ * of increasing size. Each thread cycles through its own set of pre-signed
+ * requests for different connections.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticationBenchmark {
+
+    /**
+     * Number of distinct pre-signed requests each thread cycles through.
+     */
+    private static final int REQUESTS_PER_THREAD = 64;
+
+    @State(Scope.Benchmark)
+    public static class ProviderState {
+
+        @Param({ "10", "100", "1000", "10000", "100000" })
+        public int connections;
+
+        HmacAuthenticationProvider provider;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            File home = BenchmarkFixtures.createGuacamoleHome(connections);
+            provider = new HmacAuthenticationProvider(new DefaultTimeProvider(),
+                    BenchmarkFixtures.environment(home));
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class RequestState {
+
+        Credentials[] credentials;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ProviderState providerState) throws Exception {
+            credentials = new Credentials[REQUESTS_PER_THREAD];
+            for (int i = 0; i < credentials.length; i++) {
+                int index = (int) ((i * 2654435761L) % providerState.connections);
+                credentials[i] = new Credentials();
+                credentials[i].setRequest(BenchmarkFixtures.signedRequest(index));
+            }
+
+            // Measuring rejected logins by accident would be meaningless
+            if (providerState.provider.authenticateUser(credentials[0]) == null)
+                throw new IllegalStateException("Benchmark request was not authorized.");
+        }
+
+        Credentials nextCredentials() {
+            Credentials current = credentials[next];
+            next = (next + 1) % credentials.length;
+            return current;
+        }
+
+    }
+
+    @Benchmark
+    public AuthenticatedUser authenticateUser(ProviderState state, RequestState requests) throws Exception {
+        return state.provider.authenticateUser(requests.nextCredentials());
+    }
+
+    @Benchmark
+    public Map<String, GuacamoleConfiguration> getAuthorizedConfigurations(ProviderState state,
+            RequestState requests) throws Exception {
+        return state.provider.getAuthorizedConfigurations(requests.nextCredentials());
+    }
+
+}
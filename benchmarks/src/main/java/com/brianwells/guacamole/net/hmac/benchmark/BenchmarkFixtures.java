@@ -0,0 +1,173 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.environment.Environment;
+import org.glyptodon.guacamole.properties.GuacamoleProperties;
+import org.glyptodon.guacamole.properties.GuacamoleProperty;
+import org.glyptodon.guacamole.protocols.ProtocolInfo;
+
+/**
+ * Shared setup for the benchmarks: generated configuration files, a
+ * GUACAMOLE_HOME pointing at them, and correctly signed requests.
+ */
+public final class BenchmarkFixtures {
+
+    /**
+     * Must match hmac-server-id in the bundled guacamole.properties.
+     */
+    public static final String SERVER_ID = "10000001";
+
+    /**
+     * Must match secret-key in the bundled guacamole.properties.
+     */
+    public static final String SECRET_KEY = "secret";
+
+    /**
+     * Fixed timestamp used for all signed requests. The bundled
+     * guacamole.properties disables the age limit.
+     */
+    public static final String TIMESTAMP = "1373563683000";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Returns the name of the connection with the given index.
+     */
+    public static String connectionName(int index) {
+        return String.format("host-%06d", index);
+    }
+
+    /**
+     * Returns the hostname of the connection with the given index.
+     */
+    public static String hostname(int index) {
+        return "10." + ((index >> 16) & 0xFF) + "." + ((index >> 8) & 0xFF) + "." + (index & 0xFF);
+    }
+
+    /**
+     * Creates a temporary GUACAMOLE_HOME containing an hmac-config.xml with
+     * the given number of RDP connections, shaped like the example in
+     * src/test/resources.
+     */
+    public static File createGuacamoleHome(int connections) throws IOException {
+
+        File home = File.createTempFile("hmac-benchmark", "");
+        if (!home.delete() || !home.mkdir())
+            throw new IOException("Unable to create " + home);
+        home.deleteOnExit();
+
+        File configFile = new File(home, "hmac-config.xml");
+        configFile.deleteOnExit();
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(configFile), "UTF-8");
+        try {
+            out.write("<configs>\n");
+            for (int i = 0; i < connections; i++) {
+                out.write("    <config name=\"" + connectionName(i) + "\" protocol=\"rdp\">\n");
+                writeParam(out, "hostname", hostname(i));
+                writeParam(out, "port", "3389");
+                writeParam(out, "username", "username");
+                writeParam(out, "password", "password");
+                writeParam(out, "ignore-cert", "true");
+                writeParam(out, "security", "any");
+                writeParam(out, "disable-audio", "true");
+                writeParam(out, "server-layout", "en-us-qwerty");
+                writeParam(out, "enable-font-smoothing", "true");
+                writeParam(out, "enable-full-window-drag", "true");
+                writeParam(out, "enable-menu-animations", "true");
+                out.write("    </config>\n");
+            }
+            out.write("</configs>\n");
+        }
+        finally {
+            out.close();
+        }
+
+        return home;
+
+    }
+
+    private static void writeParam(Writer out, String name, String value) throws IOException {
+        out.write("        <param name=\"" + name + "\" value=\"" + value + "\" />\n");
+    }
+
+    /**
+     * Returns the message the provider expects to be signed for the
+     * connection with the given index.
+     */
+    public static String message(int index) {
+        return TIMESTAMP + "rdp" + SERVER_ID + "hostname" + hostname(index) + "port3389";
+    }
+
+    /**
+     * Signs the given message with the shared secret key.
+     */
+    public static String sign(String message) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(SECRET_KEY.getBytes("UTF-8"), "HmacSHA1"));
+        return DatatypeConverter.printBase64Binary(mac.doFinal(message.getBytes("UTF-8")));
+    }
+
+    /**
+     * Returns a request carrying a valid signature for the connection with
+     * the given index.
+     */
+    public static StubRequest signedRequest(int index) throws Exception {
+        StubRequest request = new StubRequest("127.0.0.1");
+        request.setParameter("connection", connectionName(index));
+        request.setParameter("timestamp", TIMESTAMP);
+        request.setParameter("signature", sign(message(index)));
+        return request;
+    }
+
+    /**
+     * Returns an Environment whose GUACAMOLE_HOME is the given directory and
+     * whose properties come from the bundled guacamole.properties.
+     */
+    public static Environment environment(final File home) {
+        return new Environment() {
+
+            @Override
+            public File getGuacamoleHome() {
+                return home;
+            }
+
+            @Override
+            public Map<String, ProtocolInfo> getProtocols() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ProtocolInfo getProtocol(String name) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public <Type> Type getProperty(GuacamoleProperty<Type> property) throws GuacamoleException {
+                return GuacamoleProperties.getProperty(property);
+            }
+
+            @Override
+            public <Type> Type getProperty(GuacamoleProperty<Type> property, Type defaultValue) throws GuacamoleException {
+                return GuacamoleProperties.getProperty(property, defaultValue);
+            }
+
+            @Override
+            public <Type> Type getRequiredProperty(GuacamoleProperty<Type> property) throws GuacamoleException {
+                return GuacamoleProperties.getRequiredProperty(property);
+            }
+
+        };
+    }
+
+}
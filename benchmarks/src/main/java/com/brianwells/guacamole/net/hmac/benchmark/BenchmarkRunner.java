@@ -0,0 +1,54 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import java.io.File;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count with the GC profiler enabled, so
+ * each result reports gc.alloc.rate.norm (bytes allocated per operation).
+ * Results for each thread count are written as JSON to
+ * target/jmh-result-&lt;threads&gt;.json for comparison across releases.
+ *
+ * Usage:
+ *
+ *     java -jar target/benchmarks.jar [threads,...] [JMH options]
+ *
+ * The first argument, if it is a comma-separated list of numbers, selects
+ * the thread counts (default 1,2,4,8). Any remaining arguments are passed to
+ * JMH, e.g. a benchmark regex or "-p connections=10,100000".
+ */
+public class BenchmarkRunner {
+
+    private static final String DEFAULT_THREADS = "1,2,4,8";
+
+    public static void main(String[] args) throws Exception {
+
+        String threadList = DEFAULT_THREADS;
+        String[] jmhArgs = args;
+        if (args.length > 0 && args[0].matches("[0-9]+(,[0-9]+)*")) {
+            threadList = args[0];
+            jmhArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, jmhArgs, 0, jmhArgs.length);
+        }
+
+        CommandLineOptions commandLine = new CommandLineOptions(jmhArgs);
+        new File("target").mkdirs();
+
+        for (String threads : threadList.split(",")) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(Integer.parseInt(threads))
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh-result-" + threads + ".json");
+            new Runner(options.build()).run();
+        }
+
+    }
+
+}
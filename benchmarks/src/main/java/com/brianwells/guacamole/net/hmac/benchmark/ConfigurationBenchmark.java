@@ -0,0 +1,90 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import com.brianwells.guacamole.net.hmac.DefaultTimeProvider;
+import com.brianwells.guacamole.net.hmac.HmacAuthenticationProvider;
+import com.brianwells.guacamole.net.hmac.HmacConfigurationHandler;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * Cost of loading hmac-config.xml: a forced parse through the provider, the
+ * raw SAX handler, and the cached lookup used on the login path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigurationBenchmark {
+
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    public int connections;
+
+    private HmacAuthenticationProvider provider;
+
+    private byte[] content;
+
+    private String lookupName;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File home = BenchmarkFixtures.createGuacamoleHome(connections);
+        lookupName = BenchmarkFixtures.connectionName(connections / 2);
+        provider = new HmacAuthenticationProvider(new DefaultTimeProvider(),
+                BenchmarkFixtures.environment(home));
+
+        File configFile = new File(home, HmacAuthenticationProvider.DEFAULT_HMAC_CONFIG);
+        content = new byte[(int) configFile.length()];
+        InputStream in = new FileInputStream(configFile);
+        try {
+            int offset = 0;
+            while (offset < content.length)
+                offset += in.read(content, offset, content.length - offset);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public Map<String, GuacamoleConfiguration> parseConfigFile() throws Exception {
+        return provider.parseConfigFile();
+    }
+
+    @Benchmark
+    public Map<String, GuacamoleConfiguration> configurationHandler() throws Exception {
+        HmacConfigurationHandler handler = new HmacConfigurationHandler();
+        XMLReader parser = XMLReaderFactory.createXMLReader();
+        parser.setContentHandler(handler);
+        parser.parse(new InputSource(new ByteArrayInputStream(content)));
+        return handler.getConfigs();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public GuacamoleConfiguration cachedLookup() throws Exception {
+        return provider.getConfigurationSource().getConfiguration(lookupName);
+    }
+
+}
@@ -0,0 +1,432 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import com.brianwells.guacamole.net.hmac.DefaultTimeProvider;
+import com.brianwells.guacamole.net.hmac.HmacAuthenticationProvider;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.glyptodon.guacamole.net.auth.AuthenticatedUser;
+import org.glyptodon.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.net.auth.UserContext;
+
+/**
+ * Measures signed logins over real HTTP on localhost. The provider is loaded
+ * behind an embedded HTTP server exposing a token endpoint shaped like
+ * Guacamole's POST /api/tokens: the form parameters become the servlet
+ * request seen by the provider, which authenticates the user and creates a
+ * UserContext, and a random token is returned as JSON. Client threads post
+ * pre-signed logins over keep-alive connections, and every request's
+ * latency is recorded, so percentiles are exact.
+ *
+ * Usage:
+ *
+ *     java -cp target/benchmarks.jar \
+ *         com.brianwells.guacamole.net.hmac.benchmark.LoginLatencyHarness [name=value...]
+ *
+ * Options, with defaults:
+ *
+ *     connections=1000      size of the generated hmac-config.xml
+ *     threads=4             concurrent clients
+ *     server-threads        server worker threads (default: threads)
+ *     warmup=5              seconds of unrecorded load first
+ *     duration=10           seconds of recorded load
+ *     max-p50-ms, max-p99-ms, max-p999-ms, min-rps
+ *                           thresholds; unset thresholds are not checked
+ *
+ * Results are printed and written as JSON to target/login-latency.json. The
+ * exit status is 1 if any request failed or any threshold was exceeded, so a
+ * CI job can run it as a regression gate. Nothing is fetched from the
+ * network.
+ */
+public class LoginLatencyHarness {
+
+    /**
+     * Number of distinct pre-signed logins each client cycles through.
+     */
+    private static final int REQUESTS_PER_THREAD = 64;
+
+    private static final String TOKEN_PATH = "/api/tokens";
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0)
+                throw new IllegalArgumentException("Expected name=value, not \"" + arg + "\".");
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        int connections = intOption(options, "connections", 1000);
+        int threads = intOption(options, "threads", 4);
+        int serverThreads = intOption(options, "server-threads", threads);
+        int warmupSeconds = intOption(options, "warmup", 5);
+        int durationSeconds = intOption(options, "duration", 10);
+
+        // Keep one pooled connection per client, and don't let Nagle's
+        // algorithm hold back responses written as headers then body
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(threads, 5)));
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        File home = BenchmarkFixtures.createGuacamoleHome(connections);
+        HmacAuthenticationProvider provider = new HmacAuthenticationProvider(new DefaultTimeProvider(),
+                BenchmarkFixtures.environment(home));
+
+        ExecutorService workers = Executors.newFixedThreadPool(serverThreads);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+        server.createContext(TOKEN_PATH, new TokenHandler(provider));
+        server.setExecutor(workers);
+        server.start();
+
+        try {
+            URL url = new URL("http", "127.0.0.1", server.getAddress().getPort(), TOKEN_PATH);
+            Client[] clients = new Client[threads];
+            for (int i = 0; i < threads; i++)
+                clients[i] = new Client(url, i, connections);
+
+            // Measuring rejected logins by accident would be meaningless
+            if (clients[0].login() != HttpURLConnection.HTTP_OK)
+                throw new IllegalStateException("Harness login was not authorized.");
+
+            run(clients, warmupSeconds, false);
+            long elapsed = run(clients, durationSeconds, true);
+
+            Result result = Result.of(clients, elapsed);
+            System.out.printf(Locale.ROOT, "%d connections, %d client threads, %d server threads, %d s%n",
+                    connections, threads, serverThreads, durationSeconds);
+            System.out.println(result);
+            writeJson(result, connections, threads, serverThreads, new File("target/login-latency.json"));
+
+            boolean passed = result.failures == 0;
+            if (!passed)
+                System.out.println("FAILED: " + result.failures + " logins were not authorized.");
+            passed &= checkMax(options, "max-p50-ms", result.p50);
+            passed &= checkMax(options, "max-p99-ms", result.p99);
+            passed &= checkMax(options, "max-p999-ms", result.p999);
+            if (options.containsKey("min-rps") && result.rps < Double.parseDouble(options.get("min-rps"))) {
+                System.out.printf(Locale.ROOT, "FAILED: %.1f req/s is below min-rps %s%n",
+                        result.rps, options.get("min-rps"));
+                passed = false;
+            }
+
+            if (!passed)
+                System.exit(1);
+        }
+        finally {
+            server.stop(0);
+            workers.shutdownNow();
+        }
+
+    }
+
+    /**
+     * Runs all clients for the given number of seconds. A client which died
+     * on an I/O error fails the whole run rather than quietly leaving its
+     * share of the requests unmeasured.
+     *
+     * @return The elapsed time in nanoseconds.
+     */
+    private static long run(Client[] clients, int seconds, boolean record) throws InterruptedException {
+
+        Thread[] threads = new Thread[clients.length];
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        for (int i = 0; i < clients.length; i++) {
+            clients[i].start(end, record);
+            threads[i] = new Thread(clients[i], "login-client-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i].error != null)
+                throw new IllegalStateException("Login client " + i + " failed.", clients[i].error);
+        }
+
+        return elapsed;
+
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static boolean checkMax(Map<String, String> options, String name, double millis) {
+        String limit = options.get(name);
+        if (limit == null || millis <= Double.parseDouble(limit))
+            return true;
+        System.out.printf(Locale.ROOT, "FAILED: %.3f ms exceeds %s %s%n", millis, name, limit);
+        return false;
+    }
+
+    private static void writeJson(Result result, int connections, int threads, int serverThreads, File file)
+            throws IOException {
+        file.getParentFile().mkdirs();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(String.format(Locale.ROOT, "{\"connections\": %d, \"threads\": %d, \"serverThreads\": %d, "
+                    + "\"requests\": %d, \"failures\": %d, \"rps\": %.1f, "
+                    + "\"p50Ms\": %.3f, \"p99Ms\": %.3f, \"p999Ms\": %.3f, \"maxMs\": %.3f}%n",
+                    connections, threads, serverThreads, result.requests, result.failures, result.rps,
+                    result.p50, result.p99, result.p999, result.max));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The token endpoint: authenticates the form parameters as a signed URL
+     * and creates the UserContext, as Guacamole does for each login.
+     */
+    private static class TokenHandler implements HttpHandler {
+
+        private final HmacAuthenticationProvider provider;
+
+        private final SecureRandom random = new SecureRandom();
+
+        TokenHandler(HmacAuthenticationProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                StubRequest request = new StubRequest(exchange.getRemoteAddress().getAddress().getHostAddress());
+                parseForm(exchange.getRequestURI().getRawQuery(), request);
+                parseForm(new String(readFully(exchange.getRequestBody()), "UTF-8"), request);
+
+                Credentials credentials = new Credentials();
+                credentials.setRequest(request);
+
+                AuthenticatedUser user = provider.authenticateUser(credentials);
+                UserContext context = (user == null) ? null : provider.getUserContext(user);
+                if (context == null) {
+                    respond(exchange, HttpURLConnection.HTTP_FORBIDDEN,
+                            "{\"message\":\"Permission Denied.\",\"type\":\"INVALID_CREDENTIALS\"}");
+                    return;
+                }
+
+                byte[] token = new byte[32];
+                random.nextBytes(token);
+                respond(exchange, HttpURLConnection.HTTP_OK, "{\"authToken\":\"" + hex(token)
+                        + "\",\"username\":\"" + user.getIdentifier()
+                        + "\",\"dataSource\":\"" + provider.getIdentifier() + "\"}");
+            }
+            catch (Exception e) {
+                respond(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR,
+                        "{\"message\":\"" + e.getClass().getSimpleName() + "\"}");
+            }
+        }
+
+        private static void parseForm(String form, StubRequest request) throws IOException {
+            if (form == null || form.isEmpty())
+                return;
+            for (String pair : form.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0)
+                    request.setParameter(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+
+        private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+            byte[] body = json.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+
+        private static String hex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        }
+
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = input.read(buffer)) != -1)
+            out.write(buffer, 0, length);
+        input.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * One client thread, cycling through its own pre-signed logins and
+     * recording the latency of each.
+     */
+    private static class Client implements Runnable {
+
+        private final URL url;
+
+        private final byte[][] bodies = new byte[REQUESTS_PER_THREAD][];
+
+        private int next;
+
+        private long end;
+
+        private boolean record;
+
+        long[] latencies = new long[1024];
+
+        int count;
+
+        int failures;
+
+        /**
+         * The error which stopped this client, or null if it ran to the end.
+         */
+        IOException error;
+
+        Client(URL url, int thread, int connections) throws Exception {
+            this.url = url;
+            for (int i = 0; i < bodies.length; i++) {
+                int index = (int) (((thread * REQUESTS_PER_THREAD + i) * 2654435761L) % connections);
+                bodies[i] = ("connection=" + URLEncoder.encode(BenchmarkFixtures.connectionName(index), "UTF-8")
+                        + "&timestamp=" + BenchmarkFixtures.TIMESTAMP
+                        + "&signature=" + URLEncoder.encode(BenchmarkFixtures.sign(BenchmarkFixtures.message(index)),
+                                "UTF-8")).getBytes("UTF-8");
+            }
+        }
+
+        void start(long end, boolean record) {
+            this.end = end;
+            this.record = record;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    int status = login();
+                    long latency = System.nanoTime() - start;
+                    if (!record)
+                        continue;
+                    if (status != HttpURLConnection.HTTP_OK)
+                        failures++;
+                    if (count == latencies.length)
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    latencies[count++] = latency;
+                }
+            }
+            catch (IOException e) {
+                failures++;
+                error = e;
+            }
+        }
+
+        /**
+         * Posts the next login, reading the whole response so that the
+         * connection is kept alive for the next one.
+         *
+         * @return The HTTP status code.
+         */
+        int login() throws IOException {
+            byte[] body = bodies[next];
+            next = (next + 1) % bodies.length;
+
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+
+            int status = connection.getResponseCode();
+            InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null)
+                readFully(in);
+            return status;
+        }
+
+    }
+
+    /**
+     * Latency percentiles, in milliseconds, and throughput of a run.
+     */
+    private static class Result {
+
+        long requests;
+        long failures;
+        double rps;
+        double p50;
+        double p99;
+        double p999;
+        double max;
+
+        static Result of(Client[] clients, long elapsedNanos) {
+
+            int total = 0;
+            for (Client client : clients)
+                total += client.count;
+
+            long[] latencies = new long[total];
+            Result result = new Result();
+            int offset = 0;
+            for (Client client : clients) {
+                System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+                offset += client.count;
+                result.failures += client.failures;
+            }
+            Arrays.sort(latencies);
+
+            result.requests = total;
+            result.rps = total * 1e9 / elapsedNanos;
+            result.p50 = percentile(latencies, 0.50);
+            result.p99 = percentile(latencies, 0.99);
+            result.p999 = percentile(latencies, 0.999);
+            result.max = (total == 0) ? 0 : latencies[total - 1] / 1e6;
+            return result;
+
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0)
+                return 0;
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(index, 0)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "requests: %d (%d failed), throughput: %.1f req/s%n"
+                    + "p50: %.3f ms, p99: %.3f ms, p999: %.3f ms, max: %.3f ms",
+                    requests, failures, rps, p50, p99, p999, max);
+        }
+
+    }
+
+}
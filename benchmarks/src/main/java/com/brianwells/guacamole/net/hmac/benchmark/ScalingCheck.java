@@ -0,0 +1,151 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import com.brianwells.guacamole.net.hmac.DefaultTimeProvider;
+import com.brianwells.guacamole.net.hmac.HmacAuthenticationProvider;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.glyptodon.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Checks that authentication throughput grows with the number of threads,
+ * i.e. that nothing on the getAuthorizedConfigurations path serializes
+ * concurrent logins. Rounds of 1, 2, 4 and 8 threads each authenticate
+ * against the same provider for a fixed time, after one unmeasured round
+ * to warm up the JIT.
+ *
+ * Usage:
+ *
+ *     java -cp target/benchmarks.jar \
+ *         com.brianwells.guacamole.net.hmac.benchmark.ScalingCheck [name=value...]
+ *
+ * Options, with defaults:
+ *
+ *     connections=1000      size of the generated hmac-config.xml
+ *     duration-ms=300       milliseconds per round
+ *     min-speedup=1.5       required throughput at 4 threads relative to 1
+ *
+ * The exit status is 1 if any authentication failed, or if the speedup is
+ * below min-speedup on a machine with at least 4 processors. With fewer
+ * processors the threads cannot run in parallel, so the speedup is only
+ * reported.
+ */
+public class ScalingCheck {
+
+    /**
+     * Number of distinct pre-signed requests each thread cycles through.
+     */
+    private static final int REQUESTS_PER_THREAD = 64;
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0)
+                throw new IllegalArgumentException("Expected name=value, not \"" + arg + "\".");
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        int connections = Integer.parseInt(getOption(options, "connections", "1000"));
+        long durationMillis = Long.parseLong(getOption(options, "duration-ms", "300"));
+        double minSpeedup = Double.parseDouble(getOption(options, "min-speedup", "1.5"));
+
+        File home = BenchmarkFixtures.createGuacamoleHome(connections);
+        HmacAuthenticationProvider provider = new HmacAuthenticationProvider(new DefaultTimeProvider(),
+                BenchmarkFixtures.environment(home));
+
+        // The first round only warms up the JIT
+        run(provider, connections, THREAD_COUNTS[THREAD_COUNTS.length - 1], durationMillis);
+
+        double[] throughput = new double[THREAD_COUNTS.length];
+        for (int i = 0; i < THREAD_COUNTS.length; i++) {
+            throughput[i] = run(provider, connections, THREAD_COUNTS[i], durationMillis);
+            System.out.printf(Locale.ROOT, "%d threads: %.0f authentications/s%n",
+                    THREAD_COUNTS[i], throughput[i]);
+        }
+
+        double speedup = throughput[2] / throughput[0];
+        System.out.printf(Locale.ROOT, "speedup at 4 threads: %.2f%n", speedup);
+        if (Runtime.getRuntime().availableProcessors() < 4) {
+            System.out.println("Fewer than 4 processors; speedup not checked.");
+            return;
+        }
+        if (speedup < minSpeedup) {
+            System.out.printf(Locale.ROOT, "FAILED: speedup %.2f is below min-speedup %s%n",
+                    speedup, minSpeedup);
+            System.exit(1);
+        }
+
+    }
+
+    /**
+     * Authenticates from the given number of threads for the given time.
+     *
+     * @return Successful authentications per second, across all threads.
+     */
+    private static double run(final HmacAuthenticationProvider provider, int connections, int threadCount,
+            long durationMillis) throws Exception {
+
+        final AtomicLong completed = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + durationMillis * 1000000L;
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final Credentials[] credentials = new Credentials[REQUESTS_PER_THREAD];
+            for (int j = 0; j < credentials.length; j++) {
+                int index = (int) (((i * REQUESTS_PER_THREAD + j) * 2654435761L) % connections);
+                credentials[j] = new Credentials();
+                credentials[j].setRequest(BenchmarkFixtures.signedRequest(index));
+            }
+            threads[i] = new Thread("scaling-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int next = 0;
+                        while (System.nanoTime() < deadline) {
+                            Map<String, GuacamoleConfiguration> configs =
+                                    provider.getAuthorizedConfigurations(credentials[next]);
+                            if (configs == null || configs.isEmpty())
+                                throw new IllegalStateException("Authentication failed under load.");
+                            next = (next + 1) % credentials.length;
+                            completed.incrementAndGet();
+                        }
+                    }
+                    catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - started;
+
+        if (failure.get() != null)
+            throw new IllegalStateException("Authentication failed.", failure.get());
+
+        return completed.get() * 1e9 / elapsed;
+
+    }
+
+    private static String getOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+}
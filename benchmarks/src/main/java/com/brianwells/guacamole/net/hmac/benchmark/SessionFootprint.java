@@ -0,0 +1,126 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import com.brianwells.guacamole.net.hmac.DefaultTimeProvider;
+import com.brianwells.guacamole.net.hmac.HmacAuthenticatedUser;
+import com.brianwells.guacamole.net.hmac.HmacAuthenticationProvider;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.glyptodon.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Estimates the heap retained per authenticated session. Sessions which
+ * keep their request and a private copy of their configuration are
+ * compared with HmacAuthenticatedUser, which drops the request and shares
+ * the provider's interned configurations. The estimate comes from the used
+ * heap after repeated System.gc(), so it depends on the JVM and collector
+ * and is only indicative.
+ *
+ * Usage:
+ *
+ *     java -cp target/benchmarks.jar \
+ *         com.brianwells.guacamole.net.hmac.benchmark.SessionFootprint [name=value...]
+ *
+ * Options, with defaults:
+ *
+ *     connections=100       size of the generated hmac-config.xml
+ *     sessions=20000        sessions held at once
+ *     max-bytes-per-session threshold for HmacAuthenticatedUser; unset
+ *                           thresholds are not checked
+ *
+ * The exit status is 1 if the threshold is exceeded.
+ */
+public class SessionFootprint {
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0)
+                throw new IllegalArgumentException("Expected name=value, not \"" + arg + "\".");
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        int connections = Integer.parseInt(getOption(options, "connections", "100"));
+        int sessions = Integer.parseInt(getOption(options, "sessions", "20000"));
+
+        File home = BenchmarkFixtures.createGuacamoleHome(connections);
+        HmacAuthenticationProvider provider = new HmacAuthenticationProvider(new DefaultTimeProvider(),
+                BenchmarkFixtures.environment(home));
+
+        // The provider's own caches are filled before anything is measured
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Map<String, GuacamoleConfiguration>[] authorized = new Map[connections];
+        for (int i = 0; i < connections; i++) {
+            Credentials credentials = new Credentials();
+            credentials.setRequest(BenchmarkFixtures.signedRequest(i));
+            authorized[i] = provider.getAuthorizedConfigurations(credentials);
+            if (authorized[i] == null)
+                throw new IllegalStateException("Benchmark request was not authorized.");
+        }
+
+        // Every session retains its credentials, request and own configuration
+        long baseline = usedHeap();
+        Object[] before = new Object[sessions];
+        for (int i = 0; i < sessions; i++) {
+            Credentials credentials = new Credentials();
+            credentials.setRequest(BenchmarkFixtures.signedRequest(i % connections));
+            Map<String, GuacamoleConfiguration> configs = new HashMap<String, GuacamoleConfiguration>();
+            for (Map.Entry<String, GuacamoleConfiguration> entry : authorized[i % connections].entrySet())
+                configs.put(entry.getKey(), new GuacamoleConfiguration(entry.getValue()));
+            before[i] = new Object[] { credentials, configs, UUID.randomUUID().toString() };
+        }
+        long bytesBefore = (usedHeap() - baseline) / sessions;
+        before = null;
+
+        // Sessions share interned configurations and drop the request
+        baseline = usedHeap();
+        HmacAuthenticatedUser[] after = new HmacAuthenticatedUser[sessions];
+        for (int i = 0; i < sessions; i++) {
+            Credentials credentials = new Credentials();
+            credentials.setRequest(BenchmarkFixtures.signedRequest(i % connections));
+            after[i] = new HmacAuthenticatedUser(provider, credentials, authorized[i % connections]);
+        }
+        long bytesAfter = (usedHeap() - baseline) / sessions;
+
+        System.out.printf("%d sessions over %d connections%n", sessions, connections);
+        System.out.printf("bytes per session: %d retaining the request, %d with HmacAuthenticatedUser%n",
+                bytesBefore, bytesAfter);
+
+        // Keep the sessions reachable until they have been measured
+        if (after[sessions - 1].getSignature() == null)
+            throw new IllegalStateException("Session lost its signature.");
+
+        String limit = options.get("max-bytes-per-session");
+        if (limit != null && bytesAfter > Long.parseLong(limit)) {
+            System.out.printf("FAILED: %d bytes per session exceeds max-bytes-per-session %s%n",
+                    bytesAfter, limit);
+            System.exit(1);
+        }
+
+    }
+
+    /**
+     * Returns the used heap after collecting garbage, taking the lowest of
+     * several readings.
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static String getOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+}
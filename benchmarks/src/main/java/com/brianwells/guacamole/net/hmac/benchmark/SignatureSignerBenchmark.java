@@ -0,0 +1,63 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import com.brianwells.guacamole.net.hmac.HmacConfiguration;
+import com.brianwells.guacamole.net.hmac.SignatureSigner;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of rendering a page of signed links, which should grow only linearly
+ * with the number of links.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureSignerBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int links;
+
+    private SignatureSigner signer;
+
+    private Map<String, HmacConfiguration> connections;
+
+    private final StringBuilder page = new StringBuilder();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        signer = new SignatureSigner(BenchmarkFixtures.SECRET_KEY, BenchmarkFixtures.SERVER_ID);
+        connections = new LinkedHashMap<String, HmacConfiguration>();
+        for (int i = 0; i < links; i++) {
+            HmacConfiguration config = new HmacConfiguration();
+            config.setProtocol("rdp");
+            config.setParameter("hostname", BenchmarkFixtures.hostname(i));
+            config.setParameter("port", "3389");
+            connections.put(BenchmarkFixtures.connectionName(i), config);
+        }
+    }
+
+    @Benchmark
+    public int signPage() {
+        page.setLength(0);
+        signer.appendLinks(page, "https://guacamole.local/guacamole/#/client/", connections,
+                Long.parseLong(BenchmarkFixtures.TIMESTAMP), "\n");
+        return page.length();
+    }
+
+}
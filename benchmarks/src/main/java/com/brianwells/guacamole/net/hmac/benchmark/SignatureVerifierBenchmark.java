@@ -0,0 +1,54 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import com.brianwells.guacamole.net.hmac.SignatureVerifier;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of verifying a single signature, valid and invalid.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureVerifierBenchmark {
+
+    private SignatureVerifier verifier;
+
+    private String message;
+
+    private String signature;
+
+    private String badSignature;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        verifier = new SignatureVerifier(BenchmarkFixtures.SECRET_KEY);
+        message = BenchmarkFixtures.message(42);
+        signature = BenchmarkFixtures.sign(message);
+        badSignature = BenchmarkFixtures.sign(BenchmarkFixtures.message(43));
+    }
+
+    @Benchmark
+    public boolean validSignature() {
+        return verifier.verifySignature(signature, message);
+    }
+
+    @Benchmark
+    public boolean invalidSignature() {
+        return verifier.verifySignature(badSignature, message);
+    }
+
+}
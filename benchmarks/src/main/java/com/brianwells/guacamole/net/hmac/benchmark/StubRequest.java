@@ -0,0 +1,57 @@
+package com.brianwells.guacamole.net.hmac.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Allocation-free HttpServletRequest carrying only query parameters and a
+ * remote address, which is all the provider reads. Any other method throws.
+ */
+public class StubRequest extends HttpServletRequestWrapper {
+
+    private static final HttpServletRequest UNSUPPORTED = (HttpServletRequest) Proxy.newProxyInstance(
+            StubRequest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    private final Map<String, String> parameters = new HashMap<String, String>();
+
+    private final Map<String, String[]> parameterMap = new HashMap<String, String[]>();
+
+    private final String remoteAddr;
+
+    public StubRequest(String remoteAddr) {
+        super(UNSUPPORTED);
+        this.remoteAddr = remoteAddr;
+    }
+
+    public void setParameter(String name, String value) {
+        parameters.put(name, value);
+        parameterMap.put(name, new String[] { value });
+    }
+
+    @Override
+    public String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public Map getParameterMap() {
+        return parameterMap;
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+}
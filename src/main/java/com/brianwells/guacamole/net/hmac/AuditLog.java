@@ -0,0 +1,335 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records every authentication decision to a rolling file. Request threads
+ * only copy a few references into a preallocated slot of a ring buffer; a
+ * single background thread formats the events and writes them in batches,
+ * flushing whenever it runs out of work.
+ *
+ * When the buffer is full, events are either dropped and counted or the
+ * request thread waits for space, depending on the overflow policy.
+ */
+public class AuditLog {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(AuditLog.class);
+
+    /**
+     * What to do with an event when the buffer is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Discard the event and count it.
+         */
+        DROP,
+
+        /**
+         * Wait until the writer makes room.
+         */
+        BLOCK
+
+    }
+
+    /**
+     * Maximum number of events written between flushes.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Longest the writer sleeps when idle, in nanoseconds.
+     */
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Event[] slots;
+
+    /**
+     * For each slot, the sequence number of the event it holds once that
+     * event is fully written.
+     */
+    private final AtomicLongArray published;
+
+    private final int mask;
+
+    /**
+     * The sequence number of the next event to be claimed.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The sequence number of the next event to be written. Only the writer
+     * thread advances this.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final RollingFileWriter output;
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new AuditLog and starts its writer thread.
+     *
+     * @param file
+     *     The file to append events to.
+     *
+     * @param capacity
+     *     The number of events buffered, rounded up to a power of two.
+     *
+     * @param overflowPolicy
+     *     What to do with events when the buffer is full.
+     *
+     * @param maxBytes
+     *     The size at which the file is rolled over.
+     *
+     * @param maxFiles
+     *     The number of rolled over files to keep.
+     *
+     * @throws IOException
+     *     If the file cannot be opened.
+     */
+    public AuditLog(File file, int capacity, OverflowPolicy overflowPolicy,
+            long maxBytes, int maxFiles) throws IOException {
+
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Event[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Event();
+
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            published.set(i, -1);
+
+        mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.output = new RollingFileWriter(file, maxBytes, maxFiles);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        }, "hmac-audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+    }
+
+    /**
+     * Publishes an authentication decision.
+     *
+     * @param time
+     *     When the decision was made, in milliseconds since the epoch.
+     *
+     * @param outcome
+     *     The decision.
+     *
+     * @param connection
+     *     The requested connection, or null.
+     *
+     * @param client
+     *     The client address, or null.
+     *
+     * @return
+     *     true if the event was buffered, false if it was dropped.
+     */
+    public boolean publish(long time, HmacMetrics.Outcome outcome, String connection, String client) {
+
+        long sequence;
+        while (true) {
+            sequence = head.get();
+            if (sequence - tail.get() >= slots.length) {
+                // Blocking on a writer thread which has died would never end
+                if (overflowPolicy == OverflowPolicy.DROP || !running || !writer.isAlive()) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(100000);
+                continue;
+            }
+            if (head.compareAndSet(sequence, sequence + 1))
+                break;
+        }
+
+        int index = (int) sequence & mask;
+        Event event = slots[index];
+        event.time = time;
+        event.outcome = outcome;
+        event.connection = connection;
+        event.client = client;
+        published.lazySet(index, sequence);
+        return true;
+
+    }
+
+    /**
+     * @return The number of events dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of events written to the file.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Writes any buffered events, stops the writer thread and closes the
+     * file.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of the writer thread.
+     */
+    private void writeEvents() {
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date date = new Date();
+        StringBuilder line = new StringBuilder(256);
+
+        long idleNanos = 0;
+        long next = tail.get();
+
+        try {
+            while (true) {
+
+                int batch = 0;
+                while (batch < BATCH_SIZE && published.get((int) next & mask) == next) {
+
+                    Event event = slots[(int) next & mask];
+                    date.setTime(event.time);
+                    line.setLength(0);
+                    line.append(format.format(date))
+                        .append(" outcome=").append(event.outcome)
+                        .append(" connection=");
+                    appendQuoted(line, event.connection);
+                    line.append(" client=");
+                    appendQuoted(line, event.client);
+                    line.append('\n');
+
+                    // The slot may be reused once the tail passes it
+                    event.connection = null;
+                    event.client = null;
+                    tail.lazySet(++next);
+
+                    try {
+                        output.write(line);
+                    }
+                    catch (IOException e) {
+                        logger.warn("Unable to write audit event: {}", e.getMessage());
+                    }
+                    batch++;
+
+                }
+
+                if (batch > 0) {
+                    written.addAndGet(batch);
+                    idleNanos = 0;
+                    continue;
+                }
+
+                try {
+                    output.flush();
+                }
+                catch (IOException e) {
+                    logger.warn("Unable to flush audit log: {}", e.getMessage());
+                }
+
+                // Drained after close() was called
+                if (!running && head.get() == next)
+                    break;
+
+                idleNanos = Math.min(MAX_IDLE_NANOS, Math.max(10000, idleNanos * 2));
+                LockSupport.parkNanos(idleNanos);
+
+            }
+        }
+        finally {
+            try {
+                output.close();
+            }
+            catch (IOException e) {
+                logger.warn("Unable to close audit log: {}", e.getMessage());
+            }
+        }
+
+    }
+
+    /**
+     * Appends the given value in double quotes, escaping anything which
+     * could forge or break up a log line.
+     */
+    private static void appendQuoted(StringBuilder line, String value) {
+
+        if (value == null) {
+            line.append('-');
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c < 0x20 || c == 0x7f) {
+                String hex = Integer.toHexString(c);
+                line.append("\\u");
+                for (int pad = hex.length(); pad < 4; pad++)
+                    line.append('0');
+                line.append(hex);
+            }
+            else
+                line.append(c);
+        }
+        line.append('"');
+
+    }
+
+    /**
+     * A preallocated slot in the ring buffer. Written by one request thread,
+     * then read by the writer thread, with the published sequence number
+     * providing the ordering between them.
+     */
+    private static class Event {
+        long time;
+        HmacMetrics.Outcome outcome;
+        String connection;
+        String client;
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Remembers successfully verified (connection, key ID, algorithm, timestamp,
+ * signature) requests so that sessions refreshing with the same signed URL
+ * skip the configuration lookup and HMAC. Entries expire with their
+ * timestamp or signing key, whichever comes first, are discarded when the
+ * configuration catalog changes version, and are bounded in number with
+ * least-recently-used eviction.
+ *
+ * The cache is split into independently locked segments by key hash, so
+ * concurrent refreshes of different sessions rarely contend.
+ */
+public class AuthorizationCache {
+
+    /**
+     * Number of independently locked segments.
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * The segments, each an access-ordered LinkedHashMap bounded to its share
+     * of the total size.
+     */
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new AuthorizationCache.
+     *
+     * @param maxEntries
+     *     The maximum number of decisions to remember.
+     */
+    public AuthorizationCache(int maxEntries) {
+
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Authorization cache size must be positive.");
+
+        int perSegment = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(perSegment);
+
+    }
+
+    /**
+     * Returns the configuration authorized by an earlier, identical request.
+     *
+     * @param connection
+     *     The requested connection.
+     *
+     * @param keyId
+     *     The key ID, as given in the request, or null if none was given.
+     *
+     * @param algorithm
+     *     The algorithm, as given in the request, or null if none was given.
+     *
+     * @param timestamp
+     *     The signed timestamp, as given in the request.
+     *
+     * @param signature
+     *     The signature, as given in the request.
+     *
+     * @param version
+     *     The current version of the configuration catalog.
+     *
+     * @param now
+     *     The current time, in milliseconds.
+     *
+     * @return
+     *     The previously authorized configuration, or null if there is no
+     *     live decision for this request.
+     */
+    public GuacamoleConfiguration get(String connection, String keyId, String algorithm,
+            String timestamp, String signature, long version, long now) {
+
+        Key key = new Key(connection, keyId, algorithm, timestamp, signature);
+        Segment segment = segmentFor(key);
+
+        Decision decision;
+        synchronized (segment) {
+            decision = segment.get(key);
+            if (decision != null && (decision.version != version || decision.expiresAt <= now)) {
+                segment.remove(key);
+                decision = null;
+            }
+        }
+
+        if (decision == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return decision.config;
+
+    }
+
+    /**
+     * Records a successfully verified request.
+     *
+     * @param expiresAt
+     *     The time after which the signed timestamp or the key which signed
+     *     it is no longer valid, or Long.MAX_VALUE if neither expires.
+     */
+    public void put(String connection, String keyId, String algorithm, String timestamp,
+            String signature, GuacamoleConfiguration config, long version, long expiresAt) {
+
+        Key key = new Key(connection, keyId, algorithm, timestamp, signature);
+        Segment segment = segmentFor(key);
+
+        synchronized (segment) {
+            segment.put(key, new Decision(config, version, expiresAt));
+        }
+
+    }
+
+    /**
+     * @return The number of decisions currently remembered.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of lookups answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of lookups not answered from the cache.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Segment segmentFor(Key key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Access-ordered map which evicts its least recently used entry once
+     * full. Guarded by its own monitor.
+     */
+    private static class Segment extends LinkedHashMap<Key, Decision> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Decision> eldest) {
+            return size() > maxEntries;
+        }
+
+    }
+
+    /**
+     * The request parameters a decision applies to.
+     */
+    private static class Key {
+
+        private final String connection;
+        private final String keyId;
+        private final String algorithm;
+        private final String timestamp;
+        private final String signature;
+        private final int hash;
+
+        Key(String connection, String keyId, String algorithm, String timestamp, String signature) {
+            this.connection = connection;
+            this.keyId = keyId;
+            this.algorithm = algorithm;
+            this.timestamp = timestamp;
+            this.signature = signature;
+            int hash = connection.hashCode();
+            hash = 31 * hash + ((keyId == null) ? 0 : keyId.hashCode());
+            hash = 31 * hash + ((algorithm == null) ? 0 : algorithm.hashCode());
+            hash = 31 * hash + timestamp.hashCode();
+            this.hash = 31 * hash + signature.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key))
+                return false;
+            Key other = (Key) object;
+            return hash == other.hash
+                    && signature.equals(other.signature)
+                    && timestamp.equals(other.timestamp)
+                    && connection.equals(other.connection)
+                    && equal(keyId, other.keyId)
+                    && equal(algorithm, other.algorithm);
+        }
+
+        private static boolean equal(String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+
+    }
+
+    /**
+     * A remembered successful verification.
+     */
+    private static class Decision {
+
+        final GuacamoleConfiguration config;
+        final long version;
+        final long expiresAt;
+
+        Decision(GuacamoleConfiguration config, long version, long expiresAt) {
+            this.config = config;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
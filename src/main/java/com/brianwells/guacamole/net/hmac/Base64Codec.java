@@ -0,0 +1,143 @@
+package com.brianwells.guacamole.net.hmac;
+
+/**
+ * Minimal strict Base64 (RFC 4648) codec which reads from and writes into
+ * caller supplied buffers, so that signatures can be decoded and encoded
+ * without allocating.
+ */
+final class Base64Codec {
+
+    /**
+     * Lookup table mapping ASCII characters to their 6-bit values, or -1 for
+     * characters outside the Base64 alphabet.
+     */
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    /**
+     * The Base64 alphabet, indexed by 6-bit value.
+     */
+    private static final char[] ENCODE_TABLE =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    static {
+        java.util.Arrays.fill(DECODE_TABLE, (byte) -1);
+        for (int i = 0; i < ENCODE_TABLE.length; i++)
+            DECODE_TABLE[ENCODE_TABLE[i]] = (byte) i;
+    }
+
+    private Base64Codec() {
+    }
+
+    /**
+     * Decodes the given padded Base64 string into the given buffer.
+     *
+     * @param encoded
+     *     The Base64 string to decode.
+     *
+     * @param output
+     *     The buffer to receive the decoded bytes.
+     *
+     * @return
+     *     The number of bytes decoded, or -1 if the string is not valid
+     *     padded Base64 or would not fit within the buffer. Unused bits
+     *     before the padding must be zero, so each byte sequence has exactly
+     *     one accepted encoding.
+     */
+    static int decode(CharSequence encoded, byte[] output) {
+
+        int length = encoded.length();
+        if (length == 0 || length % 4 != 0)
+            return -1;
+
+        int padding = 0;
+        if (encoded.charAt(length - 1) == '=') padding++;
+        if (encoded.charAt(length - 2) == '=') padding++;
+
+        int decodedLength = length / 4 * 3 - padding;
+        if (decodedLength > output.length)
+            return -1;
+
+        int out = 0;
+        for (int i = 0; i < length; i += 4) {
+
+            int a = value(encoded.charAt(i));
+            int b = value(encoded.charAt(i + 1));
+            int c = (i + 4 == length && padding == 2) ? 0 : value(encoded.charAt(i + 2));
+            int d = (i + 4 == length && padding >= 1) ? 0 : value(encoded.charAt(i + 3));
+
+            if ((a | b | c | d) < 0)
+                return -1;
+
+            int bits = (a << 18) | (b << 12) | (c << 6) | d;
+            // Bits beyond the last encoded byte must be zero
+            if (i + 4 == length && ((padding == 1 && (bits & 0xFF) != 0) || (padding == 2 && (bits & 0xFFFF) != 0)))
+                return -1;
+
+            output[out++] = (byte) (bits >> 16);
+            if (out < decodedLength) output[out++] = (byte) (bits >> 8);
+            if (out < decodedLength) output[out++] = (byte) bits;
+
+        }
+
+        return decodedLength;
+
+    }
+
+    /**
+     * Appends the padded Base64 encoding of the given bytes.
+     *
+     * @param input
+     *     The buffer holding the bytes to encode.
+     *
+     * @param length
+     *     The number of bytes to encode from the start of the buffer.
+     *
+     * @param output
+     *     The builder to append the encoding to.
+     *
+     * @param urlEncoded
+     *     Whether to percent-encode the characters '+', '/' and '=', so the
+     *     result can be used directly as a URL query parameter value.
+     */
+    static void encode(byte[] input, int length, StringBuilder output, boolean urlEncoded) {
+
+        for (int i = 0; i < length; i += 3) {
+
+            int remaining = length - i;
+            int bits = (input[i] & 0xFF) << 16;
+            if (remaining > 1) bits |= (input[i + 1] & 0xFF) << 8;
+            if (remaining > 2) bits |= input[i + 2] & 0xFF;
+
+            append(output, ENCODE_TABLE[(bits >> 18) & 0x3F], urlEncoded);
+            append(output, ENCODE_TABLE[(bits >> 12) & 0x3F], urlEncoded);
+            append(output, (remaining > 1) ? ENCODE_TABLE[(bits >> 6) & 0x3F] : '=', urlEncoded);
+            append(output, (remaining > 2) ? ENCODE_TABLE[bits & 0x3F] : '=', urlEncoded);
+
+        }
+
+    }
+
+    private static void append(StringBuilder output, char c, boolean urlEncoded) {
+        if (!urlEncoded)
+            output.append(c);
+        else if (c == '+')
+            output.append("%2B");
+        else if (c == '/')
+            output.append("%2F");
+        else if (c == '=')
+            output.append("%3D");
+        else
+            output.append(c);
+    }
+
+    /**
+     * Returns the 6-bit value of the given Base64 character, or -1 if the
+     * character is not part of the Base64 alphabet.
+     */
+    private static int value(char c) {
+        if (c >= DECODE_TABLE.length)
+            return -1;
+        return DECODE_TABLE[c];
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.Collection;
+
+/**
+ * Immutable Bloom filter over a set of strings. A negative answer is always
+ * correct; a positive answer is wrong with roughly the probability the
+ * filter was sized for.
+ */
+class BloomFilter {
+
+    private final long[] bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    /**
+     * Builds a filter containing the given names.
+     *
+     * @param names
+     *     The names to add.
+     *
+     * @param falsePositiveRate
+     *     The desired probability of a false positive, between 0 and 1.
+     */
+    BloomFilter(Collection<String> names, double falsePositiveRate) {
+
+        int expected = Math.max(1, names.size());
+        double ln2 = Math.log(2);
+        long optimalBits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (ln2 * ln2));
+
+        bitCount = (int) Math.max(64, Math.min(optimalBits, Integer.MAX_VALUE - 63));
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / expected * ln2));
+        bits = new long[(bitCount + 63) >>> 6];
+
+        for (String name : names) {
+            long hash = hash(name);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashCount; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+    }
+
+    /**
+     * Returns whether the given name may have been added to this filter.
+     *
+     * @return false if the name was definitely not added.
+     */
+    boolean mightContain(String name) {
+        long hash = hash(name);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters of the given string, mixed so both
+     * halves are usable as independent hashes.
+     */
+    private static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
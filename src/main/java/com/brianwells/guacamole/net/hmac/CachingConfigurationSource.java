@@ -0,0 +1,300 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-through cache in front of a slower ConfigurationSource such as a
+ * database. Found and missing configurations are both remembered for a
+ * fixed time, in separate bounded LRU maps so that lookups of many unknown
+ * names cannot evict known ones.
+ *
+ * If the source is an EnumerableConfigurationSource, a Bloom filter of all
+ * known names is also built and rebuilt after the same time, and names it
+ * rules out are rejected without consulting the source at all. A name added
+ * to the source may therefore be rejected until the filter is next rebuilt.
+ *
+ * The version reported is that of the source plus the number of cached
+ * configurations found to have changed or disappeared on refresh. A change
+ * is only noticed when an expired entry is read again, which a cached
+ * authorization decision never triggers, so the provider additionally
+ * expires decisions for such sources after the same time.
+ */
+public class CachingConfigurationSource implements ConfigurationSource {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(CachingConfigurationSource.class);
+
+    /**
+     * Number of independently locked segments in each map.
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * False positive rate the name filter is sized for.
+     */
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final ConfigurationSource source;
+
+    private final long ttl;
+
+    private final Segment[] found = new Segment[SEGMENTS];
+
+    private final Segment[] missing = new Segment[SEGMENTS];
+
+    /**
+     * The current name filter, or null if not yet built.
+     */
+    private volatile NameFilter filter;
+
+    /**
+     * Set while one thread rebuilds the name filter. Other threads continue
+     * with the previous filter meanwhile.
+     */
+    private final AtomicBoolean rebuildingFilter = new AtomicBoolean();
+
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong filtered = new AtomicLong();
+
+    /**
+     * Creates a new CachingConfigurationSource.
+     *
+     * @param source
+     *     The source to read through to.
+     *
+     * @param maxEntries
+     *     The maximum number of found configurations to remember, and
+     *     separately the maximum number of missing names.
+     *
+     * @param ttl
+     *     How long lookups and the name filter remain valid, in
+     *     milliseconds.
+     */
+    public CachingConfigurationSource(ConfigurationSource source, int maxEntries, long ttl) {
+
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Configuration cache size must be positive.");
+
+        this.source = source;
+        this.ttl = ttl;
+
+        int perSegment = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            found[i] = new Segment(perSegment);
+            missing[i] = new Segment(perSegment);
+        }
+
+    }
+
+    @Override
+    public GuacamoleConfiguration getConfiguration(String name) throws GuacamoleException {
+
+        long now = System.currentTimeMillis();
+
+        Segment foundSegment = segmentFor(found, name);
+        Entry cached;
+        synchronized (foundSegment) {
+            cached = foundSegment.get(name);
+        }
+        if (cached != null && cached.expiresAt > now) {
+            hits.incrementAndGet();
+            return cached.config;
+        }
+
+        Segment missingSegment = segmentFor(missing, name);
+        synchronized (missingSegment) {
+            Entry absent = missingSegment.get(name);
+            if (absent != null && absent.expiresAt > now) {
+                hits.incrementAndGet();
+                return null;
+            }
+        }
+
+        // Names which certainly do not exist never reach the source
+        BloomFilter names = getFilter(now);
+        if (names != null && !names.mightContain(name)) {
+            filtered.incrementAndGet();
+            return null;
+        }
+
+        misses.incrementAndGet();
+        GuacamoleConfiguration config = source.getConfiguration(name);
+
+        if (config == null) {
+            synchronized (foundSegment) {
+                foundSegment.remove(name);
+            }
+            synchronized (missingSegment) {
+                missingSegment.put(name, new Entry(null, now + ttl));
+            }
+        }
+        else {
+            synchronized (foundSegment) {
+                foundSegment.put(name, new Entry(config, now + ttl));
+            }
+        }
+
+        // Refreshing an expired entry may reveal a change
+        if (cached != null && (config == null || !sameConfiguration(cached.config, config)))
+            changes.incrementAndGet();
+
+        return config;
+
+    }
+
+    @Override
+    public int getConfigurationCount() throws GuacamoleException {
+        return source.getConfigurationCount();
+    }
+
+    @Override
+    public long getVersion() throws GuacamoleException {
+        return source.getVersion() + changes.get();
+    }
+
+    /**
+     * @return The number of lookups answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of lookups passed to the source.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of lookups rejected by the name filter.
+     */
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    /**
+     * Returns the current name filter, rebuilding it first if it has
+     * expired and no other thread is already doing so.
+     *
+     * @return
+     *     The filter, or null if names cannot be filtered.
+     */
+    private BloomFilter getFilter(long now) {
+
+        if (!(source instanceof EnumerableConfigurationSource))
+            return null;
+
+        NameFilter current = filter;
+        if ((current == null || current.expiresAt <= now) && rebuildingFilter.compareAndSet(false, true)) {
+            try {
+                current = new NameFilter(new BloomFilter(
+                        ((EnumerableConfigurationSource) source).getConfigurationNames(),
+                        FALSE_POSITIVE_RATE), now + ttl);
+            }
+            catch (GuacamoleException e) {
+
+                // Do not filter, and do not retry until the next period
+                logger.warn("Unable to list configuration names, lookups will not be filtered: {}",
+                        e.getMessage());
+                logger.debug("Listing configuration names failed.", e);
+                current = new NameFilter(null, now + ttl);
+
+            }
+            finally {
+                filter = current;
+                rebuildingFilter.set(false);
+            }
+        }
+
+        return (current == null) ? null : current.names;
+
+    }
+
+    private static boolean sameConfiguration(GuacamoleConfiguration a, GuacamoleConfiguration b) {
+
+        if (!a.getProtocol().equals(b.getProtocol()))
+            return false;
+
+        if (!a.getParameterNames().equals(b.getParameterNames()))
+            return false;
+
+        for (String name : a.getParameterNames()) {
+            String value = a.getParameter(name);
+            if (value == null ? b.getParameter(name) != null : !value.equals(b.getParameter(name)))
+                return false;
+        }
+
+        return true;
+
+    }
+
+    private static Segment segmentFor(Segment[] segments, String name) {
+        int hash = name.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Access-ordered map which evicts its least recently used entry once
+     * full. Guarded by its own monitor.
+     */
+    private static class Segment extends LinkedHashMap<String, Entry> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+
+    }
+
+    /**
+     * A remembered lookup result.
+     */
+    private static class Entry {
+
+        final GuacamoleConfiguration config;
+        final long expiresAt;
+
+        Entry(GuacamoleConfiguration config, long expiresAt) {
+            this.config = config;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    /**
+     * A filter of all known names, valid until the given time.
+     */
+    private static class NameFilter {
+
+        final BloomFilter names;
+        final long expiresAt;
+
+        NameFilter(BloomFilter names, long expiresAt) {
+            this.names = names;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.brianwells.guacamole.net.hmac;
+
+/**
+ * Layout of the compiled configuration catalog written by
+ * HmacConfigurationCompiler and read by CompiledConfigurationStore. All
+ * integers are big-endian and all strings are a 32-bit byte length followed
+ * by that many bytes of UTF-8.
+ *
+ * <pre>
+ * header:  int MAGIC, int VERSION, int entry count, int slot count
+ * slots:   slot count * (int name hash, int entry offset), 0 offset = empty
+ * entries: string name, string protocol, int param count,
+ *          param count * (string name, string value)
+ * </pre>
+ *
+ * The slot table is an open-addressed hash index with linear probing on
+ * String.hashCode() of the connection name. The slot count is a power of two
+ * at least twice the entry count, so probe sequences stay short.
+ */
+final class CompiledConfigurationFormat {
+
+    /**
+     * Identifies a compiled catalog ("HMAC").
+     */
+    static final int MAGIC = 0x484D4143;
+
+    /**
+     * Version of the format described above.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Size of the fixed header, in bytes.
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Size of a single slot of the hash index, in bytes.
+     */
+    static final int SLOT_SIZE = 8;
+
+    private CompiledConfigurationFormat() {
+    }
+
+    /**
+     * Returns the number of index slots to use for the given number of
+     * entries.
+     */
+    static int slotCount(int entries) {
+        int slots = 2;
+        while (slots < entries * 2)
+            slots <<= 1;
+        return slots;
+    }
+
+    /**
+     * Spreads the bits of the given hash so that names differing only in
+     * their high bits do not collide in small tables.
+     */
+    static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,320 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConfigurationSource backed by a catalog compiled by
+ * HmacConfigurationCompiler. The catalog is memory-mapped rather than read
+ * onto the heap, and each lookup probes its hash index and decodes only the
+ * requested configuration, so lookup cost and heap usage do not depend on
+ * the number of connections. The file is remapped when its modification
+ * time or length changes; if the new file is invalid, the previous mapping
+ * remains in use. The file must be replaced by renaming a new file over it,
+ * as HmacConfigurationCompiler does, and never rewritten in place while
+ * mapped.
+ */
+public class CompiledConfigurationStore implements ConfigurationSource {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(CompiledConfigurationStore.class);
+
+    /**
+     * The compiled catalog file.
+     */
+    private final File catalogFile;
+
+    /**
+     * The currently mapped catalog, or null if the file has never been
+     * mapped successfully.
+     */
+    private final AtomicReference<MappedCatalog> catalog = new AtomicReference<MappedCatalog>();
+
+    /**
+     * Lock held while the file is being remapped. Readers never wait for
+     * this lock once a mapping exists.
+     */
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
+    /**
+     * Modification time of the last version of the file which failed to
+     * map. Guarded by reloadLock.
+     */
+    private long failedLastModified = -1;
+
+    /**
+     * Length of the last version of the file which failed to map. Guarded by
+     * reloadLock.
+     */
+    private long failedLength = -1;
+
+    /**
+     * Creates a new CompiledConfigurationStore which maps the given file.
+     *
+     * @param catalogFile
+     *     The compiled catalog to map.
+     */
+    public CompiledConfigurationStore(File catalogFile) {
+        this.catalogFile = catalogFile;
+    }
+
+    @Override
+    public GuacamoleConfiguration getConfiguration(String name) throws GuacamoleException {
+        return getCatalog().getConfiguration(name);
+    }
+
+    @Override
+    public int getConfigurationCount() throws GuacamoleException {
+        return getCatalog().count;
+    }
+
+    @Override
+    public long getVersion() throws GuacamoleException {
+        return getCatalog().version;
+    }
+
+    /**
+     * Returns the current mapping of the catalog, remapping the file first if
+     * it has changed.
+     */
+    private MappedCatalog getCatalog() throws GuacamoleException {
+
+        long lastModified = catalogFile.lastModified();
+        long length = catalogFile.length();
+
+        MappedCatalog current = catalog.get();
+        if (current != null && current.isCurrent(lastModified, length))
+            return current;
+
+        // Readers carry on with the current snapshot while another thread
+        // reloads; only the very first load makes callers wait
+        if (current == null)
+            reloadLock.lock();
+        else if (!reloadLock.tryLock())
+            return current;
+
+        try {
+
+            current = catalog.get();
+            if (current != null && current.isCurrent(lastModified, length))
+                return current;
+
+            // Do not retry a file which is known to be broken
+            if (current != null && failedLastModified == lastModified && failedLength == length)
+                return current;
+
+            try {
+                long version = (current == null) ? 1 : current.version + 1;
+                MappedCatalog updated = map(version, lastModified, length);
+                catalog.set(updated);
+                failedLastModified = -1;
+                failedLength = -1;
+                logger.info("Mapped {} compiled configurations from \"{}\".", updated.count, catalogFile);
+                return updated;
+            }
+            catch (GuacamoleException e) {
+
+                // Nothing to fall back to
+                if (current == null)
+                    throw e;
+
+                logger.warn("Unable to remap \"{}\", continuing with previous catalog: {}",
+                        catalogFile, e.getMessage());
+
+                failedLastModified = lastModified;
+                failedLength = length;
+                return current;
+
+            }
+
+        }
+        finally {
+            reloadLock.unlock();
+        }
+
+    }
+
+    /**
+     * Maps and validates the catalog file.
+     */
+    private MappedCatalog map(long version, long lastModified, long length)
+            throws GuacamoleException {
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(catalogFile, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new MappedCatalog(buffer, version, lastModified, length);
+            }
+            finally {
+                // The mapping remains valid after the file is closed
+                file.close();
+            }
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Error mapping compiled configuration " + catalogFile, e);
+        }
+
+    }
+
+    /**
+     * A single immutable mapping of a compiled catalog.
+     */
+    private static class MappedCatalog {
+
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int slotCount;
+        private final long version;
+        private final long lastModified;
+        private final long length;
+
+        MappedCatalog(ByteBuffer buffer, long version, long lastModified, long length)
+                throws GuacamoleServerException {
+
+            if (buffer.capacity() < CompiledConfigurationFormat.HEADER_SIZE
+                    || buffer.getInt(0) != CompiledConfigurationFormat.MAGIC)
+                throw new GuacamoleServerException("Not a compiled configuration catalog.");
+
+            if (buffer.getInt(4) != CompiledConfigurationFormat.VERSION)
+                throw new GuacamoleServerException("Unsupported compiled configuration version " + buffer.getInt(4) + ".");
+
+            this.count = buffer.getInt(8);
+            this.slotCount = buffer.getInt(12);
+
+            if (count < 0 || slotCount <= 0 || (slotCount & (slotCount - 1)) != 0
+                    || CompiledConfigurationFormat.HEADER_SIZE
+                        + (long) slotCount * CompiledConfigurationFormat.SLOT_SIZE > buffer.capacity())
+                throw new GuacamoleServerException("Corrupt compiled configuration header.");
+
+            this.buffer = buffer;
+            this.version = version;
+            this.lastModified = lastModified;
+            this.length = length;
+
+        }
+
+        boolean isCurrent(long lastModified, long length) {
+            return this.lastModified == lastModified && this.length == length;
+        }
+
+        GuacamoleConfiguration getConfiguration(String name) throws GuacamoleException {
+
+            byte[] key;
+            try {
+                key = name.getBytes("UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new GuacamoleServerException("UTF-8 not supported.", e);
+            }
+
+            int hash = CompiledConfigurationFormat.spread(name.hashCode());
+            int mask = slotCount - 1;
+
+            try {
+                for (int probe = 0, slot = hash & mask; probe < slotCount; probe++, slot = (slot + 1) & mask) {
+
+                    int position = CompiledConfigurationFormat.HEADER_SIZE + slot * CompiledConfigurationFormat.SLOT_SIZE;
+                    int offset = buffer.getInt(position + 4);
+
+                    // Empty slot terminates the probe sequence
+                    if (offset == 0)
+                        return null;
+
+                    if (buffer.getInt(position) == hash && nameEquals(offset, key))
+                        return decode(offset);
+
+                }
+            }
+            catch (IndexOutOfBoundsException e) {
+                throw new GuacamoleServerException("Corrupt compiled configuration entry.", e);
+            }
+            catch (BufferUnderflowException e) {
+                throw new GuacamoleServerException("Corrupt compiled configuration entry.", e);
+            }
+
+            return null;
+
+        }
+
+        /**
+         * Compares the name stored at the given entry offset with the given
+         * UTF-8 bytes without decoding it.
+         */
+        private boolean nameEquals(int offset, byte[] key) {
+
+            if (buffer.getInt(offset) != key.length)
+                return false;
+
+            int start = offset + 4;
+            for (int i = 0; i < key.length; i++) {
+                if (buffer.get(start + i) != key[i])
+                    return false;
+            }
+
+            return true;
+
+        }
+
+        /**
+         * Decodes the configuration at the given entry offset.
+         */
+        private GuacamoleConfiguration decode(int offset) throws GuacamoleException {
+
+            // Private cursor, leaving the shared buffer untouched
+            ByteBuffer entry = buffer.duplicate();
+            entry.position(offset);
+
+            readString(entry); // name
+            GuacamoleConfiguration config = new HmacConfiguration();
+            config.setProtocol(readString(entry));
+
+            int parameters = entry.getInt();
+            for (int i = 0; i < parameters; i++) {
+                String name = readString(entry);
+                config.setParameter(name, readString(entry));
+            }
+
+            return config;
+
+        }
+
+        private static String readString(ByteBuffer entry) throws GuacamoleException {
+
+            int length = entry.getInt();
+            if (length == -1)
+                return null;
+
+            if (length < 0 || length > entry.remaining())
+                throw new GuacamoleServerException("Corrupt compiled configuration entry.");
+
+            byte[] bytes = new byte[length];
+            entry.get(bytes);
+
+            try {
+                return new String(bytes, "UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new GuacamoleServerException("UTF-8 not supported.", e);
+            }
+
+        }
+
+    }
+
+}
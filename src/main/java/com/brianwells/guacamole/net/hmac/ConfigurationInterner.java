@@ -0,0 +1,126 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Canonicalizes configurations by content, so that sessions authorized for
+ * identical configurations share a single frozen instance however the
+ * configuration was produced. Entries disappear once no session or cache
+ * refers to their configuration any longer.
+ *
+ * Configurations are kept in independently locked segments by content hash,
+ * so threads interning different configurations do not contend.
+ */
+class ConfigurationInterner {
+
+    /**
+     * Number of independently locked segments.
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Interned configurations by content. Each key is referenced strongly
+     * only by its configuration, and each configuration only weakly by these
+     * maps. Each map is guarded by its own monitor.
+     */
+    private final Map<Key, WeakReference<HmacConfiguration>>[] segments;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    ConfigurationInterner() {
+        segments = new Map[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new WeakHashMap<Key, WeakReference<HmacConfiguration>>();
+    }
+
+    /**
+     * Returns the shared, frozen configuration having the same protocol and
+     * parameters as the given configuration.
+     *
+     * @param config
+     *     The configuration to intern.
+     *
+     * @return
+     *     A frozen configuration equal in content to the given one.
+     */
+    HmacConfiguration intern(GuacamoleConfiguration config) {
+
+        // Already canonical
+        if (config instanceof HmacConfiguration && ((HmacConfiguration) config).getInternKey() != null)
+            return (HmacConfiguration) config;
+
+        Key key = new Key(config.getProtocol(), config.getParameters());
+        Map<Key, WeakReference<HmacConfiguration>> configs =
+                segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+
+        synchronized (configs) {
+
+            WeakReference<HmacConfiguration> reference = configs.get(key);
+            HmacConfiguration interned = (reference == null) ? null : reference.get();
+            if (interned != null)
+                return interned;
+
+            // Adopt the given instance unless someone else may modify it
+            if (config instanceof HmacConfiguration)
+                interned = (HmacConfiguration) config;
+            else
+                interned = new HmacConfiguration(config);
+
+            interned.freeze();
+            key = new Key(interned.getProtocol(), interned.getParameters());
+            interned.setInternKey(key);
+            configs.put(key, new WeakReference<HmacConfiguration>(interned));
+            return interned;
+
+        }
+
+    }
+
+    /**
+     * @return The number of configurations currently interned.
+     */
+    int size() {
+        int size = 0;
+        for (Map<Key, WeakReference<HmacConfiguration>> configs : segments) {
+            synchronized (configs) {
+                size += configs.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The content of a configuration.
+     */
+    private static class Key {
+
+        private final String protocol;
+        private final Map<String, String> parameters;
+        private final int hash;
+
+        Key(String protocol, Map<String, String> parameters) {
+            this.protocol = protocol;
+            this.parameters = parameters;
+            this.hash = 31 * (protocol == null ? 0 : protocol.hashCode()) + parameters.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key))
+                return false;
+            Key other = (Key) object;
+            return hash == other.hash
+                    && (protocol == null ? other.protocol == null : protocol.equals(other.protocol))
+                    && parameters.equals(other.parameters);
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.brianwells.guacamole.net.hmac;
+
+/**
+ * Bounds on what a single configuration file may contain, so that a broken
+ * or malicious file fails quickly instead of exhausting CPU or heap while it
+ * is parsed. Each limit applies to one file at a time.
+ */
+public class ConfigurationLimits {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_MAX_DEPTH = 16;
+    public static final int DEFAULT_MAX_CONFIGS = 1000000;
+    public static final int DEFAULT_MAX_ATTRIBUTE_LENGTH = 65536;
+
+    /**
+     * The limits used unless configured otherwise.
+     */
+    public static final ConfigurationLimits DEFAULT = new ConfigurationLimits(DEFAULT_MAX_BYTES,
+            DEFAULT_MAX_DEPTH, DEFAULT_MAX_CONFIGS, DEFAULT_MAX_ATTRIBUTE_LENGTH);
+
+    private final long maxBytes;
+    private final int maxDepth;
+    private final int maxConfigs;
+    private final int maxAttributeLength;
+
+    /**
+     * Creates a new set of limits.
+     *
+     * @param maxBytes
+     *     The largest file, in bytes, which will be read.
+     *
+     * @param maxDepth
+     *     The deepest nesting of elements allowed, counting the root element
+     *     as 1.
+     *
+     * @param maxConfigs
+     *     The largest number of configurations, configuration patterns and
+     *     templates a file may define, together.
+     *
+     * @param maxAttributeLength
+     *     The longest attribute value allowed, in characters.
+     */
+    public ConfigurationLimits(long maxBytes, int maxDepth, int maxConfigs, int maxAttributeLength) {
+        this.maxBytes = maxBytes;
+        this.maxDepth = maxDepth;
+        this.maxConfigs = maxConfigs;
+        this.maxAttributeLength = maxAttributeLength;
+    }
+
+    /**
+     * @return The largest file, in bytes, which will be read.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The deepest nesting of elements allowed.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return The largest number of configurations, patterns and templates
+     *     a file may define.
+     */
+    public int getMaxConfigs() {
+        return maxConfigs;
+    }
+
+    /**
+     * @return The longest attribute value allowed, in characters.
+     */
+    public int getMaxAttributeLength() {
+        return maxAttributeLength;
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Defines every connection whose name matches a regular expression, as
+ * declared by a &lt;config-pattern&gt; element. Parameter values may refer
+ * to groups captured from the name as $1 or ${1}, with $$ standing for a
+ * literal dollar sign. The expression and every value are compiled once
+ * when the file is parsed; resolving a name costs one match and the
+ * substitution of the values which refer to groups.
+ *
+ * Instances are immutable once parsed.
+ */
+public class ConfigurationPattern {
+
+    private final Pattern pattern;
+
+    private final String protocol;
+
+    /**
+     * Parameters inherited from a template, or null.
+     */
+    private final Map<String, String> inherited;
+
+    private final List<String> names = new ArrayList<String>();
+
+    private final List<Value> values = new ArrayList<Value>();
+
+    /**
+     * Creates a new ConfigurationPattern.
+     *
+     * @param regex
+     *     The expression which the whole connection name must match.
+     *
+     * @param protocol
+     *     The protocol of matching connections.
+     *
+     * @param inherited
+     *     Parameters inherited from a template, never modified, or null.
+     *
+     * @throws IllegalArgumentException
+     *     If the expression is not valid.
+     */
+    ConfigurationPattern(String regex, String protocol, Map<String, String> inherited) {
+        try {
+            this.pattern = Pattern.compile(regex);
+        }
+        catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid connection name pattern: " + e.getMessage(), e);
+        }
+        this.protocol = protocol;
+        this.inherited = inherited;
+    }
+
+    /**
+     * Adds a parameter whose value may refer to captured groups.
+     *
+     * @throws IllegalArgumentException
+     *     If the value refers to a group the expression does not have, or is
+     *     malformed.
+     */
+    void addParameter(String name, String value) {
+        names.add(name);
+        values.add(new Value(value, pattern.matcher("").groupCount()));
+    }
+
+    /**
+     * @return The expression connection names are matched against.
+     */
+    public String getPattern() {
+        return pattern.pattern();
+    }
+
+    /**
+     * Returns the configuration of the connection having the given name.
+     *
+     * @param name
+     *     The requested connection name.
+     *
+     * @return
+     *     A new configuration, or null if the name does not match.
+     */
+    public HmacConfiguration resolve(String name) {
+
+        Matcher matcher = pattern.matcher(name);
+        if (!matcher.matches())
+            return null;
+
+        HmacConfiguration config = new HmacConfiguration();
+        config.setProtocol(protocol);
+        if (inherited != null)
+            config.setInheritedParameters(inherited);
+
+        for (int i = 0; i < names.size(); i++)
+            config.setParameter(names.get(i), values.get(i).substitute(matcher));
+
+        return config;
+
+    }
+
+    /**
+     * Returns the configuration of the connection having the given name from
+     * the first of the given patterns it matches.
+     *
+     * @param patterns
+     *     The patterns to try, in order.
+     *
+     * @param name
+     *     The requested connection name.
+     *
+     * @return
+     *     A new configuration, or null if no pattern matches.
+     */
+    static HmacConfiguration resolve(List<ConfigurationPattern> patterns, String name) {
+        for (ConfigurationPattern pattern : patterns) {
+            HmacConfiguration config = pattern.resolve(name);
+            if (config != null)
+                return config;
+        }
+        return null;
+    }
+
+    /**
+     * A parameter value split into literal text and group references.
+     */
+    private static class Value {
+
+        /**
+         * The value itself if it refers to no groups.
+         */
+        private final String constant;
+
+        /**
+         * Literal text preceding each group reference, followed by any
+         * trailing text.
+         */
+        private final String[] literals;
+
+        private final int[] groups;
+
+        Value(String value, int groupCount) {
+
+            List<String> literals = new ArrayList<String>();
+            List<Integer> groups = new ArrayList<Integer>();
+            StringBuilder literal = new StringBuilder();
+
+            int i = 0;
+            while (i < value.length()) {
+
+                char c = value.charAt(i++);
+                if (c != '$') {
+                    literal.append(c);
+                    continue;
+                }
+
+                if (i < value.length() && value.charAt(i) == '$') {
+                    literal.append('$');
+                    i++;
+                    continue;
+                }
+
+                boolean braced = i < value.length() && value.charAt(i) == '{';
+                if (braced)
+                    i++;
+
+                int start = i;
+                while (i < value.length() && Character.isDigit(value.charAt(i)))
+                    i++;
+                if (i == start || (braced && (i == value.length() || value.charAt(i) != '}')))
+                    throw new IllegalArgumentException("Malformed group reference in \"" + value + "\".");
+
+                int group = Integer.parseInt(value.substring(start, i));
+                if (braced)
+                    i++;
+                if (group > groupCount)
+                    throw new IllegalArgumentException("No group " + group + " for \"" + value + "\".");
+
+                literals.add(literal.toString());
+                groups.add(group);
+                literal.setLength(0);
+
+            }
+
+            literals.add(literal.toString());
+
+            this.constant = groups.isEmpty() ? literals.get(0) : null;
+            this.literals = literals.toArray(new String[literals.size()]);
+            this.groups = new int[groups.size()];
+            for (int j = 0; j < this.groups.length; j++)
+                this.groups[j] = groups.get(j);
+
+        }
+
+        String substitute(Matcher matcher) {
+
+            if (constant != null)
+                return constant;
+
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < groups.length; i++) {
+                value.append(literals[i]);
+                String group = matcher.group(groups[i]);
+                if (group != null)
+                    value.append(group);
+            }
+            return value.append(literals[groups.length]).toString();
+
+        }
+
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Immutable view of all configurations parsed from hmac-config.xml at a
+ * given point in time. Snapshots are never modified once published, so they
+ * can be shared freely between request threads.
+ */
+public class ConfigurationSnapshot {
+
+    /**
+     * All configurations within this snapshot, indexed by name.
+     */
+    private final Map<String, GuacamoleConfiguration> configs;
+
+    /**
+     * Patterns tried, in order, for names not within configs.
+     */
+    private final List<ConfigurationPattern> patterns;
+
+    /**
+     * Monotonically increasing version of this snapshot. A new version is
+     * assigned whenever the parsed contents of the file change.
+     */
+    private final long version;
+
+    /**
+     * The modification time of the file this snapshot was read from.
+     */
+    private final long lastModified;
+
+    /**
+     * The length in bytes of the file this snapshot was read from.
+     */
+    private final long length;
+
+    /**
+     * Digest of the raw file contents this snapshot was parsed from.
+     */
+    private final byte[] digest;
+
+    /**
+     * The time this snapshot was loaded, in milliseconds since the epoch.
+     */
+    private final long loadedAt;
+
+    /**
+     * Creates a new ConfigurationSnapshot. The given Map is wrapped and must
+     * not be modified by the caller afterwards.
+     *
+     * @param configs
+     *     All configurations parsed from the file, indexed by name.
+     *
+     * @param version
+     *     The version of this snapshot.
+     *
+     * @param lastModified
+     *     The modification time of the file the configurations were read from.
+     *
+     * @param length
+     *     The length of the file the configurations were read from.
+     *
+     * @param digest
+     *     Digest of the raw file contents.
+     */
+    public ConfigurationSnapshot(Map<String, GuacamoleConfiguration> configs,
+            long version, long lastModified, long length, byte[] digest) {
+        this(configs, Collections.<ConfigurationPattern>emptyList(), version,
+                lastModified, length, digest);
+    }
+
+    /**
+     * Creates a new ConfigurationSnapshot which also resolves names matching
+     * any of the given patterns. The given Map and List are wrapped and must
+     * not be modified by the caller afterwards.
+     *
+     * @param configs
+     *     All configurations parsed from the file, indexed by name.
+     *
+     * @param patterns
+     *     All patterns parsed from the file, in the order defined.
+     *
+     * @param version
+     *     The version of this snapshot.
+     *
+     * @param lastModified
+     *     The modification time of the file the configurations were read from.
+     *
+     * @param length
+     *     The length of the file the configurations were read from.
+     *
+     * @param digest
+     *     Digest of the raw file contents.
+     */
+    public ConfigurationSnapshot(Map<String, GuacamoleConfiguration> configs,
+            List<ConfigurationPattern> patterns, long version,
+            long lastModified, long length, byte[] digest) {
+        this(Collections.unmodifiableMap(configs), Collections.unmodifiableList(patterns),
+                version, lastModified, length, digest, System.currentTimeMillis());
+    }
+
+    private ConfigurationSnapshot(Map<String, GuacamoleConfiguration> configs,
+            List<ConfigurationPattern> patterns, long version, long lastModified,
+            long length, byte[] digest, long loadedAt) {
+        this.configs = configs;
+        this.patterns = patterns;
+        this.version = version;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.digest = digest;
+        this.loadedAt = loadedAt;
+    }
+
+    /**
+     * Returns a copy of this snapshot describing a file whose modification
+     * time or length changed but whose contents did not. The configurations
+     * and version are shared with this snapshot.
+     *
+     * @param lastModified
+     *     The new modification time of the file.
+     *
+     * @param length
+     *     The new length of the file.
+     *
+     * @return
+     *     A snapshot with the same contents and the given file attributes.
+     */
+    public ConfigurationSnapshot withFileAttributes(long lastModified, long length) {
+        return new ConfigurationSnapshot(configs, patterns, version,
+                lastModified, length, digest, loadedAt);
+    }
+
+    /**
+     * Returns whether this snapshot was read from a file having the given
+     * modification time and length.
+     *
+     * @return true if the file appears unchanged since this snapshot was read.
+     */
+    public boolean isCurrent(long lastModified, long length) {
+        return this.lastModified == lastModified && this.length == length;
+    }
+
+    /**
+     * Returns whether this snapshot was parsed from content having the given
+     * digest.
+     *
+     * @return true if the digests match.
+     */
+    public boolean hasDigest(byte[] digest) {
+        return Arrays.equals(this.digest, digest);
+    }
+
+    /**
+     * Returns the configuration having the given name.
+     *
+     * @param name
+     *     The name of the configuration to retrieve.
+     *
+     * @return
+     *     The configuration having the given name, or else a new
+     *     configuration from the first pattern matching the name, or null if
+     *     no such configuration exists.
+     */
+    public GuacamoleConfiguration getConfiguration(String name) {
+        GuacamoleConfiguration config = configs.get(name);
+        if (config == null && !patterns.isEmpty())
+            config = ConfigurationPattern.resolve(patterns, name);
+        return config;
+    }
+
+    /**
+     * Returns an unmodifiable Map of all configurations within this snapshot.
+     *
+     * @return All configurations, indexed by name.
+     */
+    public Map<String, GuacamoleConfiguration> getConfigs() {
+        return configs;
+    }
+
+    /**
+     * Returns an unmodifiable List of all patterns within this snapshot.
+     *
+     * @return All patterns, in the order defined.
+     */
+    public List<ConfigurationPattern> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * @return The number of configurations within this snapshot, not
+     *     counting any matching patterns.
+     */
+    public int size() {
+        return configs.size();
+    }
+
+    /**
+     * @return The version of this snapshot.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The time this snapshot was loaded, in milliseconds since the epoch.
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+}
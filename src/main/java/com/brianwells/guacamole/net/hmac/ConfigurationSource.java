@@ -0,0 +1,56 @@
+package com.brianwells.guacamole.net.hmac;
+
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * A catalog of named connection configurations which the
+ * HmacAuthenticationProvider consults by connection name.
+ *
+ * Besides the built-in stores, hmac-config-store may name any class
+ * implementing this interface which has a public constructor accepting the
+ * Guacamole Environment, or a public no-argument constructor. Implementations
+ * are called concurrently from request threads, and getVersion() is called on
+ * every authentication, so it should be cheap.
+ */
+public interface ConfigurationSource {
+
+    /**
+     * Returns the configuration having the given name.
+     *
+     * @param name
+     *     The name of the configuration to retrieve.
+     *
+     * @return
+     *     The configuration having the given name, or null if no such
+     *     configuration exists.
+     *
+     * @throws GuacamoleException
+     *     If the catalog cannot be read.
+     */
+    GuacamoleConfiguration getConfiguration(String name) throws GuacamoleException;
+
+    /**
+     * Returns the number of configurations within the catalog.
+     *
+     * @return
+     *     The number of configurations, or -1 if not known.
+     *
+     * @throws GuacamoleException
+     *     If the catalog cannot be read.
+     */
+    int getConfigurationCount() throws GuacamoleException;
+
+    /**
+     * Returns the version of the catalog. The version changes whenever the
+     * contents of the catalog may have changed.
+     *
+     * @return
+     *     The current version of the catalog.
+     *
+     * @throws GuacamoleException
+     *     If the catalog cannot be read.
+     */
+    long getVersion() throws GuacamoleException;
+
+}
@@ -0,0 +1,24 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.Collection;
+import org.glyptodon.guacamole.GuacamoleException;
+
+/**
+ * A ConfigurationSource which can list the names of all its configurations,
+ * allowing CachingConfigurationSource to reject unknown names without
+ * consulting it.
+ */
+public interface EnumerableConfigurationSource extends ConfigurationSource {
+
+    /**
+     * Returns the names of all configurations within the catalog.
+     *
+     * @return
+     *     Every configuration name.
+     *
+     * @throws GuacamoleException
+     *     If the catalog cannot be read.
+     */
+    Collection<String> getConfigurationNames() throws GuacamoleException;
+
+}
@@ -1,7 +1,7 @@
 package com.brianwells.guacamole.net.hmac;
 
 import java.util.Map;
-import java.util.UUID;
+import javax.servlet.http.HttpServletRequest;
 import org.glyptodon.guacamole.net.auth.AbstractAuthenticatedUser;
 import org.glyptodon.guacamole.net.auth.AuthenticationProvider;
 import org.glyptodon.guacamole.net.auth.Credentials;
@@ -9,13 +9,15 @@ import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
 
 /**
  * AuthenticatedUser which contains its own predefined set of authorized
- * configurations.
+ * configurations. Sessions can be numerous and long lived, so only what is
+ * needed later is retained: the request is dropped after authentication and
+ * configurations are shared with other sessions.
  */
 public class HmacAuthenticatedUser extends AbstractAuthenticatedUser {
 
     /**
-     * The credentials provided when this AuthenticatedUser was
-     * authenticated.
+     * The username and password provided when this AuthenticatedUser was
+     * authenticated, without the request or session.
      */
     private final Credentials credentials;
 
@@ -30,6 +32,11 @@ public class HmacAuthenticatedUser extends AbstractAuthenticatedUser {
      */
     private Map<String, GuacamoleConfiguration> configs;
 
+    /**
+     * The signature this AuthenticatedUser was authenticated with, if any.
+     */
+    private final String signature;
+
     /**
      * Creates a new SimpleAuthenticatedUser associated with the given
      * credentials and having access to the given Map of
@@ -44,20 +51,47 @@ public class HmacAuthenticatedUser extends AbstractAuthenticatedUser {
      *     each configuration.
      */
     public HmacAuthenticatedUser(AuthenticationProvider authenticationProvider, Credentials credentials, Map<String, GuacamoleConfiguration> configs) {
+        this(authenticationProvider, credentials, configs, null);
+    }
+
+    /**
+     * Creates a new HmacAuthenticatedUser replacing a user of the same
+     * session, which keeps that user's identifier unless the credentials
+     * provide a username.
+     *
+     * @param credentials
+     *     The credentials provided by the user when they authenticated.
+     *
+     * @param configs
+     *     A Map of all GuacamoleConfigurations for which this user has
+     *     access.
+     *
+     * @param previousIdentifier
+     *     The identifier of the user being replaced, or null to generate one.
+     */
+    public HmacAuthenticatedUser(AuthenticationProvider authenticationProvider, Credentials credentials,
+            Map<String, GuacamoleConfiguration> configs, String previousIdentifier) {
 
         // Store provider credentials and configurations
         this.authenticationProvider = authenticationProvider;
-        this.credentials = credentials;
+        this.credentials = new Credentials();
+        this.credentials.setUsername(credentials.getUsername());
+        this.credentials.setPassword(credentials.getPassword());
         this.configs = configs;
 
+        HttpServletRequest request = credentials.getRequest();
+        this.signature = (request == null) ? null : request.getParameter(HmacAuthenticationProvider.SIGNATURE_PARAM);
+
         // Pull username from credentials if it exists
         String username = credentials.getUsername();
         if (username != null && !username.isEmpty()) {
             setIdentifier(username);
 
-        // Otherwise generate a random username
+        // Otherwise keep the session's username, or generate a random one
+        } else if (previousIdentifier != null) {
+            setIdentifier(previousIdentifier);
         } else {
-            setIdentifier(UUID.randomUUID().toString());
+            setIdentifier(SessionIdGenerator.next());
         }
 
     }
@@ -74,6 +108,16 @@ public class HmacAuthenticatedUser extends AbstractAuthenticatedUser {
         return configs;
     }
     
+    /**
+     * Returns the signature of the signed URL this user authenticated with.
+     *
+     * @return
+     *     The signature, or null if the credentials carried no request.
+     */
+    public String getSignature() {
+        return signature;
+    }
+
     public void setAuthorizedConfigurations(Map<String, GuacamoleConfiguration> configs) {
         this.configs = configs;
     }
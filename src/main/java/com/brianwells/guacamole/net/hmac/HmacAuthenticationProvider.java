@@ -2,11 +2,9 @@ package com.brianwells.guacamole.net.hmac;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.*;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
 import org.glyptodon.guacamole.environment.Environment;
 import org.glyptodon.guacamole.environment.LocalEnvironment;
 import org.glyptodon.guacamole.GuacamoleException;
@@ -15,17 +13,14 @@ import org.glyptodon.guacamole.net.auth.AuthenticatedUser;
 import org.glyptodon.guacamole.net.auth.Credentials;
 import org.glyptodon.guacamole.net.auth.UserContext;
 import org.glyptodon.guacamole.net.auth.simple.SimpleAuthenticationProvider;
-import org.glyptodon.guacamole.net.auth.simple.SimpleUserContext;
+import org.glyptodon.guacamole.properties.BooleanGuacamoleProperty;
 import org.glyptodon.guacamole.properties.GuacamoleProperties;
 import org.glyptodon.guacamole.properties.IntegerGuacamoleProperty;
 import org.glyptodon.guacamole.properties.StringGuacamoleProperty;
 import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.helpers.XMLReaderFactory;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
 public class HmacAuthenticationProvider extends SimpleAuthenticationProvider {
 
@@ -42,11 +37,212 @@ public class HmacAuthenticationProvider extends SimpleAuthenticationProvider {
         public String getName() { return "secret-key"; }
     };
 
+    private static final StringGuacamoleProperty HMAC_KEY_IDS = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-key-ids"; }
+    };
+
+    private static final StringGuacamoleProperty HMAC_ALGORITHMS = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-algorithms"; }
+    };
+
+    private static final BooleanGuacamoleProperty HMAC_ALGORITHM_BENCHMARK = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-algorithm-benchmark"; }
+    };
+
+    private static final BooleanGuacamoleProperty HMAC_WARM_UP = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-warm-up"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_WARM_UP_VERIFICATIONS = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-warm-up-verifications"; }
+    };
+
     private static final IntegerGuacamoleProperty TIMESTAMP_AGE_LIMIT = new IntegerGuacamoleProperty() {
         @Override
         public String getName() { return "timestamp-age-limit"; }
     };
 
+    private static final StringGuacamoleProperty HMAC_CONFIG_STORE = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-config-store"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_CONFIG_MAX_BYTES = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-config-max-bytes"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_CONFIG_MAX_DEPTH = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-config-max-depth"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_CONFIG_MAX_CONFIGS = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-config-max-configs"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_CONFIG_MAX_ATTRIBUTE_LENGTH = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-config-max-attribute-length"; }
+    };
+
+    private static final BooleanGuacamoleProperty HMAC_STATELESS = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-stateless"; }
+    };
+
+    private static final BooleanGuacamoleProperty HMAC_SINGLE_USE = new BooleanGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-single-use"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_REPLAY_CACHE_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-replay-cache-size"; }
+    };
+
+    private static final StringGuacamoleProperty HMAC_JDBC_URL = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-jdbc-url"; }
+    };
+
+    private static final StringGuacamoleProperty HMAC_JDBC_USERNAME = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-jdbc-username"; }
+    };
+
+    private static final StringGuacamoleProperty HMAC_JDBC_PASSWORD = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-jdbc-password"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_CONFIG_CACHE_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-config-cache-size"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_CONFIG_CACHE_TTL = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-config-cache-ttl"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_RATE_LIMIT = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-rate-limit"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_RATE_LIMIT_BURST = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-rate-limit-burst"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_RATE_LIMIT_CLIENTS = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-rate-limit-clients"; }
+    };
+
+    private static final StringGuacamoleProperty HMAC_AUDIT_LOG = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-audit-log"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_AUDIT_BUFFER_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-audit-buffer-size"; }
+    };
+
+    private static final StringGuacamoleProperty HMAC_AUDIT_OVERFLOW = new StringGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-audit-overflow"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_AUDIT_MAX_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-audit-max-size"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_AUDIT_MAX_FILES = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-audit-max-files"; }
+    };
+
+    private static final IntegerGuacamoleProperty HMAC_DECISION_CACHE_SIZE = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() { return "hmac-decision-cache-size"; }
+    };
+
+    /**
+     * Default maximum number of verified requests remembered across session
+     * refreshes.
+     */
+    public static final int DEFAULT_DECISION_CACHE_SIZE = 10000;
+
+    /**
+     * Default maximum number of used signatures remembered when
+     * hmac-single-use is enabled.
+     */
+    public static final int DEFAULT_REPLAY_CACHE_SIZE = 100000;
+
+    /**
+     * Default number of configurations, and separately of unknown names,
+     * cached in front of the jdbc store or a custom ConfigurationSource.
+     */
+    public static final int DEFAULT_CONFIG_CACHE_SIZE = 10000;
+
+    /**
+     * Default time in milliseconds before cached lookups are refreshed.
+     */
+    public static final int DEFAULT_CONFIG_CACHE_TTL = 60000;
+
+    /**
+     * Default number of requests a client may make at once when
+     * hmac-rate-limit is set.
+     */
+    public static final int DEFAULT_RATE_LIMIT_BURST = 10;
+
+    /**
+     * Default number of clients whose request rate is tracked at once.
+     */
+    public static final int DEFAULT_RATE_LIMIT_CLIENTS = 10000;
+
+    /**
+     * Default number of audit events buffered for the writer thread.
+     */
+    public static final int DEFAULT_AUDIT_BUFFER_SIZE = 8192;
+
+    /**
+     * Default size in bytes at which the audit log is rolled over.
+     */
+    public static final int DEFAULT_AUDIT_MAX_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * Default number of rolled over audit logs kept.
+     */
+    public static final int DEFAULT_AUDIT_MAX_FILES = 5;
+
+    /**
+     * Default number of synthetic signature verifications per algorithm
+     * performed during warm-up.
+     */
+    public static final int DEFAULT_WARM_UP_VERIFICATIONS = 20000;
+
+    /**
+     * Time in milliseconds spent measuring each algorithm at startup.
+     */
+    private static final long ALGORITHM_BENCHMARK_MILLIS = 200;
+
+    /**
+     * Length in bytes of the longest MAC of any supported algorithm
+     * (HmacSHA512).
+     */
+    private static final int MAX_MAC_LENGTH = 64;
+
     /**
      * Guacamole server environment.
      */
@@ -64,6 +260,8 @@ public class HmacAuthenticationProvider extends SimpleAuthenticationProvider {
     public static final String SIGNATURE_PARAM = "signature";
     public static final String CONNECTION_PARAM = "connection";
     public static final String TIMESTAMP_PARAM = "timestamp";
+    public static final String KEY_ID_PARAM = "keyid";
+    public static final String ALGORITHM_PARAM = "algorithm";
 
     /**
      * The default filename to use for the configuration, if not defined within
@@ -71,107 +269,522 @@ public class HmacAuthenticationProvider extends SimpleAuthenticationProvider {
      */
     public static final String DEFAULT_HMAC_CONFIG = "hmac-config.xml";
 
-    private static final List<String> SIGNED_PARAMETERS = new ArrayList<String>() {{
-        add("hostname");
-        add("port");
-    }};
+    /**
+     * The directory of additional configuration files, read alongside
+     * hmac-config.xml if it exists.
+     */
+    public static final String DEFAULT_HMAC_CONFIG_DIR = "hmac-config.d";
+
+    /**
+     * The filename of the compiled configuration catalog, used when
+     * hmac-config-store is "compiled".
+     */
+    public static final String DEFAULT_COMPILED_CONFIG = "hmac-config.bin";
+
+    // Values of hmac-config-store
+    public static final String STORE_XML = "xml";
+    public static final String STORE_COMPILED = "compiled";
+    public static final String STORE_INDEXED = "indexed";
+    public static final String STORE_JDBC = "jdbc";
 
     private SignatureVerifier signatureVerifier;
 
+    /**
+     * The value of hmac-server-id, included in every signed message.
+     */
+    private final String serverId;
+
     private final TimeProviderInterface timeProvider;
 
+    /**
+     * Whether configurations are read from signed request parameters rather
+     * than looked up by name.
+     */
+    private final boolean stateless;
+
+    /**
+     * The catalog of named configurations, selected by hmac-config-store. In
+     * stateless mode this holds optional templates, and is null if there is
+     * no catalog file.
+     */
+    private final ConfigurationSource configurationSource;
+
+    /**
+     * Signatures which have already been used, or null if signed URLs may be
+     * reused until they expire.
+     */
+    private final ReplayCache replayCache;
+
+    /**
+     * Requests which have already been verified, or null if every request is
+     * verified in full.
+     */
+    private final AuthorizationCache authorizationCache;
+
+    /**
+     * How long a cached decision may be relied on, in milliseconds. The jdbc
+     * and custom stores do not report changes through their version, so
+     * their decisions last no longer than a cached lookup. The file-based
+     * stores report every change, so theirs are not limited.
+     */
+    private final long decisionTtl;
+
+    /**
+     * Per-client request rates, or null if clients are not rate limited.
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Record of every authentication decision, or null if not enabled.
+     */
+    private final AuditLog auditLog;
+
+    /**
+     * Per-stage counters and latencies, exposed through JMX.
+     */
+    private final HmacMetrics metrics;
+
+    /**
+     * Shared instances of every configuration currently authorized.
+     */
+    private final ConfigurationInterner interner = new ConfigurationInterner();
+
     public HmacAuthenticationProvider(TimeProviderInterface timeProvider, Environment environment) throws GuacamoleException {
         this.timeProvider = timeProvider;
         this.environment = environment;
 
-        String secretKey = GuacamoleProperties.getRequiredProperty(SECRET_KEY);
-        signatureVerifier = new SignatureVerifier(secretKey);
+        signatureVerifier = createSignatureVerifier();
+        serverId = GuacamoleProperties.getRequiredProperty(HMAC_SERVER_ID);
 
         if (GuacamoleProperties.getProperty(TIMESTAMP_AGE_LIMIT) == null){
            timestampAgeLimit = TEN_MINUTES;
         }  else {
            timestampAgeLimit = GuacamoleProperties.getProperty(TIMESTAMP_AGE_LIMIT);
         }
+
+        stateless = GuacamoleProperties.getProperty(HMAC_STATELESS, false);
+        String store = GuacamoleProperties.getProperty(HMAC_CONFIG_STORE, STORE_XML);
+        configurationSource = createConfigurationSource(store);
+        decisionTtl = (STORE_XML.equals(store) || STORE_COMPILED.equals(store) || STORE_INDEXED.equals(store))
+                ? Long.MAX_VALUE : GuacamoleProperties.getProperty(HMAC_CONFIG_CACHE_TTL, DEFAULT_CONFIG_CACHE_TTL);
+
+        if (GuacamoleProperties.getProperty(HMAC_SINGLE_USE, false)) {
+            if (timestampAgeLimit <= 0) {
+                throw new GuacamoleServerException("hmac-single-use requires a non-zero timestamp-age-limit.");
+            }
+            replayCache = new ReplayCache(timestampAgeLimit,
+                    GuacamoleProperties.getProperty(HMAC_REPLAY_CACHE_SIZE, DEFAULT_REPLAY_CACHE_SIZE));
+        } else {
+            replayCache = null;
+        }
+
+        int decisionCacheSize = GuacamoleProperties.getProperty(HMAC_DECISION_CACHE_SIZE, DEFAULT_DECISION_CACHE_SIZE);
+        authorizationCache = (decisionCacheSize > 0) ? new AuthorizationCache(decisionCacheSize) : null;
+
+        int rateLimit = GuacamoleProperties.getProperty(HMAC_RATE_LIMIT, 0);
+        rateLimiter = (rateLimit > 0) ? new RateLimiter(rateLimit,
+                GuacamoleProperties.getProperty(HMAC_RATE_LIMIT_BURST, DEFAULT_RATE_LIMIT_BURST),
+                GuacamoleProperties.getProperty(HMAC_RATE_LIMIT_CLIENTS, DEFAULT_RATE_LIMIT_CLIENTS)) : null;
+
+        auditLog = createAuditLog();
+
+        metrics = new HmacMetrics(configurationSource, authorizationCache, replayCache, auditLog);
+        metrics.register();
+
+        boolean warmUp = GuacamoleProperties.getProperty(HMAC_WARM_UP, false);
+        boolean benchmark = GuacamoleProperties.getProperty(HMAC_ALGORITHM_BENCHMARK, true);
+        if (warmUp || benchmark) {
+            if (warmUp) {
+                metrics.recordWarmUpStarted();
+            }
+            startBackgroundTasks(warmUp ? GuacamoleProperties.getProperty(HMAC_WARM_UP_VERIFICATIONS,
+                    DEFAULT_WARM_UP_VERIFICATIONS) : -1, benchmark);
+        }
     }
 
     public HmacAuthenticationProvider() throws GuacamoleException {
-        timeProvider = new DefaultTimeProvider();
-        environment = new LocalEnvironment();
+        this(new DefaultTimeProvider(), new LocalEnvironment());
+    }
 
-        String secretKey = GuacamoleProperties.getRequiredProperty(SECRET_KEY);
-        signatureVerifier = new SignatureVerifier(secretKey);
+    /**
+     * Creates a SignatureVerifier for the default secret-key and any keys
+     * listed in hmac-key-ids. Each listed key is read from
+     * hmac-key.&lt;id&gt;, with an optional expiry in milliseconds since the
+     * epoch from hmac-key-expires.&lt;id&gt;.
+     */
+    private SignatureVerifier createSignatureVerifier() throws GuacamoleException {
+
+        List<SigningKey> keys = new ArrayList<SigningKey>();
+        String keyIds = GuacamoleProperties.getProperty(HMAC_KEY_IDS);
+        if (keyIds != null) {
+            for (String keyId : keyIds.split(",")) {
+                keyId = keyId.trim();
+                if (keyId.isEmpty()) {
+                    continue;
+                }
+
+                String secret = GuacamoleProperties.getRequiredProperty(keyProperty("hmac-key." + keyId));
+                String expires = GuacamoleProperties.getProperty(keyProperty("hmac-key-expires." + keyId));
+                long expiresAt = SigningKey.NO_EXPIRY;
+                if (expires != null) {
+                    try {
+                        expiresAt = Long.parseLong(expires.trim());
+                    } catch (NumberFormatException e) {
+                        throw new GuacamoleServerException("Invalid hmac-key-expires." + keyId + ": " + expires, e);
+                    }
+                }
+
+                keys.add(new SigningKey(keyId, secret, expiresAt));
+            }
+        }
 
-        if (GuacamoleProperties.getProperty(TIMESTAMP_AGE_LIMIT) == null){
-           timestampAgeLimit = TEN_MINUTES;
-        }  else {
-           timestampAgeLimit = GuacamoleProperties.getProperty(TIMESTAMP_AGE_LIMIT);
+        // The unnamed default key is only optional when a key ring is used
+        String secretKey = keys.isEmpty()
+                ? GuacamoleProperties.getRequiredProperty(SECRET_KEY)
+                : GuacamoleProperties.getProperty(SECRET_KEY);
+        SigningKey defaultKey = (secretKey == null) ? null : new SigningKey(null, secretKey, SigningKey.NO_EXPIRY);
+
+        List<String> algorithms = new ArrayList<String>();
+        for (String algorithm : GuacamoleProperties.getProperty(HMAC_ALGORITHMS, SigningKey.DEFAULT_ALGORITHM).split(",")) {
+            if (!algorithm.trim().isEmpty()) {
+                algorithms.add(algorithm);
+            }
+        }
+
+        try {
+            return new SignatureVerifier(defaultKey, keys, algorithms);
+        } catch (IllegalArgumentException e) {
+            throw new GuacamoleServerException("Invalid hmac-algorithms: " + e.getMessage(), e);
         }
     }
 
     /**
-     * Check if the timestamp has expired.
+     * Starts a background thread which warms up the provider and then logs
+     * how many verifications per second this host performs with each
+     * accepted algorithm, so that startup is not delayed by either.
      *
-     * @return A boolean
+     * @param warmUpVerifications
+     *     The number of synthetic verifications per algorithm to warm up
+     *     with, or -1 to skip warm-up.
+     *
+     * @param benchmark
+     *     Whether to measure and log each algorithm.
      */
-    private boolean checkTimestamp(String ts) {
-        if (timestampAgeLimit == 0) {
-            return true;
+    private void startBackgroundTasks(final int warmUpVerifications, final boolean benchmark) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (warmUpVerifications >= 0) {
+                    warmUp(warmUpVerifications);
+                }
+                if (benchmark) {
+                    for (String algorithm : signatureVerifier.getAlgorithms()) {
+                        double rate = signatureVerifier.benchmark(algorithm, ALGORITHM_BENCHMARK_MILLIS);
+                        logger.info("{}: {} signature verifications per second per thread.",
+                                algorithm, Math.round(rate));
+                    }
+                }
+            }
+        }, "hmac-startup");
+        thread.setDaemon(true);
+        if (warmUpVerifications < 0) {
+            thread.setPriority(Thread.MIN_PRIORITY);
         }
+        thread.start();
+    }
 
-        if (ts == null) {
-            return false;
+    /**
+     * Does everything the first requests would otherwise pay for: loads the
+     * catalog, discovers the SAX parser used by later reloads, looks up the
+     * MAC implementations and runs synthetic verifications through them
+     * until the JIT has compiled the verification path. Failures are logged
+     * and leave the provider to load lazily as usual.
+     */
+    private void warmUp(int verifications) {
+        long start = System.currentTimeMillis();
+        try {
+            if (configurationSource != null) {
+                configurationSource.getConfigurationCount();
+            }
+            XmlConfigurationStore.createReader();
+            for (String algorithm : signatureVerifier.getAlgorithms()) {
+                signatureVerifier.warmUp(algorithm, verifications);
+            }
+        } catch (GuacamoleException e) {
+            logger.warn("Unable to load configuration during warm-up: {}", e.getMessage());
+            logger.debug("Warm-up failed.", e);
+        } catch (SAXException e) {
+            logger.warn("Unable to create XML parser during warm-up: {}", e.getMessage());
+            logger.debug("Warm-up failed.", e);
+        } finally {
+            long duration = System.currentTimeMillis() - start;
+            metrics.recordWarmUpFinished(duration);
+            logger.info("Warm-up completed in {} ms.", duration);
         }
+    }
 
-        long timestamp = Long.parseLong(ts, 10);
-        long now = timeProvider.currentTimeMillis();
+    /**
+     * Returns whether warm-up, if enabled by hmac-warm-up, has finished.
+     * Requests are accepted either way; until then they may be slower.
+     *
+     * @return
+     *     true if the provider is warmed up or warm-up is disabled.
+     */
+    public boolean isReady() {
+        return metrics.isReady();
+    }
+
+    /**
+     * Returns a property with the given name, for names which depend on
+     * configuration.
+     */
+    private static StringGuacamoleProperty keyProperty(final String name) {
+        return new StringGuacamoleProperty() {
+            @Override
+            public String getName() { return name; }
+        };
+    }
+
+    /**
+     * Creates the ConfigurationSource named by the hmac-config-store
+     * property, which is either one of the built-in stores or the name of a
+     * class implementing ConfigurationSource. Sources other than the
+     * file-based stores are wrapped in a CachingConfigurationSource unless
+     * hmac-config-cache-size is 0.
+     */
+    private ConfigurationSource createConfigurationSource(String store) throws GuacamoleException {
+
+        if (STORE_JDBC.equals(store)) {
+            return cached(new JdbcConfigurationSource(
+                    GuacamoleProperties.getRequiredProperty(HMAC_JDBC_URL),
+                    GuacamoleProperties.getProperty(HMAC_JDBC_USERNAME),
+                    GuacamoleProperties.getProperty(HMAC_JDBC_PASSWORD)));
+        }
+
+        if (!STORE_XML.equals(store) && !STORE_COMPILED.equals(store) && !STORE_INDEXED.equals(store)) {
+            return cached(loadConfigurationSource(store));
+        }
+
+        File catalog = new File(environment.getGuacamoleHome(),
+                STORE_COMPILED.equals(store) ? DEFAULT_COMPILED_CONFIG : DEFAULT_HMAC_CONFIG);
+        File catalogDir = new File(environment.getGuacamoleHome(), DEFAULT_HMAC_CONFIG_DIR);
+        boolean sharded = STORE_XML.equals(store) && catalogDir.isDirectory();
+
+        // Templates are optional in stateless mode
+        if (stateless && !catalog.exists() && !sharded) {
+            logger.info("No \"{}\" found, signed URLs must carry complete configurations.", catalog);
+            return null;
+        }
+
+        if (STORE_COMPILED.equals(store)) {
+            return new CompiledConfigurationStore(catalog);
+        }
+
+        ConfigurationLimits limits = createConfigurationLimits();
+        if (STORE_INDEXED.equals(store)) {
+            return new IndexedConfigurationStore(catalog, limits);
+        }
+
+        if (sharded) {
+            return new ShardedConfigurationStore(catalog, catalogDir, serverId, limits);
+        }
+
+        return new XmlConfigurationStore(catalog, serverId, limits);
+    }
+
+    /**
+     * Reads the limits every configuration file must respect from the
+     * hmac-config-max-* properties.
+     */
+    private ConfigurationLimits createConfigurationLimits() throws GuacamoleException {
+        Integer maxBytes = GuacamoleProperties.getProperty(HMAC_CONFIG_MAX_BYTES);
+        return new ConfigurationLimits(
+                (maxBytes == null) ? ConfigurationLimits.DEFAULT_MAX_BYTES : maxBytes,
+                GuacamoleProperties.getProperty(HMAC_CONFIG_MAX_DEPTH, ConfigurationLimits.DEFAULT_MAX_DEPTH),
+                GuacamoleProperties.getProperty(HMAC_CONFIG_MAX_CONFIGS, ConfigurationLimits.DEFAULT_MAX_CONFIGS),
+                GuacamoleProperties.getProperty(HMAC_CONFIG_MAX_ATTRIBUTE_LENGTH,
+                        ConfigurationLimits.DEFAULT_MAX_ATTRIBUTE_LENGTH));
+    }
+
+    /**
+     * Creates the AuditLog configured by hmac-audit-log, if any. Relative
+     * paths are within GUACAMOLE_HOME.
+     */
+    private AuditLog createAuditLog() throws GuacamoleException {
+
+        String path = GuacamoleProperties.getProperty(HMAC_AUDIT_LOG);
+        if (path == null) {
+            return null;
+        }
+
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(environment.getGuacamoleHome(), path);
+        }
+
+        String overflow = GuacamoleProperties.getProperty(HMAC_AUDIT_OVERFLOW, "drop");
+        AuditLog.OverflowPolicy policy;
+        if ("drop".equals(overflow)) {
+            policy = AuditLog.OverflowPolicy.DROP;
+        } else if ("block".equals(overflow)) {
+            policy = AuditLog.OverflowPolicy.BLOCK;
+        } else {
+            throw new GuacamoleServerException("Unknown hmac-audit-overflow \"" + overflow + "\".");
+        }
+
+        try {
+            return new AuditLog(file,
+                    GuacamoleProperties.getProperty(HMAC_AUDIT_BUFFER_SIZE, DEFAULT_AUDIT_BUFFER_SIZE),
+                    policy,
+                    GuacamoleProperties.getProperty(HMAC_AUDIT_MAX_SIZE, DEFAULT_AUDIT_MAX_SIZE),
+                    GuacamoleProperties.getProperty(HMAC_AUDIT_MAX_FILES, DEFAULT_AUDIT_MAX_FILES));
+        } catch (IOException e) {
+            throw new GuacamoleServerException("Unable to open audit log \"" + file + "\".", e);
+        }
+    }
+
+    /**
+     * Wraps the given source in a read-through cache, if enabled.
+     */
+    private ConfigurationSource cached(ConfigurationSource source) throws GuacamoleException {
+
+        int size = GuacamoleProperties.getProperty(HMAC_CONFIG_CACHE_SIZE, DEFAULT_CONFIG_CACHE_SIZE);
+        if (size <= 0) {
+            return source;
+        }
+
+        return new CachingConfigurationSource(source, size,
+                GuacamoleProperties.getProperty(HMAC_CONFIG_CACHE_TTL, DEFAULT_CONFIG_CACHE_TTL));
+    }
+
+    /**
+     * Instantiates a custom ConfigurationSource by class name, passing the
+     * Guacamole environment to its constructor if it accepts one.
+     */
+    private ConfigurationSource loadConfigurationSource(String className) throws GuacamoleException {
+
+        try {
+            Class<?> type = Class.forName(className, true, HmacAuthenticationProvider.class.getClassLoader());
+            if (!ConfigurationSource.class.isAssignableFrom(type)) {
+                throw new GuacamoleServerException("\"" + className + "\" is not a ConfigurationSource.");
+            }
+
+            try {
+                return (ConfigurationSource) type.getConstructor(Environment.class).newInstance(environment);
+            } catch (NoSuchMethodException e) {
+                return (ConfigurationSource) type.getConstructor().newInstance();
+            }
+        } catch (ClassNotFoundException e) {
+            throw new GuacamoleServerException("Unknown hmac-config-store \"" + className + "\".", e);
+        } catch (NoSuchMethodException e) {
+            throw new GuacamoleServerException("\"" + className + "\" has no usable constructor.", e);
+        } catch (InstantiationException e) {
+            throw new GuacamoleServerException("Unable to create \"" + className + "\".", e);
+        } catch (IllegalAccessException e) {
+            throw new GuacamoleServerException("Unable to create \"" + className + "\".", e);
+        } catch (InvocationTargetException e) {
+            throw new GuacamoleServerException("Unable to create \"" + className + "\".", e.getCause());
+        }
+    }
+
+    /**
+     * Records the outcome of an authentication attempt in the metrics and,
+     * if enabled, the audit log.
+     */
+    private void recordOutcome(HmacMetrics.Outcome outcome, long now, String connection,
+            HttpServletRequest request) {
+        metrics.recordOutcome(outcome);
+        if (auditLog != null) {
+            auditLog.publish(now, outcome, connection, request.getRemoteAddr());
+        }
+    }
+
+    /**
+     * Check if the timestamp has expired.
+     *
+     * @return A boolean
+     */
+    private boolean checkTimestamp(long timestamp, long now) {
         return timestamp + timestampAgeLimit > now;
     }
 
     /**
-     * Parse guacamole configuration xml.
+     * Parses a timestamp in milliseconds without throwing, so malformed
+     * timestamps cost no more to refuse than expired ones.
+     *
+     * @return
+     *     The timestamp, or -1 if the value is not a decimal number of at
+     *     most 18 digits.
+     */
+    static long parseTimestamp(String value) {
+        int length = value.length();
+        if (length == 0 || length > 18) {
+            return -1;
+        }
+
+        long timestamp = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            timestamp = timestamp * 10 + (c - '0');
+        }
+        return timestamp;
+    }
+
+    /**
+     * Parse guacamole configuration xml, along with every file within
+     * hmac-config.d if that directory exists. This always reads the files
+     * from disk; authentication looks configurations up through
+     * getConfigurationSource() instead.
      *
      * @return
      *     A Map of all configurations parsed from the config file.
      * @throws GuacamoleException 
      */
-    public synchronized Map<String, GuacamoleConfiguration> parseConfigFile() 
+    public Map<String, GuacamoleConfiguration> parseConfigFile() 
             throws GuacamoleException {
 
         // Get configuration file
         File configFile = new File(environment.getGuacamoleHome(), DEFAULT_HMAC_CONFIG);
+
+        // Shards are parsed in parallel and merged with the single file
+        File configDir = new File(environment.getGuacamoleHome(), DEFAULT_HMAC_CONFIG_DIR);
+        if (configDir.isDirectory()) {
+            return ShardedConfigurationStore.parse(configFile, configDir);
+        }
         
         if(!configFile.exists()) {
             logger.debug("Configuration file not found: \"{}\".", configFile);
-            //return null;
         }
 
         logger.debug("Reading configuration file: \"{}\"", configFile);
 
-        // Parse document
-        try {
-            // Set up parser
-            HmacConfigurationHandler contentHandler = new HmacConfigurationHandler();
+        return XmlConfigurationStore.parse(configFile);
 
-            XMLReader parser = XMLReaderFactory.createXMLReader();
-            parser.setContentHandler(contentHandler);
+    }
 
-            // Read and parse file
-            Reader reader = new BufferedReader(new FileReader(configFile));
-            parser.parse(new InputSource(reader));
-            reader.close();
-            
-            Map<String, GuacamoleConfiguration> configs = null;
-            configs = contentHandler.getConfigs();
-            
-            return configs;
-        }
-        catch (IOException e) {
-            throw new GuacamoleServerException("Error reading configuration file " + DEFAULT_HMAC_CONFIG, e);
-        }
-        catch (SAXException e) {
-            throw new GuacamoleServerException("Error parsing XML file " + DEFAULT_HMAC_CONFIG, e);
-        }
+    /**
+     * Returns the record of used signatures.
+     *
+     * @return
+     *     The ReplayCache, or null if hmac-single-use is not enabled.
+     */
+    public ReplayCache getReplayCache() {
+        return replayCache;
+    }
 
+    /**
+     * Returns the catalog which configurations are looked up from during
+     * authentication.
+     *
+     * @return
+     *     The ConfigurationSource selected by hmac-config-store, or null if
+     *     hmac-stateless is enabled and there is no catalog file.
+     */
+    public ConfigurationSource getConfigurationSource() {
+        return configurationSource;
     }
 
     /**
@@ -228,7 +841,35 @@ public class HmacAuthenticationProvider extends SimpleAuthenticationProvider {
     @Override
     public Map<String, GuacamoleConfiguration> getAuthorizedConfigurations(Credentials credentials) 
             throws GuacamoleException {
+        return getAuthorizedConfigurations(credentials, null);
+    }
+
+    /**
+     * Verifies the signed request within the given credentials, returning
+     * the configuration it authorizes.
+     *
+     * @param credentials
+     *     The credentials containing the signed request.
+     *
+     * @param previousSignature
+     *     The signature an existing session was authenticated with, or null.
+     *     Presenting that same signature again refreshes the session rather
+     *     than counting as a replay.
+     *
+     * @return
+     *     A Map containing only the requested configuration, or null if the
+     *     request is not authorized.
+     *
+     * @throws GuacamoleException
+     *     If the configurations cannot be read.
+     */
+    private Map<String, GuacamoleConfiguration> getAuthorizedConfigurations(Credentials credentials,
+            String previousSignature) throws GuacamoleException {
 
+        // The checks below run cheapest first, so that malformed, stale and
+        // flooding requests are refused before any lookup or HMAC work
+
+        // 1. Required parameters
         HttpServletRequest request = credentials.getRequest();
 
         if(request == null)
@@ -237,76 +878,178 @@ public class HmacAuthenticationProvider extends SimpleAuthenticationProvider {
         }
 
         // Debug all HTTP_GET variables.
-        //@SuppressWarnings("unchecked")
-        Map<String, String[]> params = request.getParameterMap();
-
-        for (String name : params.keySet()) {
-            String value = request.getParameter(name);
+        if (logger.isDebugEnabled()) {
+            //@SuppressWarnings("unchecked")
+            Map<String, String[]> params = request.getParameterMap();
 
-            logger.debug("kv: {} = {}", name, value);
-        }
+            for (String name : params.keySet()) {
+                String value = request.getParameter(name);
 
-        Map<String, GuacamoleConfiguration> configs = null;
-
-        synchronized (this) {
-            configs = parseConfigFile();
+                logger.debug("kv: {} = {}", name, value);
+            }
         }
 
-        // If no mapping available, report as such
-        if (configs == null) {
-            throw new GuacamoleServerException("Configuration could not be read.");
-        }
+        long now = timeProvider.currentTimeMillis();
+        String connection = request.getParameter(CONNECTION_PARAM);
 
         String signature = request.getParameter(SIGNATURE_PARAM);
         logger.debug("Get hmac signature: {}", signature);
         if (signature == null) {
+            recordOutcome(HmacMetrics.Outcome.MISSING_SIGNATURE, now, connection, request);
             return null;
         }
 
-        String connection = request.getParameter(CONNECTION_PARAM);
         logger.debug("Get connection: {}", connection);
         if (connection == null) {
+            recordOutcome(HmacMetrics.Outcome.MISSING_CONNECTION, now, connection, request);
             return null;
         }
 
         String timestamp = request.getParameter(TIMESTAMP_PARAM);
-        logger.debug("Timestamp Age Limit: {}", timestampAgeLimit);
-        logger.debug("Check timestamp: {}", checkTimestamp(timestamp));
-        if (!checkTimestamp(timestamp)) {
+        if (timestamp == null) {
+            recordOutcome(HmacMetrics.Outcome.MISSING_TIMESTAMP, now, connection, request);
             return null;
         }
 
-        GuacamoleConfiguration config = configs.get(connection);
-        if(config == null) {
-            return null;
+        // 2. Timestamp, which is opaque if it never expires
+        long signedAt = -1;
+        if (timestampAgeLimit != 0) {
+            signedAt = parseTimestamp(timestamp);
+            if (signedAt < 0) {
+                recordOutcome(HmacMetrics.Outcome.MALFORMED_TIMESTAMP, now, connection, request);
+                return null;
+            }
+
+            logger.debug("Timestamp Age Limit: {}", timestampAgeLimit);
+            if (!checkTimestamp(signedAt, now)) {
+                recordOutcome(HmacMetrics.Outcome.EXPIRED_TIMESTAMP, now, connection, request);
+                return null;
+            }
         }
 
-        String serverId = GuacamoleProperties.getRequiredProperty(HMAC_SERVER_ID);
+        // 3. Sessions refreshing with an already verified URL skip the rest.
+        // Stateless URLs carry parameters the cache key does not cover.
+        long lookupStart = System.nanoTime();
+        long version = (configurationSource == null) ? 0 : configurationSource.getVersion();
 
-        StringBuilder message = new StringBuilder(timestamp)
-            .append(config.getProtocol())
-            .append(serverId);
+        String keyId = request.getParameter(KEY_ID_PARAM);
+        String algorithm = request.getParameter(ALGORITHM_PARAM);
+        GuacamoleConfiguration config = null;
+        if (authorizationCache != null && !stateless) {
+            config = authorizationCache.get(connection, keyId, algorithm, timestamp, signature, version, now);
+        }
+
+        if (config == null) {
 
-        for (String name : SIGNED_PARAMETERS) {
-            String value = config.getParameter(name);
-            if (value == null) {
-                continue;
+            // 4. Per-client rate limit on anything needing real work
+            if (rateLimiter != null) {
+                String client = request.getRemoteAddr();
+                if (!rateLimiter.tryAcquire(client == null ? "" : client, now)) {
+                    logger.debug("Rate limit exceeded by {}", client);
+                    recordOutcome(HmacMetrics.Outcome.RATE_LIMITED, now, connection, request);
+                    return null;
+                }
             }
-            message.append(name);
-            message.append(value);
-        }
 
-        logger.debug("Get hmac message: {}", message.toString());
+            // 5. Configuration lookup
+            config = (configurationSource == null) ? null : configurationSource.getConfiguration(connection);
+            metrics.recordConfigLookup(System.nanoTime() - lookupStart, version);
+
+            // Everything after the timestamp is encoded once per configuration,
+            // or taken from the request itself in stateless mode
+            byte[] suffix;
+            if (stateless) {
+                SignedParameters signed = SignedParameters.fromRequest(request, connection, config, serverId);
+                if (signed == null) {
+                    recordOutcome(HmacMetrics.Outcome.UNKNOWN_CONNECTION, now, connection, request);
+                    return null;
+                }
+                config = signed.getConfiguration();
+                suffix = signed.getSignedSuffix();
+            } else if (config == null) {
+                recordOutcome(HmacMetrics.Outcome.UNKNOWN_CONNECTION, now, connection, request);
+                return null;
+            } else if (config instanceof HmacConfiguration) {
+                suffix = ((HmacConfiguration) config).getSignedSuffix(serverId);
+            } else {
+                suffix = HmacConfiguration.encodeSignedSuffix(config, serverId);
+            }
 
-        if (!signatureVerifier.verifySignature(signature, message.toString())) {
-            return null;
+            // 6. Signature
+            long verifyStart = System.nanoTime();
+            boolean verified = signatureVerifier.verifySignature(keyId, algorithm, signature, timestamp,
+                    suffix, now);
+            metrics.recordSignatureVerification(System.nanoTime() - verifyStart);
+            if (!verified) {
+                recordOutcome(HmacMetrics.Outcome.BAD_SIGNATURE, now, connection, request);
+                return null;
+            }
+
+            // Sessions share one frozen instance of each distinct configuration
+            config = interner.intern(config);
+
+            if (authorizationCache != null && !stateless) {
+                // A decision lasts no longer than the key which signed it
+                long expiresAt = (timestampAgeLimit == 0) ? Long.MAX_VALUE : signedAt + timestampAgeLimit;
+                expiresAt = Math.min(expiresAt, signatureVerifier.getKeyExpiry(keyId));
+                if (decisionTtl != Long.MAX_VALUE) {
+                    expiresAt = Math.min(expiresAt, now + decisionTtl);
+                }
+                authorizationCache.put(connection, keyId, algorithm, timestamp, signature, config, version,
+                        expiresAt);
+            }
         }
 
-        // Only return the config for the requested connection        
-        configs.clear();
-        configs.put(connection, config);
+        // 7. Each signature may only be used once if single-use is enabled
+        if (replayCache != null && !signature.equals(previousSignature)) {
+            byte[] mac = new byte[MAX_MAC_LENGTH];
+            int macLength = Base64Codec.decode(signature, mac);
+            if (macLength < 0) {
+                recordOutcome(HmacMetrics.Outcome.BAD_SIGNATURE, now, connection, request);
+                return null;
+            }
+            ReplayCache.Result result = replayCache.markUsed(Arrays.copyOf(mac, macLength), signedAt, now);
+            if (result != ReplayCache.Result.ACCEPTED) {
+                logger.debug("Refusing signature: {}", result);
+                recordOutcome(HmacMetrics.Outcome.REPLAY_REFUSED, now, connection, request);
+                return null;
+            }
+        }
 
-        return configs;
+        recordOutcome(HmacMetrics.Outcome.SUCCESS, now, connection, request);
+
+        // Only return the config for the requested connection
+        return Collections.singletonMap(connection, config);
+    }
+
+    /**
+     * Returns the per-stage authentication metrics exposed through JMX.
+     *
+     * @return
+     *     The metrics of this provider.
+     */
+    public HmacMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the record of authentication decisions.
+     *
+     * @return
+     *     The AuditLog, or null if hmac-audit-log is not set.
+     */
+    public AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    /**
+     * Returns the cache of verified requests.
+     *
+     * @return
+     *     The AuthorizationCache, or null if hmac-decision-cache-size is 0.
+     */
+    public AuthorizationCache getAuthorizationCache() {
+        return authorizationCache;
     }
 
     @Override
@@ -322,28 +1065,39 @@ public class HmacAuthenticationProvider extends SimpleAuthenticationProvider {
         }
 
         // Return user context restricted to authorized configs
-        return new SimpleUserContext(this, authenticatedUser.getIdentifier(), configs);
+        return new HmacUserContext(this, authenticatedUser.getIdentifier(), configs);
 
     }
 
     @Override
-    // Re-parse config xml for logged in user on each page refresh.
+    // Re-authorize on each page refresh. A refresh with an already verified
+    // URL is answered from the decision cache, and configurations come from
+    // the catalog already loaded, which is only reloaded when it changes.
     public AuthenticatedUser updateAuthenticatedUser(AuthenticatedUser authenticatedUser, Credentials credentials) 
             throws GuacamoleException {
+
+        // A refresh of the same session may present its signature again, and
+        // keeps its identifier
+        String previousSignature = null;
+        String previousIdentifier = null;
+        if (authenticatedUser instanceof HmacAuthenticatedUser && authenticatedUser.getAuthenticationProvider() == this) {
+            previousSignature = ((HmacAuthenticatedUser) authenticatedUser).getSignature();
+            previousIdentifier = authenticatedUser.getIdentifier();
+        }
     
         // Get configurations
-        Map<String, GuacamoleConfiguration> configs = getAuthorizedConfigurations(credentials);
+        Map<String, GuacamoleConfiguration> configs = getAuthorizedConfigurations(credentials, previousSignature);
 
         // Return as unauthorized if not authorized to retrieve configs
         if (configs == null) {
             return null;
         }
 
-        return new HmacAuthenticatedUser(this, credentials, configs);
+        return new HmacAuthenticatedUser(this, credentials, configs, previousIdentifier);
     }
 
     @Override
-    // Create new user context with new config.
+    // Keep the user context unless its config has changed.
     public UserContext updateUserContext(UserContext context, AuthenticatedUser authenticatedUser) 
             throws GuacamoleException {
                         
@@ -355,7 +1109,13 @@ public class HmacAuthenticationProvider extends SimpleAuthenticationProvider {
             return null;
         }
 
+        // Keep the existing context if nothing it was built from has changed
+        if (context instanceof HmacUserContext
+                && ((HmacUserContext) context).isCurrent(this, authenticatedUser.getIdentifier(), configs)) {
+            return context;
+        }
+
         // Return user context restricted to authorized configs
-        return new SimpleUserContext(this, authenticatedUser.getIdentifier(), configs);
+        return new HmacUserContext(this, authenticatedUser.getIdentifier(), configs);
     }
 }
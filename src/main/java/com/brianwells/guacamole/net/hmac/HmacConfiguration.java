@@ -0,0 +1,256 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * GuacamoleConfiguration which caches the fixed part of its signed message.
+ * The message a signed URL must match is the timestamp followed by the
+ * protocol, the server ID, and the name and value of each signed parameter;
+ * everything after the timestamp depends only on the configuration and is
+ * encoded to UTF-8 once rather than on every request.
+ *
+ * A configuration may also inherit parameters from a template. These are
+ * held in a map shared with every other configuration using the template,
+ * and are overridden by any parameters set on the configuration itself.
+ */
+public class HmacConfiguration extends GuacamoleConfiguration {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The parameters covered by the signature, in signing order.
+     */
+    static final List<String> SIGNED_PARAMETERS = Collections.unmodifiableList(Arrays.asList(
+        "hostname",
+        "port"
+    ));
+
+    /**
+     * The encoded suffix and the server ID it was encoded for, or null if
+     * not yet encoded or invalidated by a change to this configuration.
+     */
+    private transient volatile SignedSuffix signedSuffix;
+
+    /**
+     * Whether this configuration may be shared and so can no longer be
+     * modified.
+     */
+    private boolean frozen;
+
+    /**
+     * The key this configuration is interned under, referenced here so the
+     * interner keeps its entry exactly as long as this configuration is in
+     * use.
+     */
+    private transient Object internKey;
+
+    /**
+     * Parameters inherited from a template, shared with other configurations
+     * and never modified, or null.
+     */
+    private Map<String, String> inherited;
+
+    public HmacConfiguration() {
+    }
+
+    public HmacConfiguration(GuacamoleConfiguration config) {
+        super(config);
+    }
+
+    /**
+     * Returns the UTF-8 encoding of everything in the signed message after
+     * the timestamp. The returned array must not be modified.
+     *
+     * @param serverId
+     *     The value of hmac-server-id.
+     *
+     * @return
+     *     The encoded protocol, server ID and signed parameters.
+     */
+    public byte[] getSignedSuffix(String serverId) {
+        SignedSuffix suffix = signedSuffix;
+        if (suffix == null || !suffix.serverId.equals(serverId)) {
+            suffix = new SignedSuffix(serverId, encodeSignedSuffix(this, serverId));
+            signedSuffix = suffix;
+        }
+        return suffix.bytes;
+    }
+
+    /**
+     * Encodes everything in the signed message after the timestamp for an
+     * arbitrary configuration.
+     *
+     * @param config
+     *     The configuration being signed.
+     *
+     * @param serverId
+     *     The value of hmac-server-id.
+     *
+     * @return
+     *     The UTF-8 encoded protocol, server ID and signed parameters.
+     */
+    public static byte[] encodeSignedSuffix(GuacamoleConfiguration config, String serverId) {
+
+        StringBuilder message = new StringBuilder()
+            .append(config.getProtocol())
+            .append(serverId);
+
+        for (String name : SIGNED_PARAMETERS) {
+            String value = config.getParameter(name);
+            if (value == null) {
+                continue;
+            }
+            message.append(name);
+            message.append(value);
+        }
+
+        try {
+            return message.toString().getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported.", e);
+        }
+
+    }
+
+    /**
+     * Prevents any further modification, so this configuration can be
+     * shared between sessions.
+     */
+    void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * @return true if this configuration can no longer be modified.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Sets the parameters this configuration inherits. The given map is
+     * shared rather than copied, so must never be modified.
+     *
+     * @param inherited
+     *     The inherited parameters, or null.
+     */
+    void setInheritedParameters(Map<String, String> inherited) {
+        checkModifiable();
+        this.inherited = inherited;
+        signedSuffix = null;
+    }
+
+    /**
+     * Copies the inherited parameters into this configuration's own
+     * parameters, so they can be changed individually.
+     */
+    private void copyInheritedParameters() {
+        Map<String, String> merged = new HashMap<String, String>(inherited);
+        merged.putAll(super.getParameters());
+        inherited = null;
+        super.setParameters(merged);
+    }
+
+    Object getInternKey() {
+        return internKey;
+    }
+
+    void setInternKey(Object internKey) {
+        this.internKey = internKey;
+    }
+
+    private void checkModifiable() {
+        if (frozen)
+            throw new UnsupportedOperationException("Shared configurations cannot be modified.");
+    }
+
+    @Override
+    public void setProtocol(String protocol) {
+        checkModifiable();
+        super.setProtocol(protocol);
+        signedSuffix = null;
+    }
+
+    @Override
+    public void setParameter(String name, String value) {
+        checkModifiable();
+        super.setParameter(name, value);
+        signedSuffix = null;
+    }
+
+    @Override
+    public void unsetParameter(String name) {
+        checkModifiable();
+        if (inherited != null && inherited.containsKey(name))
+            copyInheritedParameters();
+        super.unsetParameter(name);
+        signedSuffix = null;
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String value = super.getParameter(name);
+        if (value == null && inherited != null)
+            value = inherited.get(name);
+        return value;
+    }
+
+    @Override
+    public Set<String> getParameterNames() {
+        if (inherited == null)
+            return super.getParameterNames();
+
+        Set<String> names = new HashSet<String>(inherited.keySet());
+        names.addAll(super.getParameterNames());
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If any parameters are inherited, the returned map is an unmodifiable
+     * copy of all parameters.
+     */
+    @Override
+    public Map<String, String> getParameters() {
+        if (inherited != null) {
+            Map<String, String> merged = new HashMap<String, String>(inherited);
+            merged.putAll(super.getParameters());
+            return Collections.unmodifiableMap(merged);
+        }
+        return frozen ? Collections.unmodifiableMap(super.getParameters()) : super.getParameters();
+    }
+
+    @Override
+    public void setParameters(Map<String, String> parameters) {
+        checkModifiable();
+        inherited = null;
+        super.setParameters(parameters);
+        signedSuffix = null;
+    }
+
+    /**
+     * An encoded suffix along with the server ID it includes.
+     */
+    private static class SignedSuffix {
+
+        final String serverId;
+        final byte[] bytes;
+
+        SignedSuffix(String serverId, byte[] bytes) {
+            this.serverId = serverId;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Offline compiler which converts hmac-config.xml into the memory-mappable
+ * catalog read by CompiledConfigurationStore. Run as:
+ *
+ * <pre>
+ * java -cp guacamole-auth-hmac-config.jar:guacamole-common.jar:guacamole-ext.jar:slf4j-api.jar \
+ *     com.brianwells.guacamole.net.hmac.HmacConfigurationCompiler hmac-config.xml hmac-config.bin
+ * </pre>
+ *
+ * The input is parsed within ConfigurationLimits.DEFAULT unless limits are
+ * given after the file names, using the provider's property names, e.g.
+ * "hmac-config-max-bytes=1048576". Any of hmac-config-max-bytes,
+ * hmac-config-max-depth, hmac-config-max-configs and
+ * hmac-config-max-attribute-length may be given.
+ *
+ * The output is written to a temporary file and renamed into place, so a
+ * running provider never maps a partially written catalog.
+ */
+public class HmacConfigurationCompiler {
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 2) {
+            System.err.println("Usage: HmacConfigurationCompiler <hmac-config.xml> <hmac-config.bin> [hmac-config-max-*=value...]");
+            System.exit(1);
+        }
+
+        ConfigurationLimits limits = parseLimits(args, 2);
+
+        List<ConfigurationPattern> patterns = new ArrayList<ConfigurationPattern>();
+        Map<String, GuacamoleConfiguration> configs = XmlConfigurationStore.parse(new File(args[0]), patterns, limits);
+        if (!patterns.isEmpty()) {
+            System.err.println("Configuration patterns cannot be compiled; use hmac-config-store \"xml\" instead.");
+            System.exit(1);
+        }
+
+        compile(configs, new File(args[1]));
+        System.out.println("Compiled " + configs.size() + " configurations to " + args[1]);
+
+    }
+
+    /**
+     * Returns ConfigurationLimits.DEFAULT overridden by any limits given as
+     * "property=value" arguments from the given index onwards.
+     *
+     * @throws IllegalArgumentException
+     *     If an argument is not a known limit with a numeric value.
+     */
+    static ConfigurationLimits parseLimits(String[] args, int start) {
+
+        ConfigurationLimits defaults = ConfigurationLimits.DEFAULT;
+        long maxBytes = defaults.getMaxBytes();
+        int maxDepth = defaults.getMaxDepth();
+        int maxConfigs = defaults.getMaxConfigs();
+        int maxAttributeLength = defaults.getMaxAttributeLength();
+
+        for (int i = start; i < args.length; i++) {
+
+            int equals = args[i].indexOf('=');
+            String name = (equals < 0) ? args[i] : args[i].substring(0, equals);
+            String value = (equals < 0) ? "" : args[i].substring(equals + 1);
+
+            try {
+                if (name.equals("hmac-config-max-bytes"))
+                    maxBytes = Long.parseLong(value);
+                else if (name.equals("hmac-config-max-depth"))
+                    maxDepth = Integer.parseInt(value);
+                else if (name.equals("hmac-config-max-configs"))
+                    maxConfigs = Integer.parseInt(value);
+                else if (name.equals("hmac-config-max-attribute-length"))
+                    maxAttributeLength = Integer.parseInt(value);
+                else
+                    throw new IllegalArgumentException("Unknown limit \"" + name + "\".");
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + name + ": \"" + value + "\".", e);
+            }
+
+        }
+
+        return new ConfigurationLimits(maxBytes, maxDepth, maxConfigs, maxAttributeLength);
+
+    }
+
+    /**
+     * Writes the given configurations to the given file in compiled form.
+     *
+     * @param configs
+     *     The configurations to compile, indexed by name.
+     *
+     * @param output
+     *     The file to write. It is replaced atomically if it exists.
+     *
+     * @throws GuacamoleException
+     *     If the catalog cannot be written.
+     */
+    public static void compile(Map<String, GuacamoleConfiguration> configs, File output)
+            throws GuacamoleException {
+
+        try {
+            byte[] catalog = compile(configs);
+
+            File directory = output.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile(output.getName(), ".tmp", directory);
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(catalog);
+                }
+                finally {
+                    out.close();
+                }
+
+                if (!temp.renameTo(output))
+                    throw new IOException("Unable to rename " + temp + " to " + output);
+            }
+            finally {
+                temp.delete();
+            }
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Error writing compiled configuration " + output, e);
+        }
+
+    }
+
+    /**
+     * Returns the compiled form of the given configurations.
+     */
+    static byte[] compile(Map<String, GuacamoleConfiguration> configs) throws IOException {
+
+        int count = configs.size();
+        int slotCount = CompiledConfigurationFormat.slotCount(count);
+        int[] slotHashes = new int[slotCount];
+        int[] slotOffsets = new int[slotCount];
+
+        // Entries follow the header and slot table
+        long base = CompiledConfigurationFormat.HEADER_SIZE
+                + (long) slotCount * CompiledConfigurationFormat.SLOT_SIZE;
+
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(entryBytes);
+
+        for (Map.Entry<String, GuacamoleConfiguration> entry : configs.entrySet()) {
+
+            String name = entry.getKey();
+            GuacamoleConfiguration config = entry.getValue();
+
+            long offset = base + entries.size();
+            if (offset > Integer.MAX_VALUE)
+                throw new IOException("Compiled configuration exceeds 2GB.");
+
+            // Insert into index
+            int hash = CompiledConfigurationFormat.spread(name.hashCode());
+            int slot = hash & (slotCount - 1);
+            while (slotOffsets[slot] != 0)
+                slot = (slot + 1) & (slotCount - 1);
+            slotHashes[slot] = hash;
+            slotOffsets[slot] = (int) offset;
+
+            // Write entry
+            writeString(entries, name);
+            writeString(entries, config.getProtocol());
+
+            List<String> names = new ArrayList<String>(config.getParameterNames());
+            entries.writeInt(names.size());
+            for (String parameter : names) {
+                writeString(entries, parameter);
+                writeString(entries, config.getParameter(parameter));
+            }
+
+        }
+
+        entries.flush();
+
+        ByteArrayOutputStream catalogBytes = new ByteArrayOutputStream((int) base + entryBytes.size());
+        DataOutputStream catalog = new DataOutputStream(catalogBytes);
+        catalog.writeInt(CompiledConfigurationFormat.MAGIC);
+        catalog.writeInt(CompiledConfigurationFormat.VERSION);
+        catalog.writeInt(count);
+        catalog.writeInt(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            catalog.writeInt(slotHashes[i]);
+            catalog.writeInt(slotOffsets[i]);
+        }
+        entryBytes.writeTo(catalog);
+        catalog.flush();
+
+        return catalogBytes.toByteArray();
+
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string. Null is written as length -1.
+     */
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException, UnsupportedEncodingException {
+
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+
+    }
+
+}
@@ -1,6 +1,9 @@
 package com.brianwells.guacamole.net.hmac;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
 import org.xml.sax.Attributes;
@@ -9,14 +12,46 @@ import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * XML parser for the configuration file used by the HmacAuthenticationProvider auth provider.
+ *
+ * Besides &lt;config&gt; elements, the file may define named &lt;template&gt;
+ * elements holding a protocol and parameters common to many configurations.
+ * A configuration or another template names the template it extends with a
+ * template attribute, and need then only give the parameters which differ.
+ * Templates must be defined before they are used. Every configuration
+ * extending a template shares the template's parameters rather than holding
+ * its own copy, and equal names and values are shared throughout the file.
+ *
+ * A &lt;config-pattern&gt; element defines every connection whose name matches
+ * the regular expression in its name attribute, with parameter values
+ * referring to captured groups. Patterns are kept separately from the
+ * configurations and are tried in order only for names not defined exactly.
+ *
+ * The nesting depth, number of definitions and length of attribute values
+ * are checked against a ConfigurationLimits as the file is parsed, failing
+ * at the first violation.
  */
 public class HmacConfigurationHandler extends DefaultHandler {
-    
+
     /**
      * Map of all configurations, indexed by name.
      */
     private Map<String, GuacamoleConfiguration> configs = new HashMap<String, GuacamoleConfiguration>();
 
+    /**
+     * All patterns, in the order defined.
+     */
+    private final List<ConfigurationPattern> patterns = new ArrayList<ConfigurationPattern>();
+
+    /**
+     * Map of all templates defined so far, indexed by name.
+     */
+    private final Map<String, Template> templates = new HashMap<String, Template>();
+
+    /**
+     * Canonical instances of every protocol, parameter name and value seen.
+     */
+    private final Map<String, String> strings = new HashMap<String, String>();
+
     /**
      * The name of the current configuration, if any.
      */
@@ -26,7 +61,49 @@ public class HmacConfigurationHandler extends DefaultHandler {
      * The current configuration being parsed, if any.
      */
     private GuacamoleConfiguration currentConfig = null;
-     
+
+    /**
+     * The current template being parsed, if any.
+     */
+    private Template currentTemplate = null;
+
+    /**
+     * The current pattern being parsed, if any.
+     */
+    private ConfigurationPattern currentPattern = null;
+
+    /**
+     * The limits the parsed file must respect.
+     */
+    private final ConfigurationLimits limits;
+
+    /**
+     * The depth of the current element, the root element being 1.
+     */
+    private int depth = 0;
+
+    /**
+     * The number of configurations, patterns and templates started so far.
+     */
+    private int definitions = 0;
+
+    /**
+     * Creates a new HmacConfigurationHandler with the default limits.
+     */
+    public HmacConfigurationHandler() {
+        this(ConfigurationLimits.DEFAULT);
+    }
+
+    /**
+     * Creates a new HmacConfigurationHandler with the given limits.
+     *
+     * @param limits
+     *     The limits the parsed file must respect.
+     */
+    public HmacConfigurationHandler(ConfigurationLimits limits) {
+        this.limits = limits;
+    }
+
     /**
      * Returns the a map of all available configurations as parsed from the
      * XML file.
@@ -36,10 +113,22 @@ public class HmacConfigurationHandler extends DefaultHandler {
     public Map<String, GuacamoleConfiguration> getConfigs() {
         return configs;
     }
-    
+
+    /**
+     * Returns all patterns parsed from the XML file, in the order they were
+     * defined.
+     *
+     * @return A list of all patterns.
+     */
+    public List<ConfigurationPattern> getPatterns() {
+        return patterns;
+    }
+
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
 
+        depth--;
+
         // If end of config element, add to map
         if (localName.equals("config")) {
 
@@ -52,15 +141,30 @@ public class HmacConfigurationHandler extends DefaultHandler {
 
         }
 
+        else if (localName.equals("config-pattern")) {
+            patterns.add(currentPattern);
+            currentPattern = null;
+        }
+
+        // Templates are complete, and never change, once defined
+        else if (localName.equals("template")) {
+            currentTemplate.parameters = Collections.unmodifiableMap(currentTemplate.parameters);
+            templates.put(currentTemplate.name, currentTemplate);
+            currentTemplate = null;
+        }
+
     }
 
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+
+        checkLimits(localName, attributes);
+
         // Begin configuration parsing if config element
         if (localName.equals("config")) {
 
             // Ensure this config is on the top level
-            if (currentName != null)
+            if (currentName != null || currentTemplate != null || currentPattern != null)
                 throw new SAXException("Configurations cannot be nested.");
 
             // Read name
@@ -68,28 +172,194 @@ public class HmacConfigurationHandler extends DefaultHandler {
             if (name == null)
                 throw new SAXException("Each configuration must have a name.");
 
-            // Read protocol
+            // Read protocol, which may be inherited
+            Template template = getTemplate(attributes.getValue("template"));
             String protocol = attributes.getValue("protocol");
+            if (protocol == null && template != null)
+                protocol = template.protocol;
             if (protocol == null)
                 throw new SAXException("Each configuration must have a protocol.");
 
             // Create config stub
+            HmacConfiguration config = new HmacConfiguration();
+            config.setProtocol(intern(protocol));
+            if (template != null)
+                config.setInheritedParameters(template.parameters);
+
             currentName = name;
-            currentConfig = new GuacamoleConfiguration();
-            currentConfig.setProtocol(protocol);
+            currentConfig = config;
+
+        }
+
+        // Begin pattern parsing if config-pattern element
+        else if (localName.equals("config-pattern")) {
+
+            if (currentName != null || currentTemplate != null || currentPattern != null)
+                throw new SAXException("Configurations cannot be nested.");
+
+            String regex = attributes.getValue("name");
+            if (regex == null)
+                throw new SAXException("Each configuration pattern must have a name.");
+
+            Template template = getTemplate(attributes.getValue("template"));
+            String protocol = attributes.getValue("protocol");
+            if (protocol == null && template != null)
+                protocol = template.protocol;
+            if (protocol == null)
+                throw new SAXException("Each configuration pattern must have a protocol.");
+
+            try {
+                currentPattern = new ConfigurationPattern(regex, intern(protocol),
+                        (template == null) ? null : template.parameters);
+            }
+            catch (IllegalArgumentException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+
+        }
+
+        // Begin template parsing if template element
+        else if (localName.equals("template")) {
+
+            if (currentName != null || currentTemplate != null || currentPattern != null)
+                throw new SAXException("Templates cannot be nested.");
+
+            String name = attributes.getValue("name");
+            if (name == null)
+                throw new SAXException("Each template must have a name.");
+            if (templates.containsKey(name))
+                throw new SAXException("Template \"" + name + "\" is defined more than once.");
+
+            // Templates may themselves extend a template
+            Template parent = getTemplate(attributes.getValue("template"));
+            String protocol = attributes.getValue("protocol");
+            if (protocol == null && parent != null)
+                protocol = parent.protocol;
+
+            currentTemplate = new Template(name, (protocol == null) ? null : intern(protocol));
+            if (parent != null)
+                currentTemplate.parameters.putAll(parent.parameters);
 
         }
 
         // Add parameters to existing configuration
         else if (localName.equals("param")) {
 
+            String name = intern(attributes.getValue("name"));
+            String value = intern(attributes.getValue("value"));
+
+            if (currentTemplate != null) {
+                currentTemplate.parameters.put(name, value);
+                return;
+            }
+
+            if (currentPattern != null) {
+                try {
+                    currentPattern.addParameter(name, value);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new SAXException(e.getMessage(), e);
+                }
+                return;
+            }
+
             // Ensure a corresponding config exists
             if (currentConfig == null) {
                 throw new SAXException("Parameter without corresponding configuration.");
             }
 
-            currentConfig.setParameter(attributes.getValue("name"), attributes.getValue("value"));
+            currentConfig.setParameter(name, value);
+
+        }
+
+    }
+
+    /**
+     * Fails if the given element, which is starting, exceeds any limit.
+     *
+     * @throws SAXException
+     *     If the element is nested too deeply, defines one configuration too
+     *     many, or has an attribute value which is too long.
+     */
+    private void checkLimits(String localName, Attributes attributes) throws SAXException {
+
+        if (++depth > limits.getMaxDepth())
+            throw new SAXException("Elements are nested more than " + limits.getMaxDepth() + " deep.");
+
+        if ((localName.equals("config") || localName.equals("config-pattern") || localName.equals("template"))
+                && ++definitions > limits.getMaxConfigs())
+            throw new SAXException("More than " + limits.getMaxConfigs()
+                    + " configurations, patterns and templates are defined.");
+
+        for (int i = 0; i < attributes.getLength(); i++) {
+            if (attributes.getValue(i).length() > limits.getMaxAttributeLength())
+                throw new SAXException("Attribute \"" + attributes.getLocalName(i) + "\" of <" + localName
+                        + "> is longer than " + limits.getMaxAttributeLength() + " characters.");
+        }
+
+    }
+
+    /**
+     * Returns the template with the given name.
+     *
+     * @param name
+     *     The name of the template, or null.
+     *
+     * @return
+     *     The template, or null if no name was given.
+     *
+     * @throws SAXException
+     *     If no template with the given name has been defined.
+     */
+    private Template getTemplate(String name) throws SAXException {
+
+        if (name == null)
+            return null;
+
+        Template template = templates.get(name);
+        if (template == null)
+            throw new SAXException("Template \"" + name + "\" is not defined before its use.");
+
+        return template;
+
+    }
+
+    /**
+     * Returns the canonical instance of the given string.
+     */
+    private String intern(String value) {
+
+        if (value == null)
+            return null;
+
+        String canonical = strings.get(value);
+        if (canonical == null) {
+            strings.put(value, value);
+            canonical = value;
+        }
+
+        return canonical;
+
+    }
+
+    /**
+     * A named set of parameters, and optionally a protocol, which
+     * configurations may extend.
+     */
+    private static class Template {
+
+        final String name;
+        final String protocol;
+
+        /**
+         * The parameters of this template, including those it inherits.
+         * Unmodifiable once the template has been parsed.
+         */
+        Map<String, String> parameters = new HashMap<String, String>();
 
+        Template(String name, String protocol) {
+            this.name = name;
+            this.protocol = protocol;
         }
 
     }
@@ -0,0 +1,314 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and latency histograms for each stage of authentication. All
+ * recording is lock-free and striped by thread; totals are only computed
+ * when read through JMX.
+ */
+public class HmacMetrics implements HmacMetricsMBean {
+
+    /**
+     * The name this MBean is registered under.
+     */
+    public static final String OBJECT_NAME = "com.brianwells.guacamole.net.hmac:type=HmacAuthenticationProvider";
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(HmacMetrics.class);
+
+    /**
+     * The result of a single authentication attempt.
+     */
+    public enum Outcome {
+        SUCCESS,
+        MISSING_SIGNATURE,
+        MISSING_CONNECTION,
+        MISSING_TIMESTAMP,
+        MALFORMED_TIMESTAMP,
+        EXPIRED_TIMESTAMP,
+        RATE_LIMITED,
+        UNKNOWN_CONNECTION,
+        BAD_SIGNATURE,
+        REPLAY_REFUSED
+    }
+
+    private final StripedCounter[] outcomes = new StripedCounter[Outcome.values().length];
+
+    private final LatencyHistogram configLookup = new LatencyHistogram();
+
+    private final LatencyHistogram signatureVerification = new LatencyHistogram();
+
+    /**
+     * The catalog version seen by the last lookup, and when it was first
+     * seen.
+     */
+    private volatile long lastVersion = -1;
+    private volatile long lastReloadTime;
+
+    /**
+     * Whether any warm-up has finished, and how long it took.
+     */
+    private volatile boolean ready = true;
+    private volatile long warmUpMillis;
+
+    private final ConfigurationSource configurationSource;
+    private final AuthorizationCache authorizationCache;
+    private final ReplayCache replayCache;
+    private final AuditLog auditLog;
+
+    /**
+     * Creates a new HmacMetrics reporting on the given components, any of
+     * which may be null if disabled.
+     */
+    public HmacMetrics(ConfigurationSource configurationSource,
+            AuthorizationCache authorizationCache, ReplayCache replayCache,
+            AuditLog auditLog) {
+
+        this.configurationSource = configurationSource;
+        this.authorizationCache = authorizationCache;
+        this.replayCache = replayCache;
+        this.auditLog = auditLog;
+
+        for (int i = 0; i < outcomes.length; i++)
+            outcomes[i] = new StripedCounter();
+
+    }
+
+    /**
+     * Registers this MBean with the platform MBean server, replacing any
+     * instance registered by a previously constructed provider. Failure to
+     * register is logged and otherwise ignored.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+        catch (JMException e) {
+            logger.warn("Unable to register metrics MBean: {}", e.getMessage());
+            logger.debug("MBean registration failed.", e);
+        }
+        catch (SecurityException e) {
+            logger.warn("Unable to register metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Records the outcome of an authentication attempt.
+     */
+    public void recordOutcome(Outcome outcome) {
+        outcomes[outcome.ordinal()].increment();
+    }
+
+    /**
+     * Records the duration of a configuration lookup and the catalog version
+     * it observed.
+     */
+    public void recordConfigLookup(long nanos, long version) {
+        configLookup.record(nanos);
+        if (version != lastVersion) {
+            lastVersion = version;
+            lastReloadTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records the duration of a signature verification.
+     */
+    public void recordSignatureVerification(long nanos) {
+        signatureVerification.record(nanos);
+    }
+
+    /**
+     * Records that warm-up has begun, so the provider is not yet ready.
+     */
+    public void recordWarmUpStarted() {
+        ready = false;
+    }
+
+    /**
+     * Records that warm-up has finished after the given time.
+     */
+    public void recordWarmUpFinished(long millis) {
+        warmUpMillis = millis;
+        ready = true;
+    }
+
+    public long getOutcomeCount(Outcome outcome) {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return getOutcomeCount(Outcome.SUCCESS);
+    }
+
+    @Override
+    public long getMissingSignatureCount() {
+        return getOutcomeCount(Outcome.MISSING_SIGNATURE);
+    }
+
+    @Override
+    public long getMissingConnectionCount() {
+        return getOutcomeCount(Outcome.MISSING_CONNECTION);
+    }
+
+    @Override
+    public long getMissingTimestampCount() {
+        return getOutcomeCount(Outcome.MISSING_TIMESTAMP);
+    }
+
+    @Override
+    public long getExpiredTimestampCount() {
+        return getOutcomeCount(Outcome.EXPIRED_TIMESTAMP);
+    }
+
+    @Override
+    public long getMalformedTimestampCount() {
+        return getOutcomeCount(Outcome.MALFORMED_TIMESTAMP);
+    }
+
+    @Override
+    public long getRateLimitedCount() {
+        return getOutcomeCount(Outcome.RATE_LIMITED);
+    }
+
+    @Override
+    public long getUnknownConnectionCount() {
+        return getOutcomeCount(Outcome.UNKNOWN_CONNECTION);
+    }
+
+    @Override
+    public long getBadSignatureCount() {
+        return getOutcomeCount(Outcome.BAD_SIGNATURE);
+    }
+
+    @Override
+    public long getReplayRefusedCount() {
+        return getOutcomeCount(Outcome.REPLAY_REFUSED);
+    }
+
+    @Override
+    public long getConfigLookupCount() {
+        return configLookup.count();
+    }
+
+    @Override
+    public double getConfigLookupMeanMicros() {
+        return configLookup.meanMicros();
+    }
+
+    @Override
+    public double getConfigLookupP50Micros() {
+        return configLookup.percentileMicros(50);
+    }
+
+    @Override
+    public double getConfigLookupP99Micros() {
+        return configLookup.percentileMicros(99);
+    }
+
+    @Override
+    public long getSignatureVerificationCount() {
+        return signatureVerification.count();
+    }
+
+    @Override
+    public double getSignatureVerificationMeanMicros() {
+        return signatureVerification.meanMicros();
+    }
+
+    @Override
+    public double getSignatureVerificationP50Micros() {
+        return signatureVerification.percentileMicros(50);
+    }
+
+    @Override
+    public double getSignatureVerificationP99Micros() {
+        return signatureVerification.percentileMicros(99);
+    }
+
+    @Override
+    public int getCatalogSize() {
+        if (configurationSource == null) {
+            return 0;
+        }
+        try {
+            return configurationSource.getConfigurationCount();
+        }
+        catch (GuacamoleException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public long getCatalogVersion() {
+        if (configurationSource == null) {
+            return 0;
+        }
+        try {
+            return configurationSource.getVersion();
+        }
+        catch (GuacamoleException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public long getLastReloadTime() {
+        return lastReloadTime;
+    }
+
+    @Override
+    public long getDecisionCacheHits() {
+        return (authorizationCache == null) ? 0 : authorizationCache.getHits();
+    }
+
+    @Override
+    public long getDecisionCacheMisses() {
+        return (authorizationCache == null) ? 0 : authorizationCache.getMisses();
+    }
+
+    @Override
+    public int getReplayCacheSize() {
+        return (replayCache == null) ? 0 : replayCache.size();
+    }
+
+    @Override
+    public long getReplayCacheRejectedFull() {
+        return (replayCache == null) ? 0 : replayCache.getRejectedFull();
+    }
+
+    @Override
+    public long getAuditEventsWritten() {
+        return (auditLog == null) ? 0 : auditLog.getWritten();
+    }
+
+    @Override
+    public long getAuditEventsDropped() {
+        return (auditLog == null) ? 0 : auditLog.getDropped();
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public long getWarmUpMillis() {
+        return warmUpMillis;
+    }
+
+}
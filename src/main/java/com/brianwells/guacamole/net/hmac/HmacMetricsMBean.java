@@ -0,0 +1,83 @@
+package com.brianwells.guacamole.net.hmac;
+
+/**
+ * JMX view of the HmacAuthenticationProvider, registered as
+ * com.brianwells.guacamole.net.hmac:type=HmacAuthenticationProvider.
+ * Latencies are in microseconds; percentiles are upper bounds accurate to
+ * within 25%.
+ */
+public interface HmacMetricsMBean {
+
+    // Authentication outcomes
+
+    long getSuccessCount();
+
+    long getMissingSignatureCount();
+
+    long getMissingConnectionCount();
+
+    long getMissingTimestampCount();
+
+    long getMalformedTimestampCount();
+
+    long getExpiredTimestampCount();
+
+    long getRateLimitedCount();
+
+    long getUnknownConnectionCount();
+
+    long getBadSignatureCount();
+
+    long getReplayRefusedCount();
+
+    // Configuration lookup, including any reload of the catalog
+
+    long getConfigLookupCount();
+
+    double getConfigLookupMeanMicros();
+
+    double getConfigLookupP50Micros();
+
+    double getConfigLookupP99Micros();
+
+    // Signature verification
+
+    long getSignatureVerificationCount();
+
+    double getSignatureVerificationMeanMicros();
+
+    double getSignatureVerificationP50Micros();
+
+    double getSignatureVerificationP99Micros();
+
+    // Configuration catalog
+
+    int getCatalogSize();
+
+    long getCatalogVersion();
+
+    long getLastReloadTime();
+
+    // Caches
+
+    long getDecisionCacheHits();
+
+    long getDecisionCacheMisses();
+
+    int getReplayCacheSize();
+
+    long getReplayCacheRejectedFull();
+
+    // Audit log
+
+    long getAuditEventsWritten();
+
+    long getAuditEventsDropped();
+
+    // Warm-up
+
+    boolean isReady();
+
+    long getWarmUpMillis();
+
+}
@@ -0,0 +1,81 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.Map;
+import org.glyptodon.guacamole.net.auth.AuthenticationProvider;
+import org.glyptodon.guacamole.net.auth.simple.SimpleUserContext;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * SimpleUserContext which remembers what it was built from, so that a
+ * refresh of the same session can keep it rather than building a new
+ * context and connection directory.
+ *
+ * Authorized configurations are interned by the provider, so equal
+ * configurations are the same instance and a reloaded catalog yields a
+ * different instance only for a configuration which actually changed.
+ * Comparing configurations by identity is therefore both cheap and exact.
+ */
+class HmacUserContext extends SimpleUserContext {
+
+    /**
+     * The identifier of the user this context was created for.
+     */
+    private final String username;
+
+    /**
+     * The configurations this context was created from.
+     */
+    private final Map<String, GuacamoleConfiguration> configs;
+
+    /**
+     * Creates a new HmacUserContext for the given user and configurations.
+     *
+     * @param authProvider
+     *     The AuthenticationProvider creating this context.
+     *
+     * @param username
+     *     The identifier of the user.
+     *
+     * @param configs
+     *     The configurations the user is authorized to use, never modified.
+     */
+    HmacUserContext(AuthenticationProvider authProvider, String username,
+            Map<String, GuacamoleConfiguration> configs) {
+        super(authProvider, username, configs);
+        this.username = username;
+        this.configs = configs;
+    }
+
+    /**
+     * Returns whether this context is exactly what would be created for the
+     * given user and configurations.
+     *
+     * @param authProvider
+     *     The AuthenticationProvider updating the context.
+     *
+     * @param username
+     *     The identifier of the user.
+     *
+     * @param configs
+     *     The configurations the user is now authorized to use.
+     *
+     * @return
+     *     true if this context may be used in place of a new one.
+     */
+    boolean isCurrent(AuthenticationProvider authProvider, String username,
+            Map<String, GuacamoleConfiguration> configs) {
+
+        if (getAuthenticationProvider() != authProvider || !this.username.equals(username)
+                || this.configs.size() != configs.size())
+            return false;
+
+        for (Map.Entry<String, GuacamoleConfiguration> entry : configs.entrySet()) {
+            if (this.configs.get(entry.getKey()) != entry.getValue())
+                return false;
+        }
+
+        return true;
+
+    }
+
+}
@@ -0,0 +1,660 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConfigurationSource which reads single configurations from hmac-config.xml
+ * on demand. A scan of the file records the byte range of each top-level
+ * &lt;config&gt; element by name; each lookup then reads and parses only that
+ * element with HmacConfigurationHandler. Heap usage is limited to the index,
+ * and per-lookup work does not depend on the size of the file. The index is
+ * rebuilt when the file's modification time or length changes. If a rescan
+ * fails, the last good index remains in use and that version of the file is
+ * not scanned again.
+ *
+ * The file must be encoded in UTF-8 (or ASCII), and configuration names may
+ * only use the predefined XML entities and character references. Top-level
+ * &lt;template&gt; elements are indexed too, and parsed ahead of every
+ * configuration read, so should be few and small. &lt;config-pattern&gt;
+ * elements are not supported.
+ *
+ * The scan enforces the same ConfigurationLimits as a full parse, and a
+ * DOCTYPE or other declaration is rejected rather than skipped.
+ */
+public class IndexedConfigurationStore implements ConfigurationSource {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(IndexedConfigurationStore.class);
+
+    /**
+     * Matches the name attribute within a config start tag.
+     */
+    private static final Pattern NAME_ATTRIBUTE = Pattern.compile("\\sname\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+
+    /**
+     * Matches the predefined XML entities and character references.
+     */
+    private static final Pattern ENTITY = Pattern.compile("&(?:(amp|lt|gt|quot|apos)|#([0-9]+)|#x([0-9a-fA-F]+));");
+
+    /**
+     * The configuration file being indexed.
+     */
+    private final File configFile;
+
+    /**
+     * The limits each version of the file must respect.
+     */
+    private final ConfigurationLimits limits;
+
+    /**
+     * The current index, or null if the file has never been indexed.
+     */
+    private final AtomicReference<Index> index = new AtomicReference<Index>();
+
+    /**
+     * Lock held while the file is being reindexed.
+     */
+    private final Object reloadLock = new Object();
+
+    /**
+     * Modification time and length of the last version of the file which
+     * failed to scan, or null.
+     */
+    private volatile long[] failed;
+
+    /**
+     * Creates a new IndexedConfigurationStore which reads the given file.
+     *
+     * @param configFile
+     *     The XML configuration file to read.
+     */
+    public IndexedConfigurationStore(File configFile) {
+        this(configFile, ConfigurationLimits.DEFAULT);
+    }
+
+    /**
+     * Creates a new IndexedConfigurationStore which reads the given file,
+     * within the given limits.
+     *
+     * @param configFile
+     *     The XML configuration file to read.
+     *
+     * @param limits
+     *     The limits each version of the file must respect.
+     */
+    public IndexedConfigurationStore(File configFile, ConfigurationLimits limits) {
+        this.configFile = configFile;
+        this.limits = limits;
+    }
+
+    @Override
+    public GuacamoleConfiguration getConfiguration(String name) throws GuacamoleException {
+
+        Index current = getIndex();
+        GuacamoleConfiguration config = current.read(configFile, name);
+
+        // The file was replaced between indexing and reading; the next stat
+        // will see the change, so reindex once and retry
+        if (config == Index.STALE) {
+            synchronized (reloadLock) {
+                long lastModified = configFile.lastModified();
+                long length = configFile.length();
+                if (index.get() == current && !isFailed(lastModified, length))
+                    reindex(current, lastModified, length);
+            }
+            config = getIndex().read(configFile, name);
+            if (config == Index.STALE)
+                throw new GuacamoleServerException("Configuration file changed while being read.");
+        }
+
+        return config;
+
+    }
+
+    @Override
+    public int getConfigurationCount() throws GuacamoleException {
+        return getIndex().size();
+    }
+
+    @Override
+    public long getVersion() throws GuacamoleException {
+        return getIndex().version;
+    }
+
+    /**
+     * Returns the current index, rescanning the file first if it changed.
+     */
+    private Index getIndex() throws GuacamoleException {
+
+        long lastModified = configFile.lastModified();
+        long length = configFile.length();
+
+        Index current = index.get();
+        if (current != null && (current.isCurrent(lastModified, length) || isFailed(lastModified, length)))
+            return current;
+
+        synchronized (reloadLock) {
+
+            current = index.get();
+            if (current != null && (current.isCurrent(lastModified, length) || isFailed(lastModified, length)))
+                return current;
+
+            return reindex(current, lastModified, length);
+
+        }
+
+    }
+
+    /**
+     * Rescans the file, which has the given attributes, replacing the given
+     * index. If the scan fails, the file is remembered as broken and the
+     * given index is kept. Must be called with reloadLock held.
+     */
+    private Index reindex(Index current, long lastModified, long length) throws GuacamoleException {
+
+        try {
+            Index updated = scan(configFile, (current == null) ? 1 : current.version + 1, limits);
+            index.set(updated);
+            failed = null;
+            logger.info("Indexed {} configurations in \"{}\".", updated.size(), configFile);
+            return updated;
+        }
+        catch (GuacamoleException e) {
+
+            // Nothing to fall back to
+            if (current == null)
+                throw e;
+
+            logger.warn("Unable to reindex \"{}\", continuing with previous index: {}",
+                    configFile, e.getMessage());
+            logger.debug("Configuration reindex failed.", e);
+
+            failed = new long[] { lastModified, length };
+            return current;
+
+        }
+
+    }
+
+    /**
+     * Returns whether the file with the given attributes is known to be
+     * broken.
+     */
+    private boolean isFailed(long lastModified, long length) {
+        long[] attributes = failed;
+        return attributes != null && attributes[0] == lastModified && attributes[1] == length;
+    }
+
+    /**
+     * Scans the given file, recording the byte range of each top-level config
+     * element.
+     */
+    static Index scan(File configFile, long version, ConfigurationLimits limits) throws GuacamoleException {
+
+        long lastModified = configFile.lastModified();
+        long length = configFile.length();
+
+        if (length > limits.getMaxBytes())
+            throw new GuacamoleServerException("Configuration file \"" + configFile + "\" is larger than "
+                    + limits.getMaxBytes() + " bytes.");
+
+        Index result = new Index(version, lastModified, length, limits);
+
+        try {
+            ElementScanner scanner = new ElementScanner(new FileInputStream(configFile), limits);
+            try {
+                scanner.scan(result);
+            }
+            finally {
+                scanner.close();
+            }
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Error indexing configuration file \"" + configFile + "\": "
+                    + e.getMessage(), e);
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Decodes the predefined entities and character references within an
+     * attribute value.
+     */
+    static String decodeAttribute(String value) {
+
+        if (value.indexOf('&') == -1)
+            return value;
+
+        Matcher matcher = ENTITY.matcher(value);
+        StringBuffer decoded = new StringBuffer(value.length());
+        while (matcher.find()) {
+
+            String replacement;
+            if (matcher.group(1) != null) {
+                String entity = matcher.group(1);
+                if (entity.equals("amp")) replacement = "&";
+                else if (entity.equals("lt")) replacement = "<";
+                else if (entity.equals("gt")) replacement = ">";
+                else if (entity.equals("quot")) replacement = "\"";
+                else replacement = "'";
+            }
+            else if (matcher.group(2) != null)
+                replacement = new String(Character.toChars(Integer.parseInt(matcher.group(2))));
+            else
+                replacement = new String(Character.toChars(Integer.parseInt(matcher.group(3), 16)));
+
+            matcher.appendReplacement(decoded, Matcher.quoteReplacement(replacement));
+
+        }
+        matcher.appendTail(decoded);
+        return decoded.toString();
+
+    }
+
+    /**
+     * Byte offsets of each configuration within one version of the file.
+     */
+    static class Index {
+
+        /**
+         * Returned by read() when the bytes at the recorded offset are not
+         * the requested configuration.
+         */
+        static final GuacamoleConfiguration STALE = new GuacamoleConfiguration();
+
+        private final Map<String, Integer> entries = new HashMap<String, Integer>();
+
+        /**
+         * Offset and length of each template element, in file order.
+         */
+        private final List<long[]> templates = new ArrayList<long[]>();
+
+        private long[] offsets = new long[64];
+        private int[] lengths = new int[64];
+        private int count;
+
+        final long version;
+        private final long lastModified;
+        private final long length;
+
+        /**
+         * The limits each configuration read must respect.
+         */
+        private final ConfigurationLimits limits;
+
+        Index(long version, long lastModified, long length, ConfigurationLimits limits) {
+            this.version = version;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.limits = limits;
+        }
+
+        boolean isCurrent(long lastModified, long length) {
+            return this.lastModified == lastModified && this.length == length;
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        void add(String name, long offset, long elementLength) throws IOException {
+
+            if (elementLength > Integer.MAX_VALUE)
+                throw new IOException("Configuration \"" + name + "\" is too large.");
+
+            if (count == offsets.length) {
+                long[] newOffsets = new long[count * 2];
+                int[] newLengths = new int[count * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, count);
+                System.arraycopy(lengths, 0, newLengths, 0, count);
+                offsets = newOffsets;
+                lengths = newLengths;
+            }
+
+            // Later definitions replace earlier ones, as with a full parse
+            offsets[count] = offset;
+            lengths[count] = (int) elementLength;
+            entries.put(name, count++);
+
+        }
+
+        void addTemplate(long offset, long elementLength) throws IOException {
+            if (elementLength > Integer.MAX_VALUE)
+                throw new IOException("Template is too large.");
+            templates.add(new long[] { offset, elementLength });
+        }
+
+        /**
+         * Reads and parses the named configuration, returning null if it is
+         * not indexed or STALE if the file no longer matches this index.
+         */
+        GuacamoleConfiguration read(File configFile, String name) throws GuacamoleException {
+
+            Integer entry = entries.get(name);
+            if (entry == null)
+                return null;
+
+            // Any templates the configuration may extend come first
+            ByteArrayOutputStream document = new ByteArrayOutputStream(lengths[entry] + 32);
+            try {
+                document.write("<configs>".getBytes("UTF-8"));
+                RandomAccessFile file = new RandomAccessFile(configFile, "r");
+                try {
+                    for (long[] template : templates)
+                        copy(file, template[0], (int) template[1], document);
+                    copy(file, offsets[entry], lengths[entry], document);
+                }
+                finally {
+                    file.close();
+                }
+                document.write("</configs>".getBytes("UTF-8"));
+            }
+            catch (IOException e) {
+                return STALE;
+            }
+
+            Map<String, GuacamoleConfiguration> parsed;
+            try {
+                parsed = XmlConfigurationStore.parse(new ByteArrayInputStream(document.toByteArray()), null, limits);
+            }
+            catch (GuacamoleException e) {
+                return STALE;
+            }
+
+            GuacamoleConfiguration config = parsed.get(name);
+            if (config == null || parsed.size() != 1)
+                return STALE;
+
+            return config;
+
+        }
+
+    }
+
+    /**
+     * Appends the given byte range of the file to the given stream.
+     */
+    private static void copy(RandomAccessFile file, long offset, int length, ByteArrayOutputStream output)
+            throws IOException {
+        byte[] element = new byte[length];
+        file.seek(offset);
+        file.readFully(element);
+        output.write(element);
+    }
+
+    /**
+     * Minimal streaming scanner which finds the byte range of each config
+     * element directly below the root element. Comments, CDATA sections and
+     * processing instructions are skipped, and DOCTYPE declarations are
+     * rejected. The file's size, nesting depth, number of definitions and
+     * attribute lengths are checked as it is read.
+     */
+    private static class ElementScanner {
+
+        private final InputStream input;
+        private final byte[] buffer = new byte[65536];
+        private int position;
+        private int limit;
+        private long offset;
+
+        /**
+         * Bytes of the tag currently being read.
+         */
+        private final ByteArrayOutputStream tag = new ByteArrayOutputStream(256);
+
+        private final ConfigurationLimits limits;
+
+        ElementScanner(InputStream input, ConfigurationLimits limits) {
+            this.input = input;
+            this.limits = limits;
+        }
+
+        void close() throws IOException {
+            input.close();
+        }
+
+        /**
+         * Returns the offset of the next byte to be read.
+         */
+        private long offset() {
+            return offset;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = input.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            if (++offset > limits.getMaxBytes())
+                throw new IOException("File is larger than " + limits.getMaxBytes() + " bytes.");
+            return buffer[position++] & 0xFF;
+        }
+
+        private int readRequired() throws IOException {
+            int c = read();
+            if (c == -1)
+                throw new IOException("Unexpected end of configuration file.");
+            return c;
+        }
+
+        /**
+         * Skips input up to and including the given terminator.
+         */
+        private void skipPast(String terminator) throws IOException {
+            int matched = 0;
+            while (matched < terminator.length()) {
+                int c = readRequired();
+                if (c == terminator.charAt(matched)) {
+                    matched++;
+                    continue;
+                }
+
+                // Fall back to the longest prefix of the terminator which the
+                // input read so far still ends with, so "]]]>" ends "]]>"
+                int fallback = matched;
+                while (fallback > 0 && !(c == terminator.charAt(fallback - 1)
+                        && terminator.regionMatches(0, terminator, matched - fallback + 1, fallback - 1)))
+                    fallback--;
+                matched = fallback;
+            }
+        }
+
+        void scan(Index index) throws IOException {
+
+            int depth = 0;
+            int definitions = 0;
+            String configName = null;
+            long configStart = -1;
+            long templateStart = -1;
+
+            int c;
+            while ((c = read()) != -1) {
+
+                if (c != '<')
+                    continue;
+
+                long tagStart = offset() - 1;
+                int next = readRequired();
+
+                // Comments, CDATA and declarations
+                if (next == '!') {
+                    int first = readRequired();
+                    if (first == '-') {
+                        readRequired();
+                        skipPast("-->");
+                    }
+                    else if (first == '[')
+                        skipPast("]]>");
+                    else
+                        throw new IOException("DOCTYPE and other declarations are not allowed.");
+                    continue;
+                }
+
+                // Processing instructions
+                if (next == '?') {
+                    skipPast("?>");
+                    continue;
+                }
+
+                // End tags
+                if (next == '/') {
+                    String name = readTagName(readRequired());
+                    skipPast(">");
+                    depth--;
+                    if (depth == 1 && configName != null && name.equals("config")) {
+                        index.add(configName, configStart, offset() - configStart);
+                        configName = null;
+                    }
+                    else if (depth == 1 && templateStart >= 0 && name.equals("template")) {
+                        index.addTemplate(templateStart, offset() - templateStart);
+                        templateStart = -1;
+                    }
+                    continue;
+                }
+
+                // Start tags
+                boolean selfClosing = readStartTag(next);
+                if (depth == 1 && isDefinition(tagName()) && ++definitions > limits.getMaxConfigs())
+                    throw new IOException("More than " + limits.getMaxConfigs()
+                            + " configurations, patterns and templates are defined.");
+                if (depth == 1 && configName == null && tagName().equals("config")) {
+                    String name = nameAttribute();
+                    if (name == null)
+                        throw new IOException("Each configuration must have a name.");
+                    if (selfClosing)
+                        index.add(name, tagStart, offset() - tagStart);
+                    else {
+                        configName = name;
+                        configStart = tagStart;
+                    }
+                }
+                else if (depth == 1 && configName == null && templateStart < 0 && tagName().equals("template")) {
+                    if (selfClosing)
+                        index.addTemplate(tagStart, offset() - tagStart);
+                    else
+                        templateStart = tagStart;
+                }
+                else if (depth == 1 && tagName().equals("config-pattern"))
+                    throw new IOException("Configuration patterns are not supported by the indexed store.");
+
+                if (depth + 1 > limits.getMaxDepth())
+                    throw new IOException("Elements are nested more than " + limits.getMaxDepth() + " deep.");
+                if (!selfClosing)
+                    depth++;
+
+            }
+
+        }
+
+        private boolean isDefinition(String name) {
+            return name.equals("config") || name.equals("config-pattern") || name.equals("template");
+        }
+
+        /**
+         * Reads a tag name beginning with the given byte.
+         */
+        private String readTagName(int first) throws IOException {
+            tag.reset();
+            int c = first;
+            while (c != '>' && c != '/' && !Character.isWhitespace(c)) {
+                tag.write(c);
+                c = readRequired();
+            }
+            String name = tag.toString("UTF-8");
+            if (c == '>') {
+                // Put back the terminator by rewinding within the buffer
+                position--;
+                offset--;
+            }
+            return name;
+        }
+
+        /**
+         * Reads the remainder of a start tag beginning with the given byte
+         * into the tag buffer, returning whether it was self-closing.
+         */
+        private boolean readStartTag(int first) throws IOException {
+
+            tag.reset();
+            int quote = 0;
+            int quoted = 0;
+            int previous = 0;
+            int c = first;
+
+            while (quote != 0 || c != '>') {
+                if (quote != 0) {
+                    if (c == quote)
+                        quote = 0;
+
+                    // Count characters, not UTF-8 continuation bytes
+                    else if ((c & 0xC0) != 0x80 && ++quoted > limits.getMaxAttributeLength())
+                        throw new IOException("An attribute is longer than "
+                                + limits.getMaxAttributeLength() + " characters.");
+                }
+                else if (c == '"' || c == '\'') {
+                    quote = c;
+                    quoted = 0;
+                }
+                tag.write(c);
+                if (!Character.isWhitespace(c))
+                    previous = c;
+                c = readRequired();
+            }
+
+            return previous == '/';
+
+        }
+
+        /**
+         * Returns the element name of the tag in the tag buffer.
+         */
+        private String tagName() throws UnsupportedEncodingException {
+            String text = tag.toString("UTF-8");
+            int end = 0;
+            while (end < text.length() && !Character.isWhitespace(text.charAt(end))
+                    && text.charAt(end) != '/')
+                end++;
+            return text.substring(0, end);
+        }
+
+        /**
+         * Returns the decoded name attribute of the tag in the tag buffer.
+         */
+        private String nameAttribute() throws UnsupportedEncodingException {
+            Matcher matcher = NAME_ATTRIBUTE.matcher(tag.toString("UTF-8"));
+            if (!matcher.find())
+                return null;
+            String value = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            return decodeAttribute(value);
+        }
+
+    }
+
+}
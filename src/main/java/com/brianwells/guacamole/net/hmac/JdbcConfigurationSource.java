@@ -0,0 +1,181 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Looks configurations up in a database through JDBC. Connections are
+ * stored in two tables:
+ *
+ * <pre>
+ * CREATE TABLE hmac_connection (
+ *     name     VARCHAR(128) PRIMARY KEY,
+ *     protocol VARCHAR(32)  NOT NULL
+ * );
+ *
+ * CREATE TABLE hmac_connection_parameter (
+ *     connection_name VARCHAR(128)  NOT NULL REFERENCES hmac_connection (name),
+ *     name            VARCHAR(128)  NOT NULL,
+ *     value           VARCHAR(4096) NOT NULL,
+ *     PRIMARY KEY (connection_name, name)
+ * );
+ * </pre>
+ *
+ * A database connection is opened for each lookup, so this source is
+ * normally wrapped in a CachingConfigurationSource. The database gives no
+ * notice of changes, so the version reported is constant.
+ */
+public class JdbcConfigurationSource implements EnumerableConfigurationSource {
+
+    private static final String SELECT_CONNECTION =
+            "SELECT protocol FROM hmac_connection WHERE name = ?";
+
+    private static final String SELECT_PARAMETERS =
+            "SELECT name, value FROM hmac_connection_parameter WHERE connection_name = ?";
+
+    private static final String COUNT_CONNECTIONS =
+            "SELECT COUNT(*) FROM hmac_connection";
+
+    private static final String SELECT_NAMES =
+            "SELECT name FROM hmac_connection";
+
+    private final String url;
+    private final String username;
+    private final String password;
+
+    /**
+     * Creates a new JdbcConfigurationSource. The JDBC driver for the given
+     * URL must be on the classpath.
+     *
+     * @param url
+     *     The JDBC URL of the database.
+     *
+     * @param username
+     *     The database user, or null.
+     *
+     * @param password
+     *     The database password, or null.
+     */
+    public JdbcConfigurationSource(String url, String username, String password) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    @Override
+    public GuacamoleConfiguration getConfiguration(String name) throws GuacamoleException {
+
+        try {
+            Connection connection = getConnection();
+            try {
+
+                GuacamoleConfiguration config;
+                PreparedStatement statement = connection.prepareStatement(SELECT_CONNECTION);
+                try {
+                    statement.setString(1, name);
+                    ResultSet result = statement.executeQuery();
+                    if (!result.next())
+                        return null;
+                    config = new HmacConfiguration();
+                    config.setProtocol(result.getString(1));
+                }
+                finally {
+                    statement.close();
+                }
+
+                statement = connection.prepareStatement(SELECT_PARAMETERS);
+                try {
+                    statement.setString(1, name);
+                    ResultSet result = statement.executeQuery();
+                    while (result.next())
+                        config.setParameter(result.getString(1), result.getString(2));
+                }
+                finally {
+                    statement.close();
+                }
+
+                return config;
+
+            }
+            finally {
+                connection.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new GuacamoleServerException("Error reading configuration \"" + name + "\" from database.", e);
+        }
+
+    }
+
+    @Override
+    public int getConfigurationCount() throws GuacamoleException {
+
+        try {
+            Connection connection = getConnection();
+            try {
+                PreparedStatement statement = connection.prepareStatement(COUNT_CONNECTIONS);
+                try {
+                    ResultSet result = statement.executeQuery();
+                    return result.next() ? result.getInt(1) : 0;
+                }
+                finally {
+                    statement.close();
+                }
+            }
+            finally {
+                connection.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new GuacamoleServerException("Error counting configurations in database.", e);
+        }
+
+    }
+
+    @Override
+    public Collection<String> getConfigurationNames() throws GuacamoleException {
+
+        try {
+            Connection connection = getConnection();
+            try {
+                PreparedStatement statement = connection.prepareStatement(SELECT_NAMES);
+                try {
+                    List<String> names = new ArrayList<String>();
+                    ResultSet result = statement.executeQuery();
+                    while (result.next())
+                        names.add(result.getString(1));
+                    return names;
+                }
+                finally {
+                    statement.close();
+                }
+            }
+            finally {
+                connection.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new GuacamoleServerException("Error listing configurations in database.", e);
+        }
+
+    }
+
+    @Override
+    public long getVersion() {
+        return 1;
+    }
+
+    private Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(url, username, password);
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Each power of two is split
+ * into four buckets, so percentiles are accurate to within 25%. Counts are
+ * striped by thread like StripedCounter.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Number of buckets: four for each power of two of a positive long.
+     */
+    private static final int BUCKETS = 64 * 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+
+    private final StripedCounter total = new StripedCounter();
+
+    /**
+     * Records a single duration.
+     *
+     * @param nanos
+     *     The duration, in nanoseconds.
+     */
+    void record(long nanos) {
+        counts.incrementAndGet(StripedCounter.stripe() * BUCKETS + bucket(Math.max(0, nanos)));
+        total.add(nanos);
+    }
+
+    /**
+     * @return The number of durations recorded.
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * @return The mean duration in microseconds, or 0 if nothing was recorded.
+     */
+    double meanMicros() {
+        long count = count();
+        return (count == 0) ? 0 : total.sum() / 1000.0 / count;
+    }
+
+    /**
+     * Returns an upper bound on the given percentile, in microseconds.
+     *
+     * @param percentile
+     *     The percentile, between 0 and 100.
+     *
+     * @return The estimated percentile, or 0 if nothing was recorded.
+     */
+    double percentileMicros(double percentile) {
+
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long value = counts.get(i);
+            merged[i % BUCKETS] += value;
+            count += value;
+        }
+
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += merged[bucket];
+            if (seen >= Math.max(rank, 1))
+                return upperBound(bucket) / 1000.0;
+        }
+
+        return upperBound(BUCKETS - 1) / 1000.0;
+
+    }
+
+    /**
+     * Returns the bucket for the given non-negative value.
+     */
+    static int bucket(long value) {
+        if (value < 4)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 2)) & 3;
+        return exponent * 4 + sub;
+    }
+
+    /**
+     * Returns the smallest value greater than every value in the given bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < 4)
+            return bucket + 1;
+        int exponent = bucket / 4;
+        int sub = bucket % 4;
+        return (long) (5 + sub) << (exponent - 2);
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client token bucket. Each client may make a burst of requests, after
+ * which requests are allowed at a steady rate. Buckets are kept in
+ * independently locked stripes by client address, each a bounded LRU map, so
+ * memory use is fixed regardless of how many addresses are seen. A client
+ * whose bucket is evicted simply starts again with a full bucket.
+ */
+public class RateLimiter {
+
+    /**
+     * Number of independently locked stripes.
+     */
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Tokens added per millisecond.
+     */
+    private final double tokensPerMilli;
+
+    private final double burst;
+
+    private final AtomicLong limited = new AtomicLong();
+
+    /**
+     * Creates a new RateLimiter.
+     *
+     * @param perSecond
+     *     The sustained number of requests allowed per client per second.
+     *
+     * @param burst
+     *     The number of requests a client may make at once.
+     *
+     * @param maxClients
+     *     The maximum number of clients tracked at once.
+     */
+    public RateLimiter(int perSecond, int burst, int maxClients) {
+
+        if (perSecond <= 0 || burst <= 0 || maxClients <= 0)
+            throw new IllegalArgumentException("Rate limit, burst and client count must be positive.");
+
+        this.tokensPerMilli = perSecond / 1000.0;
+        this.burst = burst;
+
+        int perStripe = Math.max(1, (maxClients + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(perStripe);
+
+    }
+
+    /**
+     * Takes one token from the given client's bucket.
+     *
+     * @param client
+     *     The client address.
+     *
+     * @param now
+     *     The current time, in milliseconds.
+     *
+     * @return
+     *     true if the request is allowed, false if the client has exceeded
+     *     its rate.
+     */
+    public boolean tryAcquire(String client, long now) {
+
+        int hash = client.hashCode();
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+
+        synchronized (stripe) {
+
+            Bucket bucket = stripe.get(client);
+            if (bucket == null) {
+                bucket = new Bucket(burst, now);
+                stripe.put(client, bucket);
+            }
+            else if (now > bucket.updated) {
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * tokensPerMilli);
+                bucket.updated = now;
+            }
+
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return true;
+            }
+
+        }
+
+        limited.incrementAndGet();
+        return false;
+
+    }
+
+    /**
+     * @return The number of requests refused.
+     */
+    public long getLimited() {
+        return limited.get();
+    }
+
+    /**
+     * Access-ordered map which evicts its least recently used bucket once
+     * full. Guarded by its own monitor.
+     */
+    private static class Stripe extends LinkedHashMap<String, Bucket> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > maxEntries;
+        }
+
+    }
+
+    /**
+     * A single client's bucket. Guarded by the monitor of its stripe.
+     */
+    private static class Bucket {
+
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+
+    }
+
+}
@@ -0,0 +1,273 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded record of signatures which have already been used, allowing each
+ * signed URL to be used only once within its validity window.
+ *
+ * Signatures are recorded by their decoded MAC bytes rather than their
+ * text, so that no alternative spelling of the same MAC counts as unused.
+ *
+ * Signatures are grouped into time buckets by the timestamp they sign. Each
+ * bucket spans 1/BUCKETS of the timestamp age limit, and all signatures in a
+ * bucket expire together: once a bucket's window has passed, its slot in the
+ * ring is replaced by an empty bucket on the next use of that slot, or when
+ * the cap is checked, whichever comes first. Since a replayed
+ * signature always carries the same timestamp, a lookup only ever touches
+ * one bucket. Buckets are ConcurrentHashMaps swapped by compare-and-set, so
+ * no global lock is taken.
+ *
+ * The total number of live signatures is capped. When the cap is reached,
+ * live signatures are never evicted early (that would reopen them to
+ * replay); new signatures are instead rejected until buckets expire, and
+ * each rejection is counted.
+ */
+public class ReplayCache {
+
+    /**
+     * Number of buckets spanning one timestamp age limit.
+     */
+    public static final int BUCKETS = 8;
+
+    /**
+     * Number of slots in the ring. Timestamps up to one age limit in the past
+     * (older ones are rejected before reaching the cache) and up to one age
+     * limit in the future are accepted, plus rounding at either end, so that
+     * no two live buckets share a slot.
+     */
+    private static final int RING_SIZE = 2 * BUCKETS + 4;
+
+    /**
+     * The outcome of recording a signature.
+     */
+    public enum Result {
+
+        /**
+         * The signature had not been seen before and is now recorded.
+         */
+        ACCEPTED,
+
+        /**
+         * The signature has already been used.
+         */
+        REPLAYED,
+
+        /**
+         * The cache is at capacity, so the signature could not be recorded
+         * and must be refused.
+         */
+        FULL,
+
+        /**
+         * The timestamp lies outside the window the cache can track.
+         */
+        OUT_OF_WINDOW
+
+    }
+
+    /**
+     * Width of each bucket, in milliseconds.
+     */
+    private final long bucketWidth;
+
+    /**
+     * Maximum number of live signatures.
+     */
+    private final int maxEntries;
+
+    /**
+     * Ring of buckets, indexed by epoch modulo RING_SIZE.
+     */
+    private final AtomicReferenceArray<Bucket> ring = new AtomicReferenceArray<Bucket>(RING_SIZE);
+
+    private final AtomicLong replays = new AtomicLong();
+    private final AtomicLong rejectedFull = new AtomicLong();
+    private final AtomicLong expiredBuckets = new AtomicLong();
+
+    /**
+     * Creates a new ReplayCache.
+     *
+     * @param timestampAgeLimit
+     *     How long a signature remains valid, in milliseconds. Must be
+     *     positive.
+     *
+     * @param maxEntries
+     *     The maximum number of signatures to hold at once.
+     */
+    public ReplayCache(long timestampAgeLimit, int maxEntries) {
+
+        if (timestampAgeLimit <= 0)
+            throw new IllegalArgumentException("Replay protection requires a timestamp age limit.");
+
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Replay cache size must be positive.");
+
+        this.bucketWidth = Math.max(1, (timestampAgeLimit + BUCKETS - 1) / BUCKETS);
+        this.maxEntries = maxEntries;
+
+        for (int i = 0; i < RING_SIZE; i++)
+            ring.set(i, new Bucket(Long.MIN_VALUE));
+
+    }
+
+    /**
+     * Records the given signature as used, unless it has been used already.
+     *
+     * @param mac
+     *     The decoded bytes of the signature to record, which must not be
+     *     modified afterwards.
+     *
+     * @param timestamp
+     *     The timestamp covered by the signature.
+     *
+     * @param now
+     *     The current time, in milliseconds.
+     *
+     * @return
+     *     ACCEPTED if this is the first use of the signature, otherwise the
+     *     reason it must be refused.
+     */
+    public Result markUsed(byte[] mac, long timestamp, long now) {
+
+        if (timestamp < 0)
+            return Result.OUT_OF_WINDOW;
+
+        long epoch = timestamp / bucketWidth;
+        long nowEpoch = now / bucketWidth;
+        if (epoch < nowEpoch - BUCKETS - 1 || epoch > nowEpoch + BUCKETS + 1)
+            return Result.OUT_OF_WINDOW;
+
+        Bucket bucket = getBucket(epoch);
+        if (bucket == null)
+            return Result.OUT_OF_WINDOW;
+
+        ByteBuffer signature = ByteBuffer.wrap(mac);
+        if (bucket.signatures.containsKey(signature)) {
+            replays.incrementAndGet();
+            return Result.REPLAYED;
+        }
+
+        if (liveSize(nowEpoch) >= maxEntries) {
+            rejectedFull.incrementAndGet();
+            return Result.FULL;
+        }
+
+        if (bucket.signatures.putIfAbsent(signature, Boolean.TRUE) != null) {
+            replays.incrementAndGet();
+            return Result.REPLAYED;
+        }
+
+        bucket.count.incrementAndGet();
+        return Result.ACCEPTED;
+
+    }
+
+    /**
+     * Returns the live bucket for the given epoch, replacing an expired
+     * bucket occupying its slot, or null if the slot already holds a newer
+     * epoch.
+     */
+    private Bucket getBucket(long epoch) {
+
+        int slot = (int) (epoch % RING_SIZE);
+
+        while (true) {
+
+            Bucket bucket = ring.get(slot);
+            if (bucket.epoch == epoch)
+                return bucket;
+
+            if (bucket.epoch > epoch)
+                return null;
+
+            Bucket replacement = new Bucket(epoch);
+            if (ring.compareAndSet(slot, bucket, replacement)) {
+                if (bucket.epoch != Long.MIN_VALUE)
+                    expiredBuckets.incrementAndGet();
+                return replacement;
+            }
+
+        }
+
+    }
+
+    /**
+     * Returns the number of signatures in buckets which have not expired as
+     * of the given epoch, first discarding any expired buckets so that their
+     * signatures neither count towards the cap nor stay on the heap.
+     */
+    private int liveSize(long nowEpoch) {
+        int size = 0;
+        for (int i = 0; i < RING_SIZE; i++) {
+            Bucket bucket = ring.get(i);
+            if (bucket.epoch != Long.MIN_VALUE && bucket.epoch < nowEpoch - BUCKETS - 1) {
+                if (ring.compareAndSet(i, bucket, new Bucket(Long.MIN_VALUE)))
+                    expiredBuckets.incrementAndGet();
+                continue;
+            }
+            size += bucket.count.get();
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of signatures currently recorded, including any in
+     *     expired buckets not yet discarded.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < RING_SIZE; i++)
+            size += ring.get(i).count.get();
+        return size;
+    }
+
+    /**
+     * @return The maximum number of signatures which may be recorded.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return The number of replayed signatures refused.
+     */
+    public long getReplays() {
+        return replays.get();
+    }
+
+    /**
+     * @return The number of signatures refused because the cache was full.
+     */
+    public long getRejectedFull() {
+        return rejectedFull.get();
+    }
+
+    /**
+     * @return The number of buckets which have expired and been discarded.
+     */
+    public long getExpiredBuckets() {
+        return expiredBuckets.get();
+    }
+
+    /**
+     * Signatures whose timestamps fall within one bucket-width window.
+     */
+    private static class Bucket {
+
+        final long epoch;
+        final ConcurrentMap<ByteBuffer, Boolean> signatures = new ConcurrentHashMap<ByteBuffer, Boolean>();
+        final AtomicInteger count = new AtomicInteger();
+
+        Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Appends lines to a file, rolling it over to file.1, file.2 and so on once
+ * it reaches a maximum size. Not thread safe; used only by the audit log's
+ * writer thread.
+ */
+class RollingFileWriter {
+
+    private final File file;
+
+    private final long maxBytes;
+
+    private final int maxFiles;
+
+    private Writer writer;
+
+    /**
+     * Bytes written to the current file, counting characters as bytes.
+     */
+    private long written;
+
+    /**
+     * Creates a new RollingFileWriter, appending to the file if it exists.
+     *
+     * @param file
+     *     The file to write.
+     *
+     * @param maxBytes
+     *     The size at which the file is rolled over.
+     *
+     * @param maxFiles
+     *     The number of rolled over files to keep.
+     */
+    RollingFileWriter(File file, long maxBytes, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    private void open() throws IOException {
+        written = file.length();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 65536);
+    }
+
+    /**
+     * Appends the given text, which should end with a newline, rolling the
+     * file over first if it is full. If the file cannot be rolled over, the
+     * text is still appended to the current file before the failure is
+     * reported, and rolling over is next attempted once another maxBytes
+     * have been written.
+     */
+    void write(CharSequence line) throws IOException {
+
+        if (writer == null)
+            open();
+
+        IOException failure = null;
+        if (written > 0 && written + line.length() > maxBytes) {
+            try {
+                roll();
+            }
+            catch (IOException e) {
+                if (writer == null)
+                    throw e;
+                failure = e;
+                written = 0;
+            }
+        }
+
+        writer.append(line);
+        written += line.length();
+
+        if (failure != null)
+            throw failure;
+
+    }
+
+    void flush() throws IOException {
+        if (writer != null)
+            writer.flush();
+    }
+
+    void close() throws IOException {
+        if (writer != null)
+            writer.close();
+    }
+
+    /**
+     * Closes the current file, shifts the rolled over files along and starts
+     * a new file. The file is reopened even if shifting fails, so that later
+     * writes are not lost; if it cannot be reopened, writer is left null and
+     * opening is retried by the next write.
+     */
+    private void roll() throws IOException {
+
+        writer.close();
+        writer = null;
+
+        try {
+
+            File oldest = new File(file.getPath() + "." + maxFiles);
+            if (oldest.exists() && !oldest.delete())
+                throw new IOException("Unable to delete \"" + oldest + "\".");
+
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File rolled = new File(file.getPath() + "." + i);
+                if (rolled.exists())
+                    rolled.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+
+            if (maxFiles > 0)
+                file.renameTo(new File(file.getPath() + ".1"));
+            else
+                file.delete();
+
+        }
+        finally {
+            open();
+        }
+
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates identifiers for users who did not give a username. Identifiers
+ * are a random per-process prefix followed by a counter, so they are unique
+ * across restarts and servers without a SecureRandom call per session. They
+ * are not secret; Guacamole issues its own authentication tokens.
+ */
+final class SessionIdGenerator {
+
+    /**
+     * Random prefix chosen once per process.
+     */
+    private static final String PREFIX = Long.toHexString(new SecureRandom().nextLong() | Long.MIN_VALUE);
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private SessionIdGenerator() {
+    }
+
+    /**
+     * @return A new identifier, unique within this process.
+     */
+    static String next() {
+        return PREFIX + '-' + Long.toHexString(counter.incrementAndGet());
+    }
+
+}
@@ -0,0 +1,531 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads configurations from every XML file within hmac-config.d, along with
+ * hmac-config.xml if it exists. Each file is parsed independently, in
+ * parallel when several need parsing, and when files change only those files
+ * are reparsed and merged into the catalog. A name defined by more than one
+ * file is an error; as with XmlConfigurationStore, the last good catalog
+ * remains in use if a reload fails.
+ *
+ * Rather than stat every file on every lookup, the directory is rescanned at
+ * most once per check interval.
+ */
+public class ShardedConfigurationStore implements ConfigurationSource {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ShardedConfigurationStore.class);
+
+    /**
+     * Default minimum time between scans of the directory, in milliseconds.
+     */
+    public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+    /**
+     * Selects the XML files within the directory, ignoring hidden files such
+     * as editor backups.
+     */
+    private static final FileFilter SHARD_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            String name = file.getName();
+            return name.endsWith(".xml") && !name.startsWith(".") && file.isFile();
+        }
+    };
+
+    /**
+     * The single configuration file read alongside the directory, which need
+     * not exist.
+     */
+    private final File configFile;
+
+    /**
+     * The directory of configuration files.
+     */
+    private final File configDir;
+
+    /**
+     * The server ID used to encode signed suffixes as configurations are
+     * loaded, or null to encode lazily.
+     */
+    private final String serverId;
+
+    /**
+     * The limits each file must respect.
+     */
+    private final ConfigurationLimits limits;
+
+    private final long checkInterval;
+
+    /**
+     * The current catalog, or null if the files have never been read
+     * successfully.
+     */
+    private final AtomicReference<Catalog> catalog = new AtomicReference<Catalog>();
+
+    /**
+     * Lock held while the directory is being rescanned. Readers never wait
+     * for this lock once a catalog exists.
+     */
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
+    /**
+     * Listing of the last set of files which failed to load. Guarded by
+     * reloadLock.
+     */
+    private String failedListing;
+
+    /**
+     * Creates a new ShardedConfigurationStore.
+     *
+     * @param configFile
+     *     The single configuration file to read alongside the directory, if
+     *     it exists.
+     *
+     * @param configDir
+     *     The directory of configuration files.
+     *
+     * @param serverId
+     *     The value of hmac-server-id, or null to encode signed suffixes
+     *     lazily.
+     */
+    public ShardedConfigurationStore(File configFile, File configDir, String serverId) {
+        this(configFile, configDir, serverId, ConfigurationLimits.DEFAULT);
+    }
+
+    /**
+     * Creates a new ShardedConfigurationStore whose files must each respect
+     * the given limits.
+     *
+     * @param configFile
+     *     The single configuration file to read alongside the directory, if
+     *     it exists.
+     *
+     * @param configDir
+     *     The directory of configuration files.
+     *
+     * @param serverId
+     *     The value of hmac-server-id, or null to encode signed suffixes
+     *     lazily.
+     *
+     * @param limits
+     *     The limits each file must respect.
+     */
+    public ShardedConfigurationStore(File configFile, File configDir, String serverId,
+            ConfigurationLimits limits) {
+        this(configFile, configDir, serverId, limits, DEFAULT_CHECK_INTERVAL);
+    }
+
+    ShardedConfigurationStore(File configFile, File configDir, String serverId, long checkInterval) {
+        this(configFile, configDir, serverId, ConfigurationLimits.DEFAULT, checkInterval);
+    }
+
+    ShardedConfigurationStore(File configFile, File configDir, String serverId,
+            ConfigurationLimits limits, long checkInterval) {
+        this.configFile = configFile;
+        this.configDir = configDir;
+        this.serverId = serverId;
+        this.limits = limits;
+        this.checkInterval = checkInterval;
+    }
+
+    @Override
+    public GuacamoleConfiguration getConfiguration(String name) throws GuacamoleException {
+        Catalog catalog = getCatalog();
+        GuacamoleConfiguration config = catalog.configs.get(name);
+        if (config == null && !catalog.patterns.isEmpty())
+            config = ConfigurationPattern.resolve(catalog.patterns, name);
+        return config;
+    }
+
+    @Override
+    public int getConfigurationCount() throws GuacamoleException {
+        return getCatalog().configs.size();
+    }
+
+    @Override
+    public long getVersion() throws GuacamoleException {
+        return getCatalog().version;
+    }
+
+    /**
+     * Returns an unmodifiable Map of all configurations in the current
+     * catalog, not including configuration patterns.
+     *
+     * @return
+     *     All configurations, indexed by name.
+     *
+     * @throws GuacamoleException
+     *     If the files have never been read successfully and cannot be read
+     *     now.
+     */
+    public Map<String, GuacamoleConfiguration> getConfigs() throws GuacamoleException {
+        return getCatalog().configs;
+    }
+
+    /**
+     * Parses the given configuration file, if it exists, and every file
+     * within the given directory.
+     *
+     * @param configFile
+     *     The single configuration file to read, if it exists.
+     *
+     * @param configDir
+     *     The directory of configuration files.
+     *
+     * @return
+     *     A Map of all configurations parsed from the files.
+     *
+     * @throws GuacamoleException
+     *     If a file cannot be read or parsed, or a name is defined twice.
+     */
+    public static Map<String, GuacamoleConfiguration> parse(File configFile, File configDir)
+            throws GuacamoleException {
+        return new ShardedConfigurationStore(configFile, configDir, null).getConfigs();
+    }
+
+    /**
+     * Returns the current catalog, rescanning the directory first if the
+     * check interval has passed.
+     */
+    private Catalog getCatalog() throws GuacamoleException {
+
+        Catalog current = catalog.get();
+        if (current != null && System.currentTimeMillis() < current.nextCheck)
+            return current;
+
+        // Readers carry on with the current snapshot while another thread
+        // reloads; only the very first load makes callers wait
+        if (current == null)
+            reloadLock.lock();
+        else if (!reloadLock.tryLock())
+            return current;
+
+        try {
+
+            // Another thread may have rescanned while we were waiting
+            current = catalog.get();
+            long now = System.currentTimeMillis();
+            if (current != null && now < current.nextCheck)
+                return current;
+
+            List<ShardFile> files = listShards();
+            String listing = listing(files);
+
+            // Nothing changed, or nothing changed since a failed reload
+            if (current != null && (listing.equals(current.listing) || listing.equals(failedListing))) {
+                current = current.checkedAt(now + checkInterval);
+                catalog.set(current);
+                return current;
+            }
+
+            try {
+                Catalog updated = reload(current, files, listing, now + checkInterval);
+                catalog.set(updated);
+                failedListing = null;
+                return updated;
+            }
+            catch (GuacamoleException e) {
+
+                // Nothing to fall back to
+                if (current == null)
+                    throw e;
+
+                logger.warn("Unable to reload \"{}\", continuing with previous configuration: {}",
+                        configDir, e.getMessage());
+                logger.debug("Configuration reload failed.", e);
+
+                failedListing = listing;
+                current = current.checkedAt(now + checkInterval);
+                catalog.set(current);
+                return current;
+
+            }
+
+        }
+        finally {
+            reloadLock.unlock();
+        }
+
+    }
+
+    /**
+     * Stats every file which should be part of the catalog.
+     */
+    private List<ShardFile> listShards() throws GuacamoleException {
+
+        File[] shards = configDir.listFiles(SHARD_FILTER);
+        if (shards == null)
+            throw new GuacamoleServerException("Unable to list configuration directory \"" + configDir + "\".");
+
+        Arrays.sort(shards);
+
+        List<ShardFile> files = new ArrayList<ShardFile>(shards.length + 1);
+        if (configFile != null && configFile.isFile())
+            files.add(new ShardFile(configFile));
+        for (File shard : shards)
+            files.add(new ShardFile(shard));
+
+        return files;
+
+    }
+
+    /**
+     * Describes the given files, such that the description changes whenever
+     * a file is added, removed or modified.
+     */
+    private static String listing(List<ShardFile> files) {
+        StringBuilder listing = new StringBuilder();
+        for (ShardFile file : files) {
+            listing.append(file.file.getPath()).append('\n')
+                   .append(file.lastModified).append(':')
+                   .append(file.length).append('\n');
+        }
+        return listing.toString();
+    }
+
+    /**
+     * Builds a new catalog from the given files, parsing only those which
+     * differ from the current catalog.
+     */
+    private Catalog reload(Catalog current, List<ShardFile> files, String listing,
+            long nextCheck) throws GuacamoleException {
+
+        Map<File, Shard> shards = new HashMap<File, Shard>();
+        List<ShardFile> changed = new ArrayList<ShardFile>();
+        for (ShardFile file : files) {
+            Shard shard = (current == null) ? null : current.shards.get(file.file);
+            if (shard != null && shard.isCurrent(file))
+                shards.put(file.file, shard);
+            else
+                changed.add(file);
+        }
+
+        List<Shard> parsed = parseAll(changed);
+
+        // Start from the current catalog less anything removed or replaced
+        Map<String, GuacamoleConfiguration> configs;
+        if (current == null)
+            configs = new HashMap<String, GuacamoleConfiguration>();
+        else {
+            configs = new HashMap<String, GuacamoleConfiguration>(current.configs);
+            for (Shard shard : current.shards.values()) {
+                if (shards.get(shard.file) != shard)
+                    configs.keySet().removeAll(shard.configs.keySet());
+            }
+        }
+
+        for (Shard shard : parsed) {
+            for (Map.Entry<String, GuacamoleConfiguration> entry : shard.configs.entrySet()) {
+                if (configs.put(entry.getKey(), entry.getValue()) != null)
+                    throw new GuacamoleServerException("Configuration \"" + entry.getKey()
+                            + "\" in \"" + shard.file + "\" is already defined in \""
+                            + findOwner(entry.getKey(), shard, shards, parsed) + "\".");
+            }
+            shards.put(shard.file, shard);
+        }
+
+        // Patterns are tried in file order, as files are listed
+        List<ConfigurationPattern> patterns = new ArrayList<ConfigurationPattern>();
+        for (ShardFile file : files)
+            patterns.addAll(shards.get(file.file).patterns);
+
+        long version = (current == null) ? 1 : current.version + 1;
+        logger.info("Loaded {} configurations and {} patterns, reparsing {} of {} files in \"{}\".",
+                new Object[] { configs.size(), patterns.size(), parsed.size(), files.size(), configDir });
+
+        return new Catalog(Collections.unmodifiableMap(configs), Collections.unmodifiableList(patterns),
+                shards, listing, version, nextCheck);
+
+    }
+
+    /**
+     * Finds the file other than the given shard which defines the given
+     * name, for reporting duplicates.
+     */
+    private static File findOwner(String name, Shard duplicate, Map<File, Shard> shards, List<Shard> parsed) {
+        for (Shard shard : shards.values()) {
+            if (shard != duplicate && shard.configs.containsKey(name))
+                return shard.file;
+        }
+        for (Shard shard : parsed) {
+            if (shard != duplicate && shard.configs.containsKey(name))
+                return shard.file;
+        }
+        return null;
+    }
+
+    /**
+     * Parses the given files, in parallel if there is more than one.
+     */
+    private List<Shard> parseAll(List<ShardFile> files) throws GuacamoleException {
+
+        List<Shard> shards = new ArrayList<Shard>(files.size());
+        if (files.size() <= 1) {
+            for (ShardFile file : files)
+                shards.add(parse(file));
+            return shards;
+        }
+
+        int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hmac-config-parser");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+
+            List<Future<Shard>> results = new ArrayList<Future<Shard>>(files.size());
+            for (final ShardFile file : files) {
+                results.add(executor.submit(new Callable<Shard>() {
+                    @Override
+                    public Shard call() throws GuacamoleException {
+                        return parse(file);
+                    }
+                }));
+            }
+
+            for (Future<Shard> result : results)
+                shards.add(result.get());
+
+            return shards;
+
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof GuacamoleException)
+                throw (GuacamoleException) e.getCause();
+            throw new GuacamoleServerException("Error parsing configuration files.", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleServerException("Interrupted while parsing configuration files.", e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+    /**
+     * Parses a single file, each with its own handler.
+     */
+    private Shard parse(ShardFile file) throws GuacamoleException {
+
+        logger.debug("Reading configuration file: \"{}\"", file.file);
+        List<ConfigurationPattern> patterns = new ArrayList<ConfigurationPattern>();
+        Map<String, GuacamoleConfiguration> configs = XmlConfigurationStore.parse(file.file, patterns, limits);
+
+        // Encode signed suffixes now rather than on the first request
+        if (serverId != null) {
+            for (GuacamoleConfiguration config : configs.values())
+                ((HmacConfiguration) config).getSignedSuffix(serverId);
+        }
+
+        return new Shard(file, configs, patterns);
+
+    }
+
+    /**
+     * A file along with its attributes when it was listed.
+     */
+    private static class ShardFile {
+
+        final File file;
+        final long lastModified;
+        final long length;
+
+        ShardFile(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+    }
+
+    /**
+     * The configurations parsed from a single file.
+     */
+    private static class Shard {
+
+        final File file;
+        final long lastModified;
+        final long length;
+        final Map<String, GuacamoleConfiguration> configs;
+        final List<ConfigurationPattern> patterns;
+
+        Shard(ShardFile file, Map<String, GuacamoleConfiguration> configs,
+                List<ConfigurationPattern> patterns) {
+            this.file = file.file;
+            this.lastModified = file.lastModified;
+            this.length = file.length;
+            this.configs = configs;
+            this.patterns = patterns;
+        }
+
+        boolean isCurrent(ShardFile file) {
+            return lastModified == file.lastModified && length == file.length;
+        }
+
+    }
+
+    /**
+     * Immutable merged view of all files at a point in time.
+     */
+    private static class Catalog {
+
+        final Map<String, GuacamoleConfiguration> configs;
+        final List<ConfigurationPattern> patterns;
+        final Map<File, Shard> shards;
+        final String listing;
+        final long version;
+
+        /**
+         * The time after which the directory should be rescanned.
+         */
+        final long nextCheck;
+
+        Catalog(Map<String, GuacamoleConfiguration> configs, List<ConfigurationPattern> patterns,
+                Map<File, Shard> shards, String listing, long version, long nextCheck) {
+            this.configs = configs;
+            this.patterns = patterns;
+            this.shards = shards;
+            this.listing = listing;
+            this.version = version;
+            this.nextCheck = nextCheck;
+        }
+
+        Catalog checkedAt(long nextCheck) {
+            return new Catalog(configs, patterns, shards, listing, version, nextCheck);
+        }
+
+    }
+
+}
@@ -0,0 +1,292 @@
+package com.brianwells.guacamole.net.hmac;
+
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Produces signed URLs accepted by HmacAuthenticationProvider, for portals
+ * written in Java. Each thread reuses a single initialized MAC and output
+ * buffer, and signatures are encoded straight into the caller's
+ * StringBuilder, so signing a page of links costs one MAC per link and no
+ * per-link Strings.
+ *
+ * Instances are thread safe. Only connections looked up by name are
+ * supported, not stateless URLs.
+ */
+public class SignatureSigner {
+
+    private final SigningKey key;
+
+    private final String algorithm;
+
+    /**
+     * The value of the algorithm parameter, or null if signed URLs rely on
+     * the server's default algorithm.
+     */
+    private final String algorithmParam;
+
+    private final String keyId;
+
+    private final String serverId;
+
+    /**
+     * Creates a SignatureSigner for the server's default secret-key and
+     * algorithm, assuming that algorithm is HmacSHA1.
+     *
+     * @param secretKey
+     *     The value of secret-key.
+     *
+     * @param serverId
+     *     The value of hmac-server-id.
+     */
+    public SignatureSigner(String secretKey, String serverId) {
+        this(null, secretKey, null, serverId);
+    }
+
+    /**
+     * Creates a SignatureSigner for a key from hmac-key-ids and any of the
+     * accepted algorithms.
+     *
+     * @param keyId
+     *     The ID of the key, or null for secret-key.
+     *
+     * @param secretKey
+     *     The secret of the key.
+     *
+     * @param algorithm
+     *     The algorithm to sign with, in any form accepted by
+     *     SignatureVerifier.canonicalAlgorithm(), or null to sign with
+     *     HmacSHA1 and rely on it being the server's default.
+     *
+     * @param serverId
+     *     The value of hmac-server-id.
+     *
+     * @throws IllegalArgumentException
+     *     If the algorithm is not available.
+     */
+    public SignatureSigner(String keyId, String secretKey, String algorithm, String serverId) {
+        this.keyId = keyId;
+        this.serverId = serverId;
+        this.algorithmParam = algorithm;
+        this.algorithm = (algorithm == null)
+                ? SigningKey.DEFAULT_ALGORITHM
+                : SignatureVerifier.canonicalAlgorithm(algorithm);
+        this.key = new SigningKey(keyId, secretKey, SigningKey.NO_EXPIRY);
+
+        try {
+            key.createMac(this.algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported signature algorithm: " + algorithm, e);
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("Invalid key for " + this.algorithm + ".", e);
+        }
+    }
+
+    /**
+     * Returns the Base64 signature for the given connection and timestamp.
+     *
+     * @param config
+     *     The configuration of the connection being signed.
+     *
+     * @param timestamp
+     *     The timestamp of the signed URL, in milliseconds since the epoch.
+     *
+     * @return
+     *     The value of the signature parameter, before URL encoding.
+     */
+    public String sign(GuacamoleConfiguration config, long timestamp) {
+        StringBuilder signature = new StringBuilder(88);
+        appendSignature(getMacState(), signature, config, timestamp, false);
+        return signature.toString();
+    }
+
+    /**
+     * Appends the query string of a signed URL for the given connection,
+     * without a leading '?'.
+     *
+     * @param out
+     *     The builder to append to.
+     *
+     * @param connection
+     *     The name of the connection.
+     *
+     * @param config
+     *     The configuration of the connection.
+     *
+     * @param timestamp
+     *     The timestamp of the signed URL, in milliseconds since the epoch.
+     */
+    public void appendQuery(StringBuilder out, String connection, GuacamoleConfiguration config, long timestamp) {
+        appendQuery(getMacState(), out, connection, config, timestamp);
+    }
+
+    /**
+     * Appends a complete signed URL for the given connection.
+     *
+     * @param out
+     *     The builder to append to.
+     *
+     * @param clientUrl
+     *     The URL of the Guacamole client up to the connection name, for
+     *     example "https://example.com/guacamole/#/client/".
+     *
+     * @param connection
+     *     The name of the connection.
+     *
+     * @param config
+     *     The configuration of the connection.
+     *
+     * @param timestamp
+     *     The timestamp of the signed URL, in milliseconds since the epoch.
+     */
+    public void appendLink(StringBuilder out, String clientUrl, String connection,
+            GuacamoleConfiguration config, long timestamp) {
+        appendLink(getMacState(), out, clientUrl, connection, config, timestamp);
+    }
+
+    /**
+     * Appends a signed URL for each of the given connections, all with the
+     * same timestamp, in the iteration order of the map.
+     *
+     * @param out
+     *     The builder to append to.
+     *
+     * @param clientUrl
+     *     The URL of the Guacamole client up to the connection name, for
+     *     example "https://example.com/guacamole/#/client/".
+     *
+     * @param connections
+     *     The configurations to sign, indexed by connection name.
+     *
+     * @param timestamp
+     *     The timestamp of the signed URLs, in milliseconds since the epoch.
+     *
+     * @param separator
+     *     Text appended between consecutive URLs.
+     *
+     * @return
+     *     The number of URLs appended.
+     */
+    public int appendLinks(StringBuilder out, String clientUrl,
+            Map<String, ? extends GuacamoleConfiguration> connections, long timestamp, String separator) {
+        SigningKey.MacState state = getMacState();
+        int count = 0;
+        for (Map.Entry<String, ? extends GuacamoleConfiguration> connection : connections.entrySet()) {
+            if (count++ > 0) {
+                out.append(separator);
+            }
+            appendLink(state, out, clientUrl, connection.getKey(), connection.getValue(), timestamp);
+        }
+        return count;
+    }
+
+    private SigningKey.MacState getMacState() {
+        SigningKey.MacState state = key.getMacState(0, algorithm);
+        if (state == null) {
+            throw new IllegalStateException("Unable to initialize " + algorithm + ".");
+        }
+        return state;
+    }
+
+    private void appendLink(SigningKey.MacState state, StringBuilder out, String clientUrl, String connection,
+            GuacamoleConfiguration config, long timestamp) {
+        out.append(clientUrl);
+        appendUrlEncoded(out, connection);
+        out.append('?');
+        appendQuery(state, out, connection, config, timestamp);
+    }
+
+    private void appendQuery(SigningKey.MacState state, StringBuilder out, String connection,
+            GuacamoleConfiguration config, long timestamp) {
+        out.append(HmacAuthenticationProvider.TIMESTAMP_PARAM).append('=').append(timestamp);
+        out.append('&').append(HmacAuthenticationProvider.CONNECTION_PARAM).append('=');
+        appendUrlEncoded(out, connection);
+        out.append('&').append(HmacAuthenticationProvider.SIGNATURE_PARAM).append('=');
+        appendSignature(state, out, config, timestamp, true);
+        if (keyId != null) {
+            out.append('&').append(HmacAuthenticationProvider.KEY_ID_PARAM).append('=');
+            appendUrlEncoded(out, keyId);
+        }
+        if (algorithmParam != null) {
+            out.append('&').append(HmacAuthenticationProvider.ALGORITHM_PARAM).append('=');
+            appendUrlEncoded(out, algorithmParam);
+        }
+    }
+
+    /**
+     * Signs the timestamp followed by the configuration's signed suffix,
+     * exactly as SignatureVerifier checks it, and appends the signature.
+     */
+    private void appendSignature(SigningKey.MacState state, StringBuilder out, GuacamoleConfiguration config,
+            long timestamp, boolean urlEncoded) {
+        if (timestamp < 0) {
+            throw new IllegalArgumentException("Timestamp must not be negative.");
+        }
+
+        byte[] suffix = (config instanceof HmacConfiguration)
+                ? ((HmacConfiguration) config).getSignedSuffix(serverId)
+                : HmacConfiguration.encodeSignedSuffix(config, serverId);
+
+        // Decimal digits of the timestamp, written backwards from the end
+        byte[] scratch = state.scratch;
+        int start = scratch.length;
+        long remaining = timestamp;
+        do {
+            scratch[--start] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+
+        Mac mac = state.mac;
+        mac.update(scratch, start, scratch.length - start);
+        mac.update(suffix);
+        try {
+            mac.doFinal(state.expected, 0);
+        } catch (ShortBufferException e) {
+            mac.reset();
+            throw new IllegalStateException("MAC output buffer too small.", e);
+        }
+
+        Base64Codec.encode(state.expected, state.expected.length, out, urlEncoded);
+    }
+
+    /**
+     * Appends the given value percent-encoded as UTF-8, leaving only the
+     * unreserved characters of RFC 3986 as they are.
+     */
+    static void appendUrlEncoded(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                out.append(c);
+            } else if (c < 0x80) {
+                appendPercent(out, c);
+            } else if (c < 0x800) {
+                appendPercent(out, 0xC0 | (c >> 6));
+                appendPercent(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendPercent(out, 0xF0 | (codePoint >> 18));
+                appendPercent(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendPercent(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendPercent(out, 0x80 | (codePoint & 0x3F));
+            } else {
+                appendPercent(out, 0xE0 | (c >> 12));
+                appendPercent(out, 0x80 | ((c >> 6) & 0x3F));
+                appendPercent(out, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendPercent(StringBuilder out, int b) {
+        out.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)))
+                .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+    }
+
+}
@@ -1,38 +1,430 @@
 package com.brianwells.guacamole.net.hmac;
 
-import com.sun.org.apache.xml.internal.security.utils.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidKeyException;
+import javax.crypto.ShortBufferException;
+import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class SignatureVerifier {
-    private final SecretKeySpec secretKey;
+    private final Map<String, SigningKey> keys = new HashMap<String, SigningKey>();
+
+    private final SigningKey defaultKey;
+
+    /**
+     * The JCE names of the accepted algorithms. The first is used by signed
+     * URLs which do not name an algorithm.
+     */
+    private final String[] algorithms;
 
     private Logger logger = LoggerFactory.getLogger(SignatureVerifier.class);
 
     public SignatureVerifier(String secretKey) {
-        this.secretKey = new SecretKeySpec(secretKey.getBytes(), "HmacSHA1");
+        this(new SigningKey(null, secretKey, SigningKey.NO_EXPIRY), null);
+    }
+
+    /**
+     * Creates a SignatureVerifier for a key ring.
+     *
+     * @param defaultKey
+     *     The key used by signed URLs which carry no key ID, or null if such
+     *     URLs are refused.
+     *
+     * @param keys
+     *     Additional keys, selected by their IDs. May be null.
+     */
+    public SignatureVerifier(SigningKey defaultKey, Collection<SigningKey> keys) {
+        this(defaultKey, keys, Collections.singletonList(SigningKey.DEFAULT_ALGORITHM));
+    }
+
+    /**
+     * Creates a SignatureVerifier for a key ring which accepts signatures
+     * made with any of the given algorithms.
+     *
+     * @param defaultKey
+     *     The key used by signed URLs which carry no key ID, or null if such
+     *     URLs are refused.
+     *
+     * @param keys
+     *     Additional keys, selected by their IDs. May be null.
+     *
+     * @param algorithms
+     *     The accepted algorithms, in any form accepted by
+     *     canonicalAlgorithm(). The first is used by signed URLs which do
+     *     not name an algorithm.
+     *
+     * @throws IllegalArgumentException
+     *     If no algorithms are given, or an algorithm is not available.
+     */
+    public SignatureVerifier(SigningKey defaultKey, Collection<SigningKey> keys, List<String> algorithms) {
+        this.defaultKey = defaultKey;
+        if (keys != null) {
+            for (SigningKey key : keys) {
+                this.keys.put(key.getId(), key);
+            }
+        }
+
+        if (algorithms.isEmpty()) {
+            throw new IllegalArgumentException("At least one signature algorithm is required.");
+        }
+
+        this.algorithms = new String[algorithms.size()];
+        for (int i = 0; i < this.algorithms.length; i++) {
+            String algorithm = canonicalAlgorithm(algorithms.get(i));
+            try {
+                Mac.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported signature algorithm: " + algorithms.get(i), e);
+            }
+            this.algorithms[i] = algorithm;
+        }
+    }
+
+    /**
+     * Returns the JCE name of an HMAC algorithm given either that name or
+     * the name of its digest, so "sha256", "SHA-256" and "HmacSHA256" are
+     * all "HmacSHA256".
+     *
+     * @param name
+     *     The algorithm name.
+     *
+     * @return
+     *     The JCE name of the algorithm.
+     */
+    public static String canonicalAlgorithm(String name) {
+        String digest = name.trim().toUpperCase(Locale.ENGLISH).replace("-", "");
+        if (digest.startsWith("HMAC")) {
+            digest = digest.substring(4);
+        }
+        return "Hmac" + digest;
+    }
+
+    /**
+     * @return The JCE names of the accepted algorithms, the default first.
+     */
+    public String[] getAlgorithms() {
+        return algorithms.clone();
     }
 
     public boolean verifySignature(String signature, String message) {
-        try {
-            Mac mac = createMac();
-            String expected = Base64.encode(mac.doFinal(message.getBytes()));
-            return signature.equals(expected);
-        } catch (InvalidKeyException e) {
+        return verifySignature(defaultKey, 0, signature, "", encode(message));
+    }
+
+    /**
+     * Verifies a signature made with the key having the given ID.
+     *
+     * @param keyId
+     *     The ID of the key the signature claims to be made with, or null for
+     *     the default key.
+     *
+     * @param signature
+     *     The Base64 signature.
+     *
+     * @param message
+     *     The signed message.
+     *
+     * @param now
+     *     The current time, used to refuse expired keys.
+     *
+     * @return
+     *     true if the key exists, has not expired and the signature matches.
+     */
+    public boolean verifySignature(String keyId, String signature, String message, long now) {
+        return verifySignature(keyId, signature, "", encode(message), now);
+    }
+
+    /**
+     * Verifies a signature over a message whose tail is already encoded. The
+     * signed message is the UTF-8 encoding of the prefix followed by the
+     * given suffix bytes, so callers can encode the fixed part of a message
+     * once and supply only the part which varies per request.
+     *
+     * @param keyId
+     *     The ID of the key the signature claims to be made with, or null for
+     *     the default key.
+     *
+     * @param signature
+     *     The Base64 signature.
+     *
+     * @param prefix
+     *     The leading, per-request part of the signed message.
+     *
+     * @param suffix
+     *     The UTF-8 encoded remainder of the signed message.
+     *
+     * @param now
+     *     The current time, used to refuse expired keys.
+     *
+     * @return
+     *     true if the key exists, has not expired and the signature matches.
+     */
+    public boolean verifySignature(String keyId, String signature, String prefix, byte[] suffix, long now) {
+        return verifySignature(keyId, null, signature, prefix, suffix, now);
+    }
+
+    /**
+     * Verifies a signature made with the given algorithm over a message
+     * whose tail is already encoded, as verifySignature(String, String,
+     * String, byte[], long).
+     *
+     * @param keyId
+     *     The ID of the key the signature claims to be made with, or null for
+     *     the default key.
+     *
+     * @param algorithm
+     *     The algorithm the signature claims to be made with, in any form
+     *     accepted by canonicalAlgorithm(), or null for the default
+     *     algorithm.
+     *
+     * @param signature
+     *     The Base64 signature.
+     *
+     * @param prefix
+     *     The leading, per-request part of the signed message.
+     *
+     * @param suffix
+     *     The UTF-8 encoded remainder of the signed message.
+     *
+     * @param now
+     *     The current time, used to refuse expired keys.
+     *
+     * @return
+     *     true if the key exists, has not expired, the algorithm is accepted
+     *     and the signature matches.
+     */
+    public boolean verifySignature(String keyId, String algorithm, String signature, String prefix,
+            byte[] suffix, long now) {
+        int slot = slotOf(algorithm);
+        if (slot < 0) {
+            logger.debug("Algorithm not accepted: {}", algorithm);
+            return false;
+        }
+
+        SigningKey key = (keyId == null) ? defaultKey : keys.get(keyId);
+        if (key == null) {
+            logger.debug("Unknown key ID: {}", keyId);
+            return false;
+        }
+
+        if (key.isExpired(now)) {
+            logger.debug("Key has expired: {}", keyId);
+            return false;
+        }
+
+        return verifySignature(key, slot, signature, prefix, suffix);
+    }
+
+    /**
+     * Returns when the key having the given ID expires, so that decisions
+     * made with it can be forgotten by then.
+     *
+     * @param keyId
+     *     The ID of the key, or null for the default key.
+     *
+     * @return
+     *     The time the key expires, SigningKey.NO_EXPIRY if it never does,
+     *     or Long.MIN_VALUE if there is no such key.
+     */
+    public long getKeyExpiry(String keyId) {
+        SigningKey key = (keyId == null) ? defaultKey : keys.get(keyId);
+        return (key == null) ? Long.MIN_VALUE : key.getExpiresAt();
+    }
+
+    /**
+     * Measures how many verifications per second this host performs with
+     * the given algorithm, using a throwaway key and a message of typical
+     * length.
+     *
+     * @param algorithm
+     *     One of the accepted algorithms.
+     *
+     * @param durationMillis
+     *     How long to measure for.
+     *
+     * @return
+     *     Verifications per second.
+     */
+    public double benchmark(String algorithm, long durationMillis) {
+        SyntheticLoad load = new SyntheticLoad(algorithm);
+
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + durationMillis * 1000000L;
+        long now;
+        do {
+            load.run(100);
+            count += 100;
+            now = System.nanoTime();
+        } while (now < end);
+
+        return count * 1e9 / (now - start);
+    }
+
+    /**
+     * Performs the given number of verifications with the given algorithm,
+     * using a throwaway key, so that provider lookup, class loading and JIT
+     * compilation happen before real requests arrive.
+     *
+     * @param algorithm
+     *     One of the accepted algorithms.
+     *
+     * @param verifications
+     *     The number of verifications to perform.
+     */
+    public void warmUp(String algorithm, int verifications) {
+        new SyntheticLoad(algorithm).run(verifications);
+    }
+
+    /**
+     * Verifications of a well-formed but wrong signature over a message of
+     * typical length, which cost the same as verifying a real one.
+     */
+    private class SyntheticLoad {
+
+        private final SigningKey key = new SigningKey(null, "synthetic", SigningKey.NO_EXPIRY);
+        private final int slot;
+        private final String signature;
+        private final byte[] suffix = encode("rdp10000001hostname10.2.3.4port3389");
+
+        SyntheticLoad(String algorithm) {
+            slot = slotOf(algorithm);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Algorithm not accepted: " + algorithm);
+            }
+
+            int length = 0;
+            SigningKey.MacState state = key.getMacState(slot, algorithms[slot]);
+            if (state != null) {
+                length = state.provided.length;
+            }
+
+            StringBuilder encoded = new StringBuilder();
+            int padding = (3 - length % 3) % 3;
+            for (int i = (length + padding) / 3 * 4 - padding; i > 0; i--) {
+                encoded.append('A');
+            }
+            for (int i = 0; i < padding; i++) {
+                encoded.append('=');
+            }
+            signature = encoded.toString();
+        }
+
+        void run(int verifications) {
+            for (int i = 0; i < verifications; i++) {
+                verifySignature(key, slot, signature, "1373563683000", suffix);
+            }
+        }
+
+    }
+
+    /**
+     * Returns the index of the given algorithm among the accepted
+     * algorithms, or -1 if it is not accepted.
+     */
+    private int slotOf(String algorithm) {
+        if (algorithm == null) {
+            return 0;
+        }
+
+        // Exact JCE names need no normalizing
+        for (int i = 0; i < algorithms.length; i++) {
+            if (algorithms[i].equals(algorithm)) {
+                return i;
+            }
+        }
+
+        String canonical = canonicalAlgorithm(algorithm);
+        for (int i = 0; i < algorithms.length; i++) {
+            if (algorithms[i].equals(canonical)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean verifySignature(SigningKey key, int slot, String signature, String prefix, byte[] suffix) {
+        if (key == null) {
             return false;
-        } catch (NoSuchAlgorithmException e) {
+        }
+
+        SigningKey.MacState verifier = key.getMacState(slot, algorithms[slot]);
+        if (verifier == null) {
+            logger.error("Unable to initialize {}.", algorithms[slot]);
             return false;
         }
+
+        // Reject anything which is not exactly one MAC worth of Base64
+        int length = Base64Codec.decode(signature, verifier.provided);
+        if (length != verifier.provided.length) {
+            return false;
+        }
+
+        Mac mac = verifier.mac;
+        try {
+            updateAscii(verifier, prefix);
+            mac.update(suffix);
+            mac.doFinal(verifier.expected, 0);
+        } catch (ShortBufferException e) {
+            mac.reset();
+            return false;
+        }
+
+        return constantTimeEquals(verifier.expected, verifier.provided);
+    }
+
+    /**
+     * Feeds the UTF-8 encoding of the given string to the MAC. Short ASCII
+     * strings such as timestamps are copied through the thread's scratch
+     * buffer without allocating.
+     */
+    private static void updateAscii(SigningKey.MacState verifier, String value) {
+        int length = value.length();
+        byte[] scratch = verifier.scratch;
+        if (length > scratch.length) {
+            verifier.mac.update(encode(value));
+            return;
+        }
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                verifier.mac.update(encode(value));
+                return;
+            }
+            scratch[i] = (byte) c;
+        }
+        verifier.mac.update(scratch, 0, length);
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported.", e);
+        }
     }
 
-    Mac createMac() throws NoSuchAlgorithmException, InvalidKeyException {
-        Mac mac = Mac.getInstance("HmacSHA1");
-        mac.init(secretKey);
-        return mac;
+    /**
+     * Compares two equal-length byte arrays in time which does not depend on
+     * where they first differ.
+     */
+    static boolean constantTimeEquals(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+
+        int difference = 0;
+        for (int i = 0; i < a.length; i++) {
+            difference |= a[i] ^ b[i];
+        }
+        return difference == 0;
     }
 }
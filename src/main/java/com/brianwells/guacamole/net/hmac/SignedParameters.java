@@ -0,0 +1,141 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.servlet.http.HttpServletRequest;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * A configuration carried entirely within a signed URL, used when
+ * hmac-stateless is enabled. The protocol is given by the "protocol" request
+ * parameter and each connection parameter by a request parameter prefixed
+ * with "guac.". A configuration of the same name in hmac-config.xml, if any,
+ * acts as a template supplying defaults which the URL may override.
+ *
+ * The signed message is the timestamp, protocol and server ID as usual,
+ * followed by "connection=" and the connection name and then "name=value"
+ * for each URL parameter in name order, each terminated by a newline.
+ * Parameter names may not contain "=" and no value may contain a newline,
+ * so the message cannot be reinterpreted as a different set of parameters.
+ */
+public class SignedParameters {
+
+    /**
+     * Prefix of request parameters which carry connection parameters.
+     */
+    public static final String PARAMETER_PREFIX = "guac.";
+
+    /**
+     * Request parameter carrying the protocol.
+     */
+    public static final String PROTOCOL_PARAM = "protocol";
+
+    private final HmacConfiguration config;
+
+    private final byte[] signedSuffix;
+
+    private SignedParameters(HmacConfiguration config, byte[] signedSuffix) {
+        this.config = config;
+        this.signedSuffix = signedSuffix;
+    }
+
+    /**
+     * Reads the configuration carried by the given request.
+     *
+     * @param request
+     *     The signed request.
+     *
+     * @param connection
+     *     The requested connection name.
+     *
+     * @param template
+     *     The configuration supplying defaults, or null.
+     *
+     * @param serverId
+     *     The value of hmac-server-id.
+     *
+     * @return
+     *     The configuration and its signed message suffix, or null if the
+     *     request has no protocol or contains parameters which cannot be
+     *     signed unambiguously.
+     */
+    public static SignedParameters fromRequest(HttpServletRequest request, String connection,
+            GuacamoleConfiguration template, String serverId) {
+
+        if (!isSignable(connection)) {
+            return null;
+        }
+
+        String protocol = request.getParameter(PROTOCOL_PARAM);
+        if (protocol == null && template != null) {
+            protocol = template.getProtocol();
+        }
+        if (protocol == null || protocol.isEmpty()) {
+            return null;
+        }
+
+        // Sorted so the signer and verifier agree on the order
+        Map<String, String> parameters = new TreeMap<String, String>();
+        for (Object key : request.getParameterMap().keySet()) {
+            String name = (String) key;
+            if (!name.startsWith(PARAMETER_PREFIX)) {
+                continue;
+            }
+
+            String parameter = name.substring(PARAMETER_PREFIX.length());
+            String value = request.getParameter(name);
+            if (parameter.isEmpty() || parameter.indexOf('=') != -1
+                    || !isSignable(parameter) || value == null || !isSignable(value)) {
+                return null;
+            }
+            parameters.put(parameter, value);
+        }
+
+        HmacConfiguration config = (template == null)
+                ? new HmacConfiguration()
+                : new HmacConfiguration(template);
+        config.setProtocol(protocol);
+
+        StringBuilder message = new StringBuilder()
+            .append(protocol)
+            .append(serverId)
+            .append("connection=").append(connection).append('\n');
+
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            config.setParameter(parameter.getKey(), parameter.getValue());
+            message.append(parameter.getKey()).append('=')
+                   .append(parameter.getValue()).append('\n');
+        }
+
+        try {
+            return new SignedParameters(config, message.toString().getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported.", e);
+        }
+
+    }
+
+    private static boolean isSignable(String value) {
+        return value.indexOf('\n') == -1;
+    }
+
+    /**
+     * @return The configuration described by the request.
+     */
+    public HmacConfiguration getConfiguration() {
+        return config;
+    }
+
+    /**
+     * Returns the UTF-8 encoding of everything in the signed message after
+     * the timestamp. The returned array must not be modified.
+     *
+     * @return The encoded signed message suffix.
+     */
+    public byte[] getSignedSuffix() {
+        return signedSuffix;
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.brianwells.guacamole.net.hmac;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A single shared secret within the key ring, along with per-thread MAC
+ * state already initialized with that secret for each algorithm in use.
+ */
+public class SigningKey {
+
+    /**
+     * Expiry of keys which never expire.
+     */
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    /**
+     * The algorithm used when none is configured.
+     */
+    public static final String DEFAULT_ALGORITHM = "HmacSHA1";
+
+    private final String id;
+
+    private final byte[] secretKey;
+
+    private final long expiresAt;
+
+    /**
+     * Per-thread initialized MACs and scratch buffers, one slot per
+     * algorithm. Mac instances are not thread safe, but once initialized they
+     * can be reused indefinitely by the owning thread, avoiding a provider
+     * lookup and key schedule per verification.
+     */
+    private final ThreadLocal<MacState[]> state = new ThreadLocal<MacState[]>() {
+        @Override
+        protected MacState[] initialValue() {
+            return new MacState[1];
+        }
+    };
+
+    /**
+     * Creates a new SigningKey.
+     *
+     * @param id
+     *     The identifier signed URLs use to select this key, or null for the
+     *     default key.
+     *
+     * @param secretKey
+     *     The shared secret, used as its UTF-8 encoding.
+     *
+     * @param expiresAt
+     *     The time after which signatures made with this key are refused, in
+     *     milliseconds since the epoch, or NO_EXPIRY.
+     */
+    public SigningKey(String id, String secretKey, long expiresAt) {
+        this.id = id;
+        try {
+            this.secretKey = secretKey.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported.", e);
+        }
+        this.expiresAt = expiresAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * Returns this thread's initialized MAC state for this key and the given
+     * algorithm. Callers must always use the same slot for the same
+     * algorithm.
+     *
+     * @param slot
+     *     The index of the algorithm among those in use.
+     *
+     * @param algorithm
+     *     The JCE name of the algorithm.
+     *
+     * @return The MAC state, or null if the MAC could not be initialized.
+     */
+    MacState getMacState(int slot, String algorithm) {
+
+        MacState[] states = state.get();
+        if (slot >= states.length) {
+            states = Arrays.copyOf(states, slot + 1);
+            state.set(states);
+        }
+
+        MacState macState = states[slot];
+        if (macState == null) {
+            try {
+                macState = new MacState(createMac(algorithm));
+            } catch (InvalidKeyException e) {
+                return null;
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+            states[slot] = macState;
+        }
+
+        return macState;
+
+    }
+
+    Mac createMac(String algorithm) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(secretKey, algorithm));
+        return mac;
+    }
+
+    /**
+     * An initialized Mac along with buffers sized to its output, owned by a
+     * single thread.
+     */
+    static class MacState {
+        final Mac mac;
+        final byte[] expected;
+        final byte[] provided;
+        final byte[] scratch = new byte[32];
+
+        MacState(Mac mac) {
+            this.mac = mac;
+            this.expected = new byte[mac.getMacLength()];
+            this.provided = new byte[mac.getMacLength()];
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over several cache-line-separated cells, selected by thread,
+ * so that concurrent increments from different threads rarely contend.
+ * Reading the total sums all cells.
+ */
+final class StripedCounter {
+
+    /**
+     * Number of cells. Must be a power of two.
+     */
+    static final int STRIPES = 16;
+
+    /**
+     * Distance between cells, in longs, keeping each on its own cache line.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Returns the stripe used by the current thread.
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
+    void increment() {
+        cells.incrementAndGet(stripe() * PADDING);
+    }
+
+    void add(long value) {
+        cells.addAndGet(stripe() * PADDING, value);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+}
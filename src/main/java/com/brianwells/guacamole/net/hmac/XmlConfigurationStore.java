@@ -0,0 +1,514 @@
+package com.brianwells.guacamole.net.hmac;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.GuacamoleServerException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Holds the most recently parsed contents of hmac-config.xml as an immutable
+ * ConfigurationSnapshot. The file is reparsed only when its modification time
+ * or length changes, and only if its contents actually differ. If a reparse
+ * fails, the last good snapshot remains in use.
+ *
+ * Files are parsed with secure processing enabled, and may not contain a
+ * DOCTYPE, so neither entity expansion nor external entities are possible.
+ * A file exceeding its ConfigurationLimits is rejected like any other
+ * invalid file.
+ */
+public class XmlConfigurationStore implements ConfigurationSource {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(XmlConfigurationStore.class);
+
+    /**
+     * A reader for each thread which parses configurations, so that lookups
+     * parsing single elements need not create a parser each time.
+     */
+    private static final ThreadLocal<XMLReader> readers = new ThreadLocal<XMLReader>();
+
+    /**
+     * Handler left on each idle reader, so that it holds nothing parsed.
+     */
+    private static final DefaultHandler IDLE_HANDLER = new DefaultHandler();
+
+    /**
+     * The configuration file being watched.
+     */
+    private final File configFile;
+
+    /**
+     * The server ID included in signed messages, used to encode each
+     * configuration's signed suffix as it is loaded, or null to encode
+     * lazily on first use.
+     */
+    private final String serverId;
+
+    /**
+     * The limits each version of the file must respect.
+     */
+    private final ConfigurationLimits limits;
+
+    /**
+     * The current snapshot, or null if the file has never been read
+     * successfully.
+     */
+    private final AtomicReference<ConfigurationSnapshot> snapshot =
+            new AtomicReference<ConfigurationSnapshot>();
+
+    /**
+     * Lock held while the file is being reread. Readers never wait for this
+     * lock once a snapshot exists.
+     */
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
+    /**
+     * Modification time of the last version of the file which failed to
+     * parse. Guarded by reloadLock.
+     */
+    private long failedLastModified = -1;
+
+    /**
+     * Length of the last version of the file which failed to parse. Guarded
+     * by reloadLock.
+     */
+    private long failedLength = -1;
+
+    /**
+     * Creates a new XmlConfigurationStore which reads the given file.
+     *
+     * @param configFile
+     *     The XML configuration file to read.
+     */
+    public XmlConfigurationStore(File configFile) {
+        this(configFile, null);
+    }
+
+    /**
+     * Creates a new XmlConfigurationStore which reads the given file and
+     * encodes the signed suffix of every configuration as it is loaded.
+     *
+     * @param configFile
+     *     The XML configuration file to read.
+     *
+     * @param serverId
+     *     The value of hmac-server-id, or null to encode signed suffixes
+     *     lazily.
+     */
+    public XmlConfigurationStore(File configFile, String serverId) {
+        this(configFile, serverId, ConfigurationLimits.DEFAULT);
+    }
+
+    /**
+     * Creates a new XmlConfigurationStore which reads the given file, within
+     * the given limits.
+     *
+     * @param configFile
+     *     The XML configuration file to read.
+     *
+     * @param serverId
+     *     The value of hmac-server-id, or null to encode signed suffixes
+     *     lazily.
+     *
+     * @param limits
+     *     The limits each version of the file must respect.
+     */
+    public XmlConfigurationStore(File configFile, String serverId, ConfigurationLimits limits) {
+        this.configFile = configFile;
+        this.serverId = serverId;
+        this.limits = limits;
+    }
+
+    /**
+     * @return The configuration file read by this store.
+     */
+    public File getConfigFile() {
+        return configFile;
+    }
+
+    /**
+     * Returns the current snapshot of the configuration file, rereading the
+     * file first if it has changed since it was last read. The check is a
+     * single stat of the file; no lock is taken unless the file changed.
+     *
+     * @return
+     *     The most recent good snapshot of the configuration file.
+     *
+     * @throws GuacamoleException
+     *     If the file has never been read successfully and cannot be read
+     *     now.
+     */
+    public ConfigurationSnapshot getSnapshot() throws GuacamoleException {
+
+        long lastModified = configFile.lastModified();
+        long length = configFile.length();
+
+        ConfigurationSnapshot current = snapshot.get();
+        if (current != null && current.isCurrent(lastModified, length))
+            return current;
+
+        // Readers carry on with the current snapshot while another thread
+        // reloads; only the very first load makes callers wait
+        if (current == null)
+            reloadLock.lock();
+        else if (!reloadLock.tryLock())
+            return current;
+
+        try {
+
+            // Another thread may have reloaded while we were waiting
+            current = snapshot.get();
+            if (current != null && current.isCurrent(lastModified, length))
+                return current;
+
+            // Do not retry a file which is known to be broken
+            if (current != null && failedLastModified == lastModified && failedLength == length)
+                return current;
+
+            try {
+                ConfigurationSnapshot updated = reload(current, lastModified, length);
+                snapshot.set(updated);
+                failedLastModified = -1;
+                failedLength = -1;
+                return updated;
+            }
+            catch (GuacamoleException e) {
+
+                // Nothing to fall back to
+                if (current == null)
+                    throw e;
+
+                logger.warn("Unable to reload \"{}\", continuing with previous configuration: {}",
+                        configFile, e.getMessage());
+                logger.debug("Configuration reload failed.", e);
+
+                failedLastModified = lastModified;
+                failedLength = length;
+                return current;
+
+            }
+
+        }
+        finally {
+            reloadLock.unlock();
+        }
+
+    }
+
+    @Override
+    public GuacamoleConfiguration getConfiguration(String name) throws GuacamoleException {
+        return getSnapshot().getConfiguration(name);
+    }
+
+    @Override
+    public int getConfigurationCount() throws GuacamoleException {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public long getVersion() throws GuacamoleException {
+        return getSnapshot().getVersion();
+    }
+
+    /**
+     * Reads the configuration file, returning a new snapshot if its contents
+     * differ from the given snapshot.
+     */
+    private ConfigurationSnapshot reload(ConfigurationSnapshot current,
+            long lastModified, long length) throws GuacamoleException {
+
+        logger.debug("Reading configuration file: \"{}\"", configFile);
+
+        byte[] content = readFile(configFile, limits.getMaxBytes());
+        byte[] digest = digest(content);
+
+        // Only the file attributes changed
+        if (current != null && current.hasDigest(digest))
+            return current.withFileAttributes(lastModified, length);
+
+        List<ConfigurationPattern> patterns = new ArrayList<ConfigurationPattern>();
+        Map<String, GuacamoleConfiguration> configs = parse(new ByteArrayInputStream(content), patterns, limits);
+
+        // Encode signed suffixes now rather than on the first request
+        if (serverId != null) {
+            for (GuacamoleConfiguration config : configs.values())
+                ((HmacConfiguration) config).getSignedSuffix(serverId);
+        }
+
+        long version = (current == null) ? 1 : current.getVersion() + 1;
+        logger.info("Loaded {} configurations and {} patterns from \"{}\".",
+                new Object[] { configs.size(), patterns.size(), configFile });
+
+        return new ConfigurationSnapshot(configs, patterns, version, lastModified, length, digest);
+
+    }
+
+    /**
+     * Parses the given configuration file. Any configuration patterns are
+     * not included.
+     *
+     * @param configFile
+     *     The XML configuration file to parse.
+     *
+     * @return
+     *     A Map of all configurations parsed from the file.
+     *
+     * @throws GuacamoleException
+     *     If the file cannot be read or parsed.
+     */
+    public static Map<String, GuacamoleConfiguration> parse(File configFile)
+            throws GuacamoleException {
+        return parse(configFile, null);
+    }
+
+    /**
+     * Parses the given configuration file, including any configuration
+     * patterns.
+     *
+     * @param configFile
+     *     The XML configuration file to parse.
+     *
+     * @param patterns
+     *     The list to add each configuration pattern to, in the order
+     *     defined, or null to ignore them.
+     *
+     * @return
+     *     A Map of all configurations parsed from the file.
+     *
+     * @throws GuacamoleException
+     *     If the file cannot be read or parsed.
+     */
+    public static Map<String, GuacamoleConfiguration> parse(File configFile,
+            List<ConfigurationPattern> patterns) throws GuacamoleException {
+        return parse(configFile, patterns, ConfigurationLimits.DEFAULT);
+    }
+
+    /**
+     * Parses the given configuration file within the given limits, including
+     * any configuration patterns.
+     *
+     * @param configFile
+     *     The XML configuration file to parse.
+     *
+     * @param patterns
+     *     The list to add each configuration pattern to, in the order
+     *     defined, or null to ignore them.
+     *
+     * @param limits
+     *     The limits the file must respect.
+     *
+     * @return
+     *     A Map of all configurations parsed from the file.
+     *
+     * @throws GuacamoleException
+     *     If the file cannot be read or parsed, or exceeds any limit.
+     */
+    public static Map<String, GuacamoleConfiguration> parse(File configFile,
+            List<ConfigurationPattern> patterns, ConfigurationLimits limits) throws GuacamoleException {
+        return parse(new ByteArrayInputStream(readFile(configFile, limits.getMaxBytes())), patterns, limits);
+    }
+
+    /**
+     * Parses configuration XML from the given stream. Any configuration
+     * patterns are not included.
+     *
+     * @param input
+     *     The stream to read XML from.
+     *
+     * @return
+     *     A Map of all configurations parsed from the stream.
+     *
+     * @throws GuacamoleException
+     *     If the stream cannot be read or parsed.
+     */
+    public static Map<String, GuacamoleConfiguration> parse(InputStream input)
+            throws GuacamoleException {
+        return parse(input, null);
+    }
+
+    /**
+     * Parses configuration XML from the given stream, including any
+     * configuration patterns.
+     *
+     * @param input
+     *     The stream to read XML from.
+     *
+     * @param patterns
+     *     The list to add each configuration pattern to, in the order
+     *     defined, or null to ignore them.
+     *
+     * @return
+     *     A Map of all configurations parsed from the stream.
+     *
+     * @throws GuacamoleException
+     *     If the stream cannot be read or parsed.
+     */
+    public static Map<String, GuacamoleConfiguration> parse(InputStream input,
+            List<ConfigurationPattern> patterns) throws GuacamoleException {
+        return parse(input, patterns, ConfigurationLimits.DEFAULT);
+    }
+
+    /**
+     * Parses configuration XML from the given stream within the given
+     * limits, including any configuration patterns. The number of bytes
+     * read from the stream is not limited.
+     *
+     * @param input
+     *     The stream to read XML from.
+     *
+     * @param patterns
+     *     The list to add each configuration pattern to, in the order
+     *     defined, or null to ignore them.
+     *
+     * @param limits
+     *     The limits the XML must respect.
+     *
+     * @return
+     *     A Map of all configurations parsed from the stream.
+     *
+     * @throws GuacamoleException
+     *     If the stream cannot be read or parsed, or exceeds any limit.
+     */
+    public static Map<String, GuacamoleConfiguration> parse(InputStream input,
+            List<ConfigurationPattern> patterns, ConfigurationLimits limits) throws GuacamoleException {
+
+        try {
+            // Set up parser
+            HmacConfigurationHandler contentHandler = new HmacConfigurationHandler(limits);
+
+            XMLReader parser = getReader();
+            parser.setContentHandler(contentHandler);
+            try {
+                parser.parse(new InputSource(input));
+            }
+            finally {
+                parser.setContentHandler(IDLE_HANDLER);
+            }
+
+            if (patterns != null)
+                patterns.addAll(contentHandler.getPatterns());
+            return contentHandler.getConfigs();
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Error reading configuration file " + HmacAuthenticationProvider.DEFAULT_HMAC_CONFIG, e);
+        }
+        catch (SAXException e) {
+            throw new GuacamoleServerException("Error parsing XML file " + HmacAuthenticationProvider.DEFAULT_HMAC_CONFIG
+                    + ": " + e.getMessage(), e);
+        }
+
+    }
+
+    /**
+     * Returns the reader of the current thread, creating it if necessary.
+     * The reader must not be used by nested parses.
+     */
+    private static XMLReader getReader() throws SAXException {
+        XMLReader reader = readers.get();
+        if (reader == null) {
+            reader = createReader();
+            readers.set(reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Creates a namespace-aware SAX reader with secure processing enabled,
+     * which rejects any DOCTYPE and never loads external entities or DTDs.
+     *
+     * @return
+     *     A new XMLReader.
+     *
+     * @throws SAXException
+     *     If no parser supporting these features is available.
+     */
+    static XMLReader createReader() throws SAXException {
+
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setXIncludeAware(false);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            return factory.newSAXParser().getXMLReader();
+        }
+        catch (ParserConfigurationException e) {
+            throw new SAXException("No secure XML parser is available.", e);
+        }
+
+    }
+
+    /**
+     * Reads the entire contents of the given file, failing before it is read
+     * if it is larger than the given size, or as soon as it grows beyond it.
+     */
+    static byte[] readFile(File file, long maxBytes) throws GuacamoleException {
+
+        if (file.length() > maxBytes)
+            throw new GuacamoleServerException("Configuration file \"" + file + "\" is larger than "
+                    + maxBytes + " bytes.");
+
+        try {
+            InputStream input = new FileInputStream(file);
+            try {
+                ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.max(file.length(), 512));
+                byte[] buffer = new byte[8192];
+                int length;
+                while ((length = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, length);
+                    if (output.size() > maxBytes)
+                        throw new GuacamoleServerException("Configuration file \"" + file + "\" is larger than "
+                                + maxBytes + " bytes.");
+                }
+                return output.toByteArray();
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Error reading configuration file " + HmacAuthenticationProvider.DEFAULT_HMAC_CONFIG, e);
+        }
+
+    }
+
+    /**
+     * Returns a digest of the given content, used to detect whether a file
+     * whose attributes changed actually has different contents.
+     */
+    private static byte[] digest(byte[] content) throws GuacamoleException {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(content);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new GuacamoleServerException("SHA-1 digest not available.", e);
+        }
+    }
+
+}
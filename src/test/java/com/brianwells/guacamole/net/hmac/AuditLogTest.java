@@ -0,0 +1,118 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AuditLogTest extends TestCase {
+    private File logFile;
+
+    public void setUp() throws Exception {
+        logFile = File.createTempFile("hmac-audit", ".log");
+        logFile.deleteOnExit();
+    }
+
+    public void tearDown() {
+        for (int i = 1; i <= 2; i++)
+            new File(logFile.getPath() + "." + i).delete();
+        logFile.delete();
+    }
+
+    public void testEventsWritten() throws Exception {
+        AuditLog log = new AuditLog(logFile, 16, AuditLog.OverflowPolicy.BLOCK, 1 << 20, 2);
+        log.publish(1373563683000L, HmacMetrics.Outcome.SUCCESS, "test-pc", "192.0.2.1");
+        log.publish(1373563683001L, HmacMetrics.Outcome.MISSING_CONNECTION, null, null);
+        log.publish(1373563683002L, HmacMetrics.Outcome.UNKNOWN_CONNECTION, "x\"\nforged", "192.0.2.1");
+        log.close();
+
+        List<String> lines = readLines(logFile);
+        assertEquals(3, lines.size());
+        assertEquals("2013-07-11T17:28:03.000Z outcome=SUCCESS connection=\"test-pc\" client=\"192.0.2.1\"", lines.get(0));
+        assertEquals("2013-07-11T17:28:03.001Z outcome=MISSING_CONNECTION connection=- client=-", lines.get(1));
+        assertEquals("2013-07-11T17:28:03.002Z outcome=UNKNOWN_CONNECTION connection=\"x\\\"\\u000aforged\" client=\"192.0.2.1\"", lines.get(2));
+        assertEquals(3, log.getWritten());
+    }
+
+    public void testBlockingLosesNothing() throws Exception {
+        final AuditLog log = new AuditLog(logFile, 4, AuditLog.OverflowPolicy.BLOCK, 1 << 30, 2);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++)
+                        log.publish(i, HmacMetrics.Outcome.BAD_SIGNATURE, "c", "a");
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        log.close();
+
+        assertEquals(0, log.getDropped());
+        assertEquals(20000, log.getWritten());
+        assertEquals(20000, readLines(logFile).size());
+    }
+
+    public void testDroppedEventsCounted() throws Exception {
+        AuditLog log = new AuditLog(logFile, 4, AuditLog.OverflowPolicy.DROP, 1 << 30, 2);
+        for (int i = 0; i < 20000; i++)
+            log.publish(i, HmacMetrics.Outcome.BAD_SIGNATURE, "c", "a");
+        log.close();
+
+        assertEquals(20000, log.getWritten() + log.getDropped());
+        assertEquals(log.getWritten(), readLines(logFile).size());
+    }
+
+    public void testRollover() throws Exception {
+        AuditLog log = new AuditLog(logFile, 1024, AuditLog.OverflowPolicy.BLOCK, 1000, 2);
+        for (int i = 0; i < 100; i++)
+            log.publish(i, HmacMetrics.Outcome.SUCCESS, "test-pc", "192.0.2.1");
+        log.close();
+
+        assertTrue(logFile.length() <= 1000);
+        assertTrue(new File(logFile.getPath() + ".1").exists());
+        assertTrue(new File(logFile.getPath() + ".2").exists());
+        assertFalse(new File(logFile.getPath() + ".3").exists());
+    }
+
+    public void testFailedRolloverKeepsWriting() throws Exception {
+        // A non-empty directory in place of the oldest log cannot be deleted
+        File oldest = new File(logFile.getPath() + ".1");
+        assertTrue(oldest.mkdir());
+        File blocker = new File(oldest, "blocker");
+        assertTrue(blocker.createNewFile());
+        try {
+            AuditLog log = new AuditLog(logFile, 1024, AuditLog.OverflowPolicy.BLOCK, 1000, 1);
+            for (int i = 0; i < 100; i++)
+                log.publish(i, HmacMetrics.Outcome.SUCCESS, "test-pc", "192.0.2.1");
+            log.close();
+
+            assertEquals(100, log.getWritten());
+            assertEquals(100, readLines(logFile).size());
+        } finally {
+            blocker.delete();
+            oldest.delete();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+public class AuthorizationCacheTest extends TestCase {
+    private final GuacamoleConfiguration config = new GuacamoleConfiguration();
+
+    public void testHitUntilExpiry() {
+        AuthorizationCache cache = new AuthorizationCache(100);
+        cache.put("test-pc", null, null, "1000", "sig", config, 1, 2000);
+
+        assertSame(config, cache.get("test-pc", null, null, "1000", "sig", 1, 1500));
+        assertNull(cache.get("test-pc", null, null, "1000", "other", 1, 1500));
+        assertNull(cache.get("test-pc", null, null, "1000", "sig", 1, 2000));
+        assertEquals(0, cache.size());
+    }
+
+    public void testVersionChangeInvalidates() {
+        AuthorizationCache cache = new AuthorizationCache(100);
+        cache.put("test-pc", null, null, "1000", "sig", config, 1, Long.MAX_VALUE);
+
+        assertNull(cache.get("test-pc", null, null, "1000", "sig", 2, 1500));
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testBoundedSize() {
+        AuthorizationCache cache = new AuthorizationCache(32);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("connection-" + i, null, null, "1000", "sig-" + i, config, 1, Long.MAX_VALUE);
+        }
+        assertTrue(cache.size() <= 32);
+        assertSame(config, cache.get("connection-999", null, null, "1000", "sig-999", 1, 0));
+    }
+
+    public void testKeyAndAlgorithmArePartOfKey() {
+        AuthorizationCache cache = new AuthorizationCache(100);
+        cache.put("test-pc", "rotated", "sha256", "1000", "sig", config, 1, Long.MAX_VALUE);
+
+        assertSame(config, cache.get("test-pc", "rotated", "sha256", "1000", "sig", 1, 1500));
+        assertNull(cache.get("test-pc", null, "sha256", "1000", "sig", 1, 1500));
+        assertNull(cache.get("test-pc", "rotated", null, "1000", "sig", 1, 1500));
+        assertNull(cache.get("test-pc", "other", "sha256", "1000", "sig", 1, 1500));
+    }
+}
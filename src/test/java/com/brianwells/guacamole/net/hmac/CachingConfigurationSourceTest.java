@@ -0,0 +1,94 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CachingConfigurationSourceTest extends TestCase {
+    private ConfigurationSource source;
+    private GuacamoleConfiguration config;
+
+    public void setUp() throws Exception {
+        source = mock(ConfigurationSource.class);
+        config = new GuacamoleConfiguration();
+        config.setProtocol("rdp");
+        config.setParameter("hostname", "10.2.3.4");
+        when(source.getConfiguration("known")).thenReturn(config);
+        when(source.getVersion()).thenReturn(1L);
+    }
+
+    public void testFoundAndMissingAreCached() throws Exception {
+        CachingConfigurationSource cache = new CachingConfigurationSource(source, 100, 60000);
+
+        for (int i = 0; i < 10; i++) {
+            assertSame(config, cache.getConfiguration("known"));
+            assertNull(cache.getConfiguration("unknown"));
+        }
+
+        verify(source, times(1)).getConfiguration("known");
+        verify(source, times(1)).getConfiguration("unknown");
+        assertEquals(2, cache.getMisses());
+        assertEquals(18, cache.getHits());
+    }
+
+    public void testUnknownNamesFiltered() throws Exception {
+        EnumerableConfigurationSource enumerable = mock(EnumerableConfigurationSource.class);
+        when(enumerable.getConfiguration("known")).thenReturn(config);
+
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++)
+            names.add("connection-" + i);
+        names.add("known");
+        when(enumerable.getConfigurationNames()).thenReturn(names);
+
+        CachingConfigurationSource cache = new CachingConfigurationSource(enumerable, 100, 60000);
+        assertSame(config, cache.getConfiguration("known"));
+
+        // Random names are mostly rejected without reaching the source
+        for (int i = 0; i < 1000; i++)
+            cache.getConfiguration("random-" + i);
+        assertTrue(cache.getFiltered() > 950);
+        verify(enumerable, times(1)).getConfigurationNames();
+    }
+
+    public void testBloomFilterHasNoFalseNegatives() {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++)
+            names.add("connection-" + i);
+
+        BloomFilter filter = new BloomFilter(names, 0.01);
+        for (String name : names)
+            assertTrue(filter.mightContain(name));
+        assertFalse(new BloomFilter(Arrays.<String>asList(), 0.01).mightContain("anything"));
+    }
+
+    public void testRefreshedChangeBumpsVersion() throws Exception {
+        // Entries expire immediately
+        CachingConfigurationSource cache = new CachingConfigurationSource(source, 100, 0);
+        assertSame(config, cache.getConfiguration("known"));
+        assertEquals(1, cache.getVersion());
+
+        // Same contents, same version
+        GuacamoleConfiguration same = new GuacamoleConfiguration(config);
+        when(source.getConfiguration("known")).thenReturn(same);
+        assertSame(same, cache.getConfiguration("known"));
+        assertEquals(1, cache.getVersion());
+
+        GuacamoleConfiguration changed = new GuacamoleConfiguration(config);
+        changed.setParameter("hostname", "10.2.3.5");
+        when(source.getConfiguration("known")).thenReturn(changed);
+        assertSame(changed, cache.getConfiguration("known"));
+        assertEquals(2, cache.getVersion());
+
+        verify(source, never()).getConfiguration("other");
+    }
+}
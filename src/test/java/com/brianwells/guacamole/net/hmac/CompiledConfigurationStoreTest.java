@@ -0,0 +1,92 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CompiledConfigurationStoreTest extends TestCase {
+    private File catalogFile;
+
+    public void setUp() throws Exception {
+        catalogFile = File.createTempFile("hmac-config", ".bin");
+        catalogFile.deleteOnExit();
+    }
+
+    public void tearDown() {
+        catalogFile.delete();
+    }
+
+    public void testExampleConfiguration() throws GuacamoleException {
+        Map<String, GuacamoleConfiguration> configs = XmlConfigurationStore.parse(new File("src/test/resources/hmac-config.xml"));
+        HmacConfigurationCompiler.compile(configs, catalogFile);
+
+        CompiledConfigurationStore store = new CompiledConfigurationStore(catalogFile);
+        assertEquals(1, store.getConfigurationCount());
+
+        GuacamoleConfiguration config = store.getConfiguration("test-pc");
+        assertNotNull(config);
+        assertEquals("rdp", config.getProtocol());
+        assertEquals(configs.get("test-pc").getParameters(), config.getParameters());
+
+        assertNull(store.getConfiguration("other-pc"));
+    }
+
+    public void testManyConfigurations() throws GuacamoleException {
+        Map<String, GuacamoleConfiguration> configs = new HashMap<String, GuacamoleConfiguration>();
+        for (int i = 0; i < 5000; i++) {
+            GuacamoleConfiguration config = new GuacamoleConfiguration();
+            config.setProtocol(i % 2 == 0 ? "rdp" : "vnc");
+            config.setParameter("hostname", "host-" + i + ".example.net");
+            config.setParameter("port", String.valueOf(5900 + i));
+            configs.put("connection-\u00e9-" + i, config);
+        }
+        HmacConfigurationCompiler.compile(configs, catalogFile);
+
+        CompiledConfigurationStore store = new CompiledConfigurationStore(catalogFile);
+        assertEquals(5000, store.getConfigurationCount());
+        for (Map.Entry<String, GuacamoleConfiguration> entry : configs.entrySet()) {
+            GuacamoleConfiguration config = store.getConfiguration(entry.getKey());
+            assertNotNull(entry.getKey(), config);
+            assertEquals(entry.getValue().getProtocol(), config.getProtocol());
+            assertEquals(entry.getValue().getParameters(), config.getParameters());
+        }
+        assertNull(store.getConfiguration("connection-5000"));
+    }
+
+    public void testRemapOnChangeAndKeepOnCorruption() throws Exception {
+        Map<String, GuacamoleConfiguration> configs = new HashMap<String, GuacamoleConfiguration>();
+        GuacamoleConfiguration config = new GuacamoleConfiguration();
+        config.setProtocol("ssh");
+        configs.put("a", config);
+        HmacConfigurationCompiler.compile(configs, catalogFile);
+        assertTrue(catalogFile.setLastModified(1000000L));
+
+        CompiledConfigurationStore store = new CompiledConfigurationStore(catalogFile);
+        long version = store.getVersion();
+        assertNotNull(store.getConfiguration("a"));
+
+        configs.put("b", config);
+        HmacConfigurationCompiler.compile(configs, catalogFile);
+        assertTrue(catalogFile.setLastModified(2000000L));
+        assertNotNull(store.getConfiguration("b"));
+        assertEquals(version + 1, store.getVersion());
+
+        // Catalogs must be replaced by rename, never rewritten in place
+        File corrupt = File.createTempFile("hmac-config", ".bin");
+        FileOutputStream out = new FileOutputStream(corrupt);
+        try {
+            out.write("garbage".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertTrue(corrupt.renameTo(catalogFile));
+        assertTrue(catalogFile.setLastModified(3000000L));
+        assertNotNull(store.getConfiguration("b"));
+        assertEquals(version + 1, store.getVersion());
+    }
+}
@@ -5,6 +5,7 @@ import junit.framework.TestCase;
 import org.glyptodon.guacamole.environment.Environment;
 import org.glyptodon.guacamole.environment.LocalEnvironment;
 import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.net.auth.AuthenticatedUser;
 import org.glyptodon.guacamole.net.auth.Credentials;
 import org.glyptodon.guacamole.net.auth.UserContext;
 import org.glyptodon.guacamole.net.auth.simple.SimpleUserContext;
@@ -15,9 +16,14 @@ import org.mockito.stubbing.Answer;
 
 import javax.servlet.http.HttpServletRequest;
 import java.lang.reflect.Field;
+import java.sql.DriverManager;
+import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.brianwells.guacamole.net.hmac.HmacAuthenticationProvider.*;
 import static org.mockito.Matchers.anyString;
@@ -122,6 +128,434 @@ public class HmacAuthenticationProviderTest extends TestCase {
         assertNull(updatedUserContext);
     }
 
+    public void testRefreshUsesCachedDecision() throws Exception {
+        TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+        when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+        Environment environment = mock(Environment.class);
+        when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+        HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+        Credentials credentials = new Credentials();
+        credentials.setRequest(getHttpServletRequest());
+        AuthenticatedUser user = authProvider.authenticateUser(credentials);
+        assertNotNull(user);
+        assertEquals(0, authProvider.getAuthorizationCache().getHits());
+
+        Credentials refresh = new Credentials();
+        refresh.setRequest(getHttpServletRequest());
+        AuthenticatedUser refreshed = authProvider.updateAuthenticatedUser(user, refresh);
+        assertNotNull(refreshed);
+        assertEquals(1, authProvider.getAuthorizationCache().getHits());
+
+        // Cached decisions still expire with the timestamp
+        when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L + ONE_HOUR);
+        assertNull(authProvider.updateAuthenticatedUser(refreshed, refresh));
+    }
+
+    public void testCachedDecisionExpiresWithKey() throws Exception {
+        long keyExpiry = 1373563683000L + 60000L;
+        setGuacamoleProperty("timestamp-age-limit", "0");
+        setGuacamoleProperty("hmac-key-ids", "rotated");
+        setGuacamoleProperty("hmac-key.rotated", "secret");
+        setGuacamoleProperty("hmac-key-expires.rotated", String.valueOf(keyExpiry));
+        try {
+            TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+            when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+            Environment environment = mock(Environment.class);
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+            HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(CONNECTION_PARAM, connectionId);
+            params.put(TIMESTAMP_PARAM, "1373563683000");
+            params.put(SIGNATURE_PARAM, "uvPcq+epk1wDfxlM5UOZp3bDJ2Y=");
+            params.put(KEY_ID_PARAM, "rotated");
+            Credentials credentials = new Credentials();
+            credentials.setRequest(mockRequest(params));
+            AuthenticatedUser user = authProvider.authenticateUser(credentials);
+            assertNotNull(user);
+            assertNotNull(authProvider.updateAuthenticatedUser(user, credentials));
+            assertEquals(1, authProvider.getAuthorizationCache().getHits());
+
+            // The timestamp never expires, but the key has
+            when(timeProvider.currentTimeMillis()).thenReturn(keyExpiry);
+            assertNull(authProvider.updateAuthenticatedUser(user, credentials));
+        } finally {
+            setGuacamoleProperty("timestamp-age-limit", String.valueOf(ONE_HOUR));
+            removeGuacamoleProperty("hmac-key-ids");
+            removeGuacamoleProperty("hmac-key.rotated");
+            removeGuacamoleProperty("hmac-key-expires.rotated");
+        }
+    }
+
+    public void testRefreshKeepsUserContext() throws Exception {
+        TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+        when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+        Environment environment = mock(Environment.class);
+        when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+        HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+        Credentials credentials = new Credentials();
+        credentials.setRequest(getHttpServletRequest());
+        AuthenticatedUser user = authProvider.authenticateUser(credentials);
+        UserContext context = authProvider.getUserContext(user);
+        assertNotNull(context);
+
+        // A refresh authorizing the same configuration keeps the context
+        Credentials refresh = new Credentials();
+        refresh.setRequest(getHttpServletRequest());
+        AuthenticatedUser refreshed = authProvider.updateAuthenticatedUser(user, refresh);
+        assertEquals(user.getIdentifier(), refreshed.getIdentifier());
+        assertSame(context, authProvider.updateUserContext(context, refreshed));
+
+        // A changed configuration gets a new context
+        GuacamoleConfiguration changed = new GuacamoleConfiguration();
+        changed.setProtocol("vnc");
+        ((HmacAuthenticatedUser) refreshed).setAuthorizedConfigurations(
+                java.util.Collections.singletonMap(connectionId, changed));
+        UserContext updated = authProvider.updateUserContext(context, refreshed);
+        assertNotSame(context, updated);
+        assertSame(updated, authProvider.updateUserContext(updated, refreshed));
+    }
+
+    public void testSingleUse() throws Exception {
+        setGuacamoleProperty("hmac-single-use", "true");
+        try {
+            TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+            when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+            Environment environment = mock(Environment.class);
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+            HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+            Credentials credentials = new Credentials();
+            credentials.setRequest(getHttpServletRequest());
+            AuthenticatedUser user = authProvider.authenticateUser(credentials);
+            assertNotNull(user);
+
+            // The same session may refresh with its own signature
+            Credentials refresh = new Credentials();
+            refresh.setRequest(getHttpServletRequest());
+            assertNotNull(authProvider.updateAuthenticatedUser(user, refresh));
+
+            // But the signed URL cannot start a second session
+            Credentials replay = new Credentials();
+            replay.setRequest(getHttpServletRequest());
+            assertNull(authProvider.authenticateUser(replay));
+            assertEquals(1, authProvider.getReplayCache().getReplays());
+
+            // Nor can another spelling of the same MAC, which is no longer
+            // accepted as a signature at all
+            Credentials respelled = new Credentials();
+            respelled.setRequest(mockRequest(new HashMap<String, String>() {{
+                put(CONNECTION_PARAM, connectionId);
+                put(TIMESTAMP_PARAM,  "1373563683000");
+                put(SIGNATURE_PARAM, "uvPcq+epk1wDfxlM5UOZp3bDJ2Z=");
+            }}));
+            assertNull(authProvider.authenticateUser(respelled));
+            assertEquals(1, authProvider.getMetrics().getReplayRefusedCount());
+            assertEquals(1, authProvider.getMetrics().getBadSignatureCount());
+        } finally {
+            removeGuacamoleProperty("hmac-single-use");
+        }
+    }
+
+    public void testStateless() throws Exception {
+        setGuacamoleProperty("hmac-stateless", "true");
+        try {
+            TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+            when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+
+            // No catalog, so the URL must carry the whole configuration
+            Environment environment = mock(Environment.class);
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test"));
+            HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+            assertNull(authProvider.getConfigurationSource());
+
+            Map<String, String> params = new HashMap<String, String>() {{
+                put(CONNECTION_PARAM, "adhoc");
+                put(TIMESTAMP_PARAM,  "1373563683000");
+                put(SignedParameters.PROTOCOL_PARAM, "vnc");
+                put("guac.hostname", "10.0.0.5");
+                put("guac.port", "5901");
+                // base64_encode(hash_hmac('sha1', "1373563683000vnc10000001connection=adhoc\nhostname=10.0.0.5\nport=5901\n", 'secret', true));
+                put(SIGNATURE_PARAM, "g4bL1nALcDU1kHBmtAYfEbLS/wY=");
+            }};
+            Credentials credentials = new Credentials();
+            credentials.setRequest(mockRequest(params));
+            Map<String, GuacamoleConfiguration> configs = authProvider.getAuthorizedConfigurations(credentials);
+            assertNotNull(configs);
+            GuacamoleConfiguration config = configs.get("adhoc");
+            assertEquals("vnc", config.getProtocol());
+            assertEquals("10.0.0.5", config.getParameter("hostname"));
+            assertEquals("5901", config.getParameter("port"));
+
+            // Parameters are covered by the signature
+            params.put("guac.port", "5902");
+            credentials.setRequest(mockRequest(params));
+            assertNull(authProvider.getAuthorizedConfigurations(credentials));
+
+            // Catalog entries act as templates which the URL may override
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+            authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+            credentials.setRequest(mockRequest(new HashMap<String, String>() {{
+                put(CONNECTION_PARAM, connectionId);
+                put(TIMESTAMP_PARAM,  "1373563683000");
+                put("guac.port", "3390");
+                // base64_encode(hash_hmac('sha1', "1373563683000rdp10000001connection=test-pc\nport=3390\n", 'secret', true));
+                put(SIGNATURE_PARAM, "/rflhQPEap4X0mVIIj8kyJPenuQ=");
+            }}));
+            config = authProvider.getAuthorizedConfigurations(credentials).get(connectionId);
+            assertEquals("rdp", config.getProtocol());
+            assertEquals("10.2.3.4", config.getParameter("hostname"));
+            assertEquals("3390", config.getParameter("port"));
+            assertEquals("username", config.getParameter("username"));
+        } finally {
+            removeGuacamoleProperty("hmac-stateless");
+        }
+    }
+
+    public void testJdbcStore() throws Exception {
+        java.sql.Connection db = DriverManager.getConnection("jdbc:h2:mem:hmac;DB_CLOSE_DELAY=-1");
+        Statement statement = db.createStatement();
+        statement.execute("CREATE TABLE hmac_connection (name VARCHAR(128) PRIMARY KEY, protocol VARCHAR(32) NOT NULL)");
+        statement.execute("CREATE TABLE hmac_connection_parameter (connection_name VARCHAR(128) NOT NULL,"
+                + " name VARCHAR(128) NOT NULL, value VARCHAR(4096) NOT NULL, PRIMARY KEY (connection_name, name))");
+        statement.execute("INSERT INTO hmac_connection VALUES ('test-pc', 'rdp')");
+        statement.execute("INSERT INTO hmac_connection_parameter VALUES ('test-pc', 'hostname', '10.2.3.4'),"
+                + " ('test-pc', 'port', '3389'), ('test-pc', 'username', 'username')");
+
+        setGuacamoleProperty("hmac-config-store", STORE_JDBC);
+        setGuacamoleProperty("hmac-jdbc-url", "jdbc:h2:mem:hmac");
+        try {
+            TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+            when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+            Environment environment = mock(Environment.class);
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test"));
+            HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+            assertTrue(authProvider.getConfigurationSource() instanceof CachingConfigurationSource);
+
+            Credentials credentials = new Credentials();
+            credentials.setRequest(getHttpServletRequest());
+            GuacamoleConfiguration config = authProvider.getAuthorizedConfigurations(credentials).get(connectionId);
+            assertEquals("rdp", config.getProtocol());
+            assertEquals("username", config.getParameter("username"));
+
+            assertEquals(1, authProvider.getConfigurationSource().getConfigurationCount());
+            assertNull(authProvider.getConfigurationSource().getConfiguration("unknown"));
+
+            // The database reports no version changes, so cached decisions
+            // last only as long as a cached lookup would
+            setGuacamoleProperty("hmac-config-cache-size", "0");
+            setGuacamoleProperty("hmac-config-cache-ttl", "1000");
+            authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+            AuthenticatedUser user = authProvider.authenticateUser(credentials);
+            assertNotNull(user);
+            statement.execute("DELETE FROM hmac_connection_parameter");
+            statement.execute("DELETE FROM hmac_connection");
+            assertNotNull(authProvider.updateAuthenticatedUser(user, credentials));
+
+            when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L + 1000);
+            assertNull(authProvider.updateAuthenticatedUser(user, credentials));
+        } finally {
+            removeGuacamoleProperty("hmac-config-store");
+            removeGuacamoleProperty("hmac-jdbc-url");
+            removeGuacamoleProperty("hmac-config-cache-size");
+            removeGuacamoleProperty("hmac-config-cache-ttl");
+            statement.execute("DROP ALL OBJECTS");
+            db.close();
+        }
+    }
+
+    public void testMalformedTimestamp() throws Exception {
+        HttpServletRequest request = mockRequest(new HashMap<String, String>() {{
+            put(CONNECTION_PARAM, connectionId);
+            put(TIMESTAMP_PARAM,  "not-a-timestamp");
+            put(SIGNATURE_PARAM, "uvPcq+epk1wDfxlM5UOZp3bDJ2Y=");
+        }});
+
+        Credentials credentials = new Credentials();
+        credentials.setRequest(request);
+
+        TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+        when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+        Environment environment = mock(Environment.class);
+        when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+        HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+        assertNull(authProvider.getAuthorizedConfigurations(credentials));
+        assertEquals(1, authProvider.getMetrics().getMalformedTimestampCount());
+        assertEquals(0, authProvider.getMetrics().getConfigLookupCount());
+
+        // An absent timestamp is counted separately from expired ones
+        credentials.setRequest(mockRequest(new HashMap<String, String>() {{
+            put(CONNECTION_PARAM, connectionId);
+            put(SIGNATURE_PARAM, "uvPcq+epk1wDfxlM5UOZp3bDJ2Y=");
+        }}));
+        assertNull(authProvider.getAuthorizedConfigurations(credentials));
+        assertEquals(1, authProvider.getMetrics().getMissingTimestampCount());
+        assertEquals(0, authProvider.getMetrics().getExpiredTimestampCount());
+    }
+
+    public void testRateLimit() throws Exception {
+        setGuacamoleProperty("hmac-rate-limit", "1");
+        setGuacamoleProperty("hmac-rate-limit-burst", "2");
+        try {
+            TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+            when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+            Environment environment = mock(Environment.class);
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+            HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+            HttpServletRequest flood = mockRequest(new HashMap<String, String>() {{
+                put(CONNECTION_PARAM, connectionId);
+                put(TIMESTAMP_PARAM,  "1373563683000");
+                put(SIGNATURE_PARAM, "AAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+            }});
+            when(flood.getRemoteAddr()).thenReturn("192.0.2.1");
+            Credentials credentials = new Credentials();
+            credentials.setRequest(flood);
+            for (int i = 0; i < 10; i++)
+                assertNull(authProvider.getAuthorizedConfigurations(credentials));
+
+            // Only the burst reached signature verification
+            HmacMetrics metrics = authProvider.getMetrics();
+            assertEquals(2, metrics.getBadSignatureCount());
+            assertEquals(8, metrics.getRateLimitedCount());
+            assertEquals(2, metrics.getSignatureVerificationCount());
+
+            // Other clients are unaffected
+            HttpServletRequest request = getHttpServletRequest();
+            when(request.getRemoteAddr()).thenReturn("192.0.2.2");
+            credentials.setRequest(request);
+            assertNotNull(authProvider.getAuthorizedConfigurations(credentials));
+        } finally {
+            removeGuacamoleProperty("hmac-rate-limit");
+            removeGuacamoleProperty("hmac-rate-limit-burst");
+        }
+    }
+
+    public void testAlgorithmParameter() throws Exception {
+        setGuacamoleProperty("hmac-algorithms", "sha256, sha1");
+        try {
+            TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+            when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+            Environment environment = mock(Environment.class);
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+            HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+            // base64_encode(hash_hmac('sha256', '1373563683000rdp10000001hostname10.2.3.4port3389', 'secret', true));
+            Credentials credentials = new Credentials();
+            credentials.setRequest(mockRequest(new HashMap<String, String>() {{
+                put(CONNECTION_PARAM, connectionId);
+                put(TIMESTAMP_PARAM,  "1373563683000");
+                put(SIGNATURE_PARAM, "8yCDk1kGzKJQzRoWoN2i6yL2HZA0DtOmRIxxrD76liE=");
+            }}));
+            assertNotNull(authProvider.getAuthorizedConfigurations(credentials));
+
+            // SHA-1 remains accepted when named
+            credentials.setRequest(getHttpServletRequest());
+            assertNull(authProvider.getAuthorizedConfigurations(credentials));
+            credentials.setRequest(mockRequest(new HashMap<String, String>() {{
+                put(CONNECTION_PARAM, connectionId);
+                put(TIMESTAMP_PARAM,  "1373563683000");
+                put(SIGNATURE_PARAM, "uvPcq+epk1wDfxlM5UOZp3bDJ2Y=");
+                put(ALGORITHM_PARAM, "sha1");
+            }}));
+            assertNotNull(authProvider.getAuthorizedConfigurations(credentials));
+        } finally {
+            removeGuacamoleProperty("hmac-algorithms");
+        }
+    }
+
+    public void testWarmUp() throws Exception {
+        setGuacamoleProperty("hmac-warm-up", "true");
+        setGuacamoleProperty("hmac-warm-up-verifications", "100");
+        try {
+            TimeProviderInterface timeProvider = mock(TimeProviderInterface.class);
+            when(timeProvider.currentTimeMillis()).thenReturn(1373563683000L);
+            Environment environment = mock(Environment.class);
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+            HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!authProvider.isReady() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue(authProvider.isReady());
+            assertTrue(authProvider.getMetrics().getWarmUpMillis() >= 0);
+
+            // Warm-up is not counted as authentication
+            assertEquals(0, authProvider.getMetrics().getSignatureVerificationCount());
+
+            Credentials credentials = new Credentials();
+            credentials.setRequest(getHttpServletRequest());
+            assertNotNull(authProvider.getAuthorizedConfigurations(credentials));
+        } finally {
+            removeGuacamoleProperty("hmac-warm-up");
+            removeGuacamoleProperty("hmac-warm-up-verifications");
+        }
+    }
+
+    public void testConcurrentAuthentication() throws Exception {
+        // Throughput scaling is checked by ScalingCheck in the benchmarks;
+        // here every concurrent request must simply succeed
+        setGuacamoleProperty("hmac-algorithm-benchmark", "false");
+        try {
+            // Mocks record every call, so a shared mock would itself become
+            // the point of contention
+            TimeProviderInterface timeProvider = new TimeProviderInterface() {
+                @Override
+                public long currentTimeMillis() {
+                    return 1373563683000L;
+                }
+            };
+            Environment environment = mock(Environment.class);
+            when(environment.getGuacamoleHome()).thenReturn(new File("src/test/resources"));
+            final HmacAuthenticationProvider authProvider = new HmacAuthenticationProvider(timeProvider, environment);
+
+            final int threadCount = 8;
+            final int requestsPerThread = 200;
+            final AtomicLong completed = new AtomicLong();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final CountDownLatch start = new CountDownLatch(1);
+
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                final Credentials credentials = new Credentials();
+                credentials.setRequest(getHttpServletRequest());
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int j = 0; j < requestsPerThread; j++) {
+                                Map<String, GuacamoleConfiguration> configs =
+                                        authProvider.getAuthorizedConfigurations(credentials);
+                                if (configs == null || configs.get(connectionId) == null)
+                                    throw new AssertionError("Authentication failed under load");
+                                completed.incrementAndGet();
+                            }
+                        }
+                        catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+
+            start.countDown();
+            for (Thread thread : threads)
+                thread.join();
+
+            if (failure.get() != null)
+                throw new AssertionError(failure.get());
+            assertEquals(threadCount * requestsPerThread, completed.get());
+        }
+        finally {
+            removeGuacamoleProperty("hmac-algorithm-benchmark");
+        }
+    }
+
     private HttpServletRequest getHttpServletRequest() {
         return mockRequest(new HashMap<String, String>() {{
             put(CONNECTION_PARAM, connectionId);
@@ -149,6 +583,13 @@ public class HmacAuthenticationProviderTest extends TestCase {
         return request;
     }
 
+    private void removeGuacamoleProperty(String propertyName) throws NoSuchFieldException, IllegalAccessException {
+        Field field = GuacamoleProperties.class.getDeclaredField("properties");
+        field.setAccessible(true);
+        Properties properties =  (Properties) field.get(GuacamoleProperties.class);
+        properties.remove(propertyName);
+    }
+
     private void setGuacamoleProperty(String propertyName, String propertyValue) throws NoSuchFieldException, IllegalAccessException {
         Field field = GuacamoleProperties.class.getDeclaredField("properties");
         field.setAccessible(true);
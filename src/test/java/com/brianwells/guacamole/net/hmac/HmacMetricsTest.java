@@ -0,0 +1,49 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.mockito.Mockito.mock;
+
+public class HmacMetricsTest extends TestCase {
+
+    public void testHistogramBuckets() {
+        int previous = 0;
+        for (long value = 0; value < 100000; value += 7) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value < LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket >= previous);
+            previous = bucket;
+        }
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(50.5, histogram.meanMicros(), 0.001);
+        double p50 = histogram.percentileMicros(50);
+        assertTrue(p50 >= 50 && p50 <= 50 * 1.25);
+        double p99 = histogram.percentileMicros(99);
+        assertTrue(p99 >= 99 && p99 <= 99 * 1.25);
+    }
+
+    public void testOutcomesAndRegistration() throws Exception {
+        HmacMetrics metrics = new HmacMetrics(mock(ConfigurationSource.class), null, null, null);
+        metrics.recordOutcome(HmacMetrics.Outcome.SUCCESS);
+        metrics.recordOutcome(HmacMetrics.Outcome.BAD_SIGNATURE);
+        metrics.recordOutcome(HmacMetrics.Outcome.BAD_SIGNATURE);
+        metrics.register();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(HmacMetrics.OBJECT_NAME);
+        assertEquals(1L, server.getAttribute(name, "SuccessCount"));
+        assertEquals(2L, server.getAttribute(name, "BadSignatureCount"));
+        assertEquals(0L, server.getAttribute(name, "DecisionCacheHits"));
+    }
+}
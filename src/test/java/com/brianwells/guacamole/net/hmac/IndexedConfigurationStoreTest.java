@@ -0,0 +1,173 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+public class IndexedConfigurationStoreTest extends TestCase {
+    private File configFile;
+
+    public void setUp() throws Exception {
+        configFile = File.createTempFile("hmac-config", ".xml");
+        configFile.deleteOnExit();
+    }
+
+    public void tearDown() {
+        configFile.delete();
+    }
+
+    public void testExampleConfiguration() throws GuacamoleException {
+        IndexedConfigurationStore store = new IndexedConfigurationStore(new File("src/test/resources/hmac-config.xml"));
+        Map<String, GuacamoleConfiguration> parsed = XmlConfigurationStore.parse(new File("src/test/resources/hmac-config.xml"));
+
+        assertEquals(1, store.getConfigurationCount());
+        GuacamoleConfiguration config = store.getConfiguration("test-pc");
+        assertNotNull(config);
+        assertEquals("rdp", config.getProtocol());
+        assertEquals(parsed.get("test-pc").getParameters(), config.getParameters());
+        assertEquals("3389", config.getParameter("port"));
+        assertNull(store.getConfiguration("other-pc"));
+    }
+
+    public void testMarkupAroundConfigurations() throws Exception {
+        writeConfig("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!-- <config name=\"commented\" protocol=\"rdp\"/> -->\n"
+                + "<configs>\n"
+                + "  <config name='single' protocol=\"vnc\"/>\n"
+                + "  <config protocol=\"rdp\" name=\"a&amp;b &#233;\">\n"
+                + "    <param name=\"hostname\" value=\"x&gt;y\"/>\n"
+                + "    <!-- </config> -->\n"
+                + "  </config>\n"
+                + "  <config name=\"\u00fcn\u00efcode\" protocol=\"ssh\"><param name=\"port\" value=\"22\"></param></config>\n"
+                + "</configs>\n", 1000000L);
+
+        IndexedConfigurationStore store = new IndexedConfigurationStore(configFile);
+        Map<String, GuacamoleConfiguration> parsed = XmlConfigurationStore.parse(configFile);
+
+        assertEquals(parsed.size(), store.getConfigurationCount());
+        assertNull(store.getConfiguration("commented"));
+        for (Map.Entry<String, GuacamoleConfiguration> entry : parsed.entrySet()) {
+            GuacamoleConfiguration config = store.getConfiguration(entry.getKey());
+            assertNotNull(entry.getKey(), config);
+            assertEquals(entry.getValue().getProtocol(), config.getProtocol());
+            assertEquals(entry.getValue().getParameters(), config.getParameters());
+        }
+        assertEquals("x>y", store.getConfiguration("a&b \u00e9").getParameter("hostname"));
+    }
+
+    public void testCdataEndingInBracket() throws Exception {
+        writeConfig("<configs>\n"
+                + "  <config name=\"a\" protocol=\"rdp\"><![CDATA[abc]]]></config>\n"
+                + "  <config name=\"b\" protocol=\"vnc\"><![CDATA[-->]]]]></config>\n"
+                + "  <config name=\"c\" protocol=\"ssh\"/>\n"
+                + "</configs>\n", 1000000L);
+
+        IndexedConfigurationStore store = new IndexedConfigurationStore(configFile);
+        Map<String, GuacamoleConfiguration> parsed = XmlConfigurationStore.parse(configFile);
+
+        assertEquals(3, parsed.size());
+        assertEquals(parsed.size(), store.getConfigurationCount());
+        assertEquals("rdp", store.getConfiguration("a").getProtocol());
+        assertEquals("vnc", store.getConfiguration("b").getProtocol());
+        assertEquals("ssh", store.getConfiguration("c").getProtocol());
+    }
+
+    public void testTemplates() throws Exception {
+        writeConfig("<configs>\n"
+                + "  <template name=\"rdp-defaults\" protocol=\"rdp\">\n"
+                + "    <param name=\"port\" value=\"3389\"/>\n"
+                + "    <param name=\"security\" value=\"any\"/>\n"
+                + "  </template>\n"
+                + "  <config name=\"test-pc\" template=\"rdp-defaults\">\n"
+                + "    <param name=\"hostname\" value=\"10.2.3.4\"/>\n"
+                + "    <param name=\"security\" value=\"nla\"/>\n"
+                + "  </config>\n"
+                + "</configs>\n", 1000000L);
+
+        IndexedConfigurationStore store = new IndexedConfigurationStore(configFile);
+        Map<String, GuacamoleConfiguration> parsed = XmlConfigurationStore.parse(configFile);
+
+        assertEquals(1, store.getConfigurationCount());
+        assertNull(store.getConfiguration("rdp-defaults"));
+        GuacamoleConfiguration config = store.getConfiguration("test-pc");
+        assertEquals("rdp", config.getProtocol());
+        assertEquals(parsed.get("test-pc").getParameters(), config.getParameters());
+        assertEquals("3389", config.getParameter("port"));
+        assertEquals("nla", config.getParameter("security"));
+    }
+
+    public void testReindexOnChange() throws Exception {
+        writeConfig("<configs><config name=\"a\" protocol=\"rdp\"/></configs>", 1000000L);
+        IndexedConfigurationStore store = new IndexedConfigurationStore(configFile);
+        long version = store.getVersion();
+        assertEquals("rdp", store.getConfiguration("a").getProtocol());
+
+        writeConfig("<configs><config name=\"b\" protocol=\"vnc\"/><config name=\"a\" protocol=\"ssh\"/></configs>", 2000000L);
+        assertEquals("ssh", store.getConfiguration("a").getProtocol());
+        assertEquals("vnc", store.getConfiguration("b").getProtocol());
+        assertEquals(version + 1, store.getVersion());
+    }
+
+    public void testFailedReindexKeepsPreviousIndex() throws Exception {
+        writeConfig("<configs><config name=\"a\" protocol=\"rdp\"/></configs>", 1000000L);
+        IndexedConfigurationStore store = new IndexedConfigurationStore(configFile);
+        long version = store.getVersion();
+
+        // A truncated file keeps the last good index, and is not rescanned
+        writeConfig("<configs><config name=\"a\" protocol=\"rdp\"/><config name=\"b\"", 2000000L);
+        assertEquals(version, store.getVersion());
+        assertEquals("rdp", store.getConfiguration("a").getProtocol());
+        assertNull(store.getConfiguration("b"));
+
+        writeConfig("<configs><config name=\"b\" protocol=\"vnc\"/></configs>", 3000000L);
+        assertEquals("vnc", store.getConfiguration("b").getProtocol());
+        assertEquals(version + 1, store.getVersion());
+    }
+
+    public void testLimits() throws Exception {
+        ConfigurationLimits limits = new ConfigurationLimits(1024, 4, 2, 16);
+        writeConfig("<configs><config name=\"a\" protocol=\"rdp\"/></configs>", 1000000L);
+        IndexedConfigurationStore store = new IndexedConfigurationStore(configFile, limits);
+        long version = store.getVersion();
+
+        char[] padding = new char[2048];
+        Arrays.fill(padding, ' ');
+        String[] invalid = {
+            "<!DOCTYPE configs [<!ENTITY x \"y\">]><configs><config name=\"a\" protocol=\"rdp\"/></configs>",
+            "<configs><config name=\"a\" protocol=\"rdp\"/>" + new String(padding) + "</configs>",
+            "<configs><config name=\"a\" protocol=\"rdp\"><x><y><z/></y></x></config></configs>",
+            "<configs><config name=\"a\" protocol=\"rdp\"/><config name=\"b\" protocol=\"rdp\"/>"
+                    + "<template name=\"c\"/></configs>",
+            "<configs><config name=\"a\" protocol=\"rdp\"><param name=\"hostname\" value=\"0123456789abcdefg\"/>"
+                    + "</config></configs>"
+        };
+        for (int i = 0; i < invalid.length; i++) {
+            writeConfig(invalid[i], 2000000L + i * 1000L);
+            try {
+                IndexedConfigurationStore.scan(configFile, 1, limits);
+                fail("Expected rejection: " + invalid[i]);
+            } catch (GuacamoleException e) {
+                // expected
+            }
+
+            // The previous index remains in use
+            assertEquals(version, store.getVersion());
+        }
+    }
+
+    private void writeConfig(String xml, long lastModified) throws IOException {
+        FileOutputStream out = new FileOutputStream(configFile);
+        try {
+            out.write(xml.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertTrue(configFile.setLastModified(lastModified));
+    }
+}
@@ -0,0 +1,35 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+
+    public void testBurstThenSteadyRate() {
+        RateLimiter limiter = new RateLimiter(2, 3, 100);
+
+        assertTrue(limiter.tryAcquire("10.0.0.1", 1000L));
+        assertTrue(limiter.tryAcquire("10.0.0.1", 1000L));
+        assertTrue(limiter.tryAcquire("10.0.0.1", 1000L));
+        assertFalse(limiter.tryAcquire("10.0.0.1", 1000L));
+
+        // Other clients have their own buckets
+        assertTrue(limiter.tryAcquire("10.0.0.2", 1000L));
+
+        // Two tokens per second
+        assertTrue(limiter.tryAcquire("10.0.0.1", 1500L));
+        assertFalse(limiter.tryAcquire("10.0.0.1", 1500L));
+
+        // Refill is capped at the burst size
+        for (int i = 0; i < 3; i++)
+            assertTrue(limiter.tryAcquire("10.0.0.1", 100000L));
+        assertFalse(limiter.tryAcquire("10.0.0.1", 100000L));
+
+        assertEquals(3, limiter.getLimited());
+    }
+
+    public void testBoundedClients() {
+        RateLimiter limiter = new RateLimiter(1, 1, 64);
+        for (int i = 0; i < 10000; i++)
+            assertTrue(limiter.tryAcquire("client-" + i, 1000L));
+    }
+}
@@ -0,0 +1,84 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+
+import java.io.UnsupportedEncodingException;
+
+import static com.brianwells.guacamole.net.hmac.ReplayCache.Result.*;
+
+public class ReplayCacheTest extends TestCase {
+    private static final long AGE_LIMIT = 80000L;
+    private static final long NOW = 1373563683000L;
+
+    public void testReplayRefused() {
+        ReplayCache cache = new ReplayCache(AGE_LIMIT, 100);
+        assertEquals(ACCEPTED, cache.markUsed(mac("a"), NOW, NOW));
+        assertEquals(REPLAYED, cache.markUsed(mac("a"), NOW, NOW + 1000));
+        assertEquals(ACCEPTED, cache.markUsed(mac("b"), NOW, NOW + 1000));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getReplays());
+    }
+
+    public void testBucketsExpireTogether() {
+        ReplayCache cache = new ReplayCache(AGE_LIMIT, 100);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(ACCEPTED, cache.markUsed(mac("old-" + i), NOW, NOW));
+        }
+        assertEquals(10, cache.size());
+
+        // Once the ring wraps around, the old bucket's slot is reused
+        long later = NOW + 3 * AGE_LIMIT;
+        for (int i = 0; i < 40; i++) {
+            cache.markUsed(mac("new-" + i), later + i * (AGE_LIMIT / ReplayCache.BUCKETS), later + i * (AGE_LIMIT / ReplayCache.BUCKETS));
+        }
+        assertTrue(cache.getExpiredBuckets() > 0);
+        assertTrue(cache.size() <= 2 * ReplayCache.BUCKETS + 4);
+    }
+
+    public void testCapacityRefusesNewSignatures() {
+        ReplayCache cache = new ReplayCache(AGE_LIMIT, 3);
+        assertEquals(ACCEPTED, cache.markUsed(mac("a"), NOW, NOW));
+        assertEquals(ACCEPTED, cache.markUsed(mac("b"), NOW, NOW));
+        assertEquals(ACCEPTED, cache.markUsed(mac("c"), NOW, NOW));
+        assertEquals(FULL, cache.markUsed(mac("d"), NOW, NOW));
+        assertEquals(REPLAYED, cache.markUsed(mac("a"), NOW, NOW));
+        assertEquals(1, cache.getRejectedFull());
+        assertEquals(3, cache.size());
+    }
+
+    public void testFullCacheRecoversAfterAgeLimit() {
+        ReplayCache cache = new ReplayCache(AGE_LIMIT, 3);
+        assertEquals(ACCEPTED, cache.markUsed(mac("a"), NOW, NOW));
+        assertEquals(ACCEPTED, cache.markUsed(mac("b"), NOW, NOW));
+        assertEquals(ACCEPTED, cache.markUsed(mac("c"), NOW, NOW));
+        assertEquals(FULL, cache.markUsed(mac("d"), NOW, NOW));
+
+        // Expired buckets no longer count, though their slots are not reused
+        long later = NOW + AGE_LIMIT + 2 * (AGE_LIMIT / ReplayCache.BUCKETS) + 1;
+        assertEquals(ACCEPTED, cache.markUsed(mac("e"), later, later));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getExpiredBuckets());
+    }
+
+    public void testOutOfWindow() {
+        ReplayCache cache = new ReplayCache(AGE_LIMIT, 100);
+        assertEquals(OUT_OF_WINDOW, cache.markUsed(mac("past"), NOW - 3 * AGE_LIMIT, NOW));
+        assertEquals(OUT_OF_WINDOW, cache.markUsed(mac("future"), NOW + 3 * AGE_LIMIT, NOW));
+        assertEquals(ACCEPTED, cache.markUsed(mac("skewed"), NOW + AGE_LIMIT / 2, NOW));
+    }
+
+    public void testReplayKeyedOnMacBytes() {
+        ReplayCache cache = new ReplayCache(AGE_LIMIT, 100);
+        assertEquals(ACCEPTED, cache.markUsed(new byte[] { 1, 2, 3 }, NOW, NOW));
+        assertEquals(REPLAYED, cache.markUsed(new byte[] { 1, 2, 3 }, NOW, NOW));
+        assertEquals(ACCEPTED, cache.markUsed(new byte[] { 1, 2, 4 }, NOW, NOW));
+    }
+
+    private static byte[] mac(String signature) {
+        try {
+            return signature.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+import org.glyptodon.guacamole.net.auth.Credentials;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks what an authenticated session retains: HmacAuthenticatedUser drops
+ * the request and sessions share interned configurations. The heap retained
+ * per session is measured by SessionFootprint in the benchmarks.
+ */
+public class SessionFootprintTest extends TestCase {
+
+    public void testSessionsDropRequestAndShareConfiguration() {
+        GuacamoleConfiguration template = new GuacamoleConfiguration();
+        template.setProtocol("rdp");
+        template.setParameter("hostname", "10.2.3.4");
+        template.setParameter("port", "3389");
+
+        ConfigurationInterner interner = new ConfigurationInterner();
+        HmacAuthenticatedUser[] users = new HmacAuthenticatedUser[3];
+        for (int i = 0; i < users.length; i++) {
+            Credentials credentials = new Credentials();
+            credentials.setRequest(request(i));
+            GuacamoleConfiguration config = interner.intern(new GuacamoleConfiguration(template));
+            users[i] = new HmacAuthenticatedUser(null, credentials, Collections.singletonMap("test-pc", config));
+        }
+
+        assertEquals(1, interner.size());
+        for (int i = 0; i < users.length; i++) {
+            assertNull(users[i].getCredentials().getRequest());
+            assertEquals("uvPcq+epk1wDfxlM5UOZp3bDJ2Y=" + i, users[i].getSignature());
+            assertSame(users[0].getAuthorizedConfigurations().get("test-pc"),
+                    users[i].getAuthorizedConfigurations().get("test-pc"));
+        }
+    }
+
+    public void testInternedConfigurationsAreShared() {
+        ConfigurationInterner interner = new ConfigurationInterner();
+        GuacamoleConfiguration a = new GuacamoleConfiguration();
+        a.setProtocol("vnc");
+        a.setParameter("hostname", "10.0.0.5");
+
+        HmacConfiguration interned = interner.intern(a);
+        assertSame(interned, interner.intern(new GuacamoleConfiguration(a)));
+        assertSame(interned, interner.intern(interned));
+
+        try {
+            interned.setParameter("hostname", "10.0.0.6");
+            fail("Expected shared configuration to be frozen");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals("10.0.0.5", interned.getParameter("hostname"));
+    }
+
+    /**
+     * A request holding only its query parameters, standing in for the much
+     * larger request objects of a servlet container.
+     */
+    private static HttpServletRequest request(int i) {
+        final Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(HmacAuthenticationProvider.CONNECTION_PARAM, "test-pc");
+        parameters.put(HmacAuthenticationProvider.TIMESTAMP_PARAM, String.valueOf(1373563683000L + i));
+        parameters.put(HmacAuthenticationProvider.SIGNATURE_PARAM, "uvPcq+epk1wDfxlM5UOZp3bDJ2Y=" + i);
+        return (HttpServletRequest) Proxy.newProxyInstance(SessionFootprintTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getParameter"))
+                            return parameters.get(args[0]);
+                        if (method.getName().equals("getParameterMap"))
+                            return parameters;
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,102 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class ShardedConfigurationStoreTest extends TestCase {
+    private File configDir;
+    private File configFile;
+    private ShardedConfigurationStore store;
+
+    public void setUp() throws Exception {
+        configDir = File.createTempFile("hmac-config", ".d");
+        assertTrue(configDir.delete());
+        assertTrue(configDir.mkdir());
+        configFile = new File(configDir.getParentFile(), configDir.getName() + ".xml");
+
+        writeConfig(configFile, "<configs><config name=\"main\" protocol=\"ssh\"/></configs>", 1000000L);
+        for (int i = 0; i < 4; i++) {
+            writeConfig(new File(configDir, "shard-" + i + ".xml"),
+                    "<configs><config name=\"c" + i + "\" protocol=\"rdp\"/></configs>", 1000000L);
+        }
+
+        // Rescan on every lookup
+        store = new ShardedConfigurationStore(configFile, configDir, "10000001", 0);
+    }
+
+    public void tearDown() {
+        for (File file : configDir.listFiles())
+            file.delete();
+        configDir.delete();
+        configFile.delete();
+    }
+
+    public void testInitialLoad() throws GuacamoleException {
+        assertEquals(5, store.getConfigurationCount());
+        assertEquals("ssh", store.getConfiguration("main").getProtocol());
+        assertEquals("rdp", store.getConfiguration("c3").getProtocol());
+        assertEquals(1, store.getVersion());
+    }
+
+    public void testOnlyChangedShardReparsed() throws Exception {
+        GuacamoleConfiguration unchanged = store.getConfiguration("c0");
+        writeConfig(new File(configDir, "shard-1.xml"),
+                "<configs><config name=\"c1\" protocol=\"vnc\"/><config name=\"c9\" protocol=\"vnc\"/></configs>", 2000000L);
+
+        assertEquals("vnc", store.getConfiguration("c1").getProtocol());
+        assertNotNull(store.getConfiguration("c9"));
+        assertSame(unchanged, store.getConfiguration("c0"));
+        assertEquals(6, store.getConfigurationCount());
+        assertEquals(2, store.getVersion());
+
+        // Unchanged files do not create new versions
+        assertEquals(2, store.getVersion());
+    }
+
+    public void testRemovedShard() throws Exception {
+        assertNotNull(store.getConfiguration("c2"));
+        assertTrue(new File(configDir, "shard-2.xml").delete());
+
+        assertNull(store.getConfiguration("c2"));
+        assertEquals(4, store.getConfigurationCount());
+    }
+
+    public void testDuplicateKeepsPreviousCatalog() throws Exception {
+        assertEquals(5, store.getConfigurationCount());
+        writeConfig(new File(configDir, "shard-5.xml"),
+                "<configs><config name=\"c0\" protocol=\"vnc\"/></configs>", 3000000L);
+
+        assertEquals("rdp", store.getConfiguration("c0").getProtocol());
+        assertEquals(1, store.getVersion());
+
+        try {
+            ShardedConfigurationStore.parse(configFile, configDir);
+            fail("Expected duplicate configuration");
+        } catch (GuacamoleException e) {
+            // expected
+        }
+    }
+
+    public void testBrokenShardKeepsPreviousCatalog() throws Exception {
+        assertEquals(5, store.getConfigurationCount());
+        writeConfig(new File(configDir, "shard-0.xml"), "<configs><config name=\"broken\"", 4000000L);
+
+        assertEquals(5, store.getConfigurationCount());
+        assertNotNull(store.getConfiguration("c0"));
+    }
+
+    private static void writeConfig(File file, String xml, long lastModified) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(xml.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(lastModified));
+    }
+}
@@ -0,0 +1,98 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SignatureSignerTest extends TestCase {
+
+    private static HmacConfiguration config(String hostname) {
+        HmacConfiguration config = new HmacConfiguration();
+        config.setProtocol("rdp");
+        config.setParameter("hostname", hostname);
+        config.setParameter("port", "3389");
+        return config;
+    }
+
+    public void testMatchesVerifier() throws Exception {
+        SignatureSigner signer = new SignatureSigner("secret", "10000001");
+        assertEquals("uvPcq+epk1wDfxlM5UOZp3bDJ2Y=", signer.sign(config("10.2.3.4"), 1373563683000L));
+
+        SignatureSigner sha512 = new SignatureSigner(null, "secret", "sha512", "10000001");
+        SignatureVerifier verifier = new SignatureVerifier(new SigningKey(null, "secret", SigningKey.NO_EXPIRY),
+                null, java.util.Arrays.asList("sha1", "sha512"));
+        HmacConfiguration config = config("10.2.3.4");
+        for (long timestamp = 0; timestamp < 1000000000000L; timestamp = timestamp * 10 + 7) {
+            assertTrue(verifier.verifySignature(null, "sha512", sha512.sign(config, timestamp),
+                    String.valueOf(timestamp), config.getSignedSuffix("10000001"), 0));
+        }
+    }
+
+    public void testQuery() throws Exception {
+        SignatureSigner signer = new SignatureSigner("rotated", "secret", "HmacSHA1", "10000001");
+        StringBuilder query = new StringBuilder();
+        signer.appendQuery(query, "test pc/1", config("10.2.3.4"), 1373563683000L);
+        assertEquals("timestamp=1373563683000&connection=test%20pc%2F1&signature=uvPcq%2Bepk1wDfxlM5UOZp3bDJ2Y%3D"
+                + "&keyid=rotated&algorithm=HmacSHA1", query.toString());
+    }
+
+    public void testLinks() throws Exception {
+        Map<String, HmacConfiguration> connections = new LinkedHashMap<String, HmacConfiguration>();
+        for (int i = 0; i < 100; i++)
+            connections.put("lab-pc-" + i, config("10.0.0." + i));
+
+        SignatureSigner signer = new SignatureSigner("secret", "10000001");
+        StringBuilder page = new StringBuilder();
+        assertEquals(100, signer.appendLinks(page, "http://guacamole.local/#/client/", connections,
+                1373563683000L, "\n"));
+
+        String[] links = page.toString().split("\n");
+        assertEquals(100, links.length);
+        for (int i = 0; i < links.length; i++) {
+            assertTrue(links[i].startsWith("http://guacamole.local/#/client/lab-pc-" + i + "?"));
+            String signature = links[i].substring(links[i].indexOf("signature=") + 10);
+            assertEquals(signer.sign(connections.get("lab-pc-" + i), 1373563683000L),
+                    URLDecoder.decode(signature, "UTF-8"));
+        }
+    }
+
+    public void testUrlEncoding() throws Exception {
+        String value = "a b+c&d=\u00e9\u20ac\ud83d\ude00~";
+        StringBuilder encoded = new StringBuilder();
+        SignatureSigner.appendUrlEncoded(encoded, value);
+        assertEquals("a%20b%2Bc%26d%3D%C3%A9%E2%82%AC%F0%9F%98%80~", encoded.toString());
+        assertEquals(value, URLDecoder.decode(encoded.toString(), "UTF-8"));
+    }
+
+    public void testBase64RoundTrip() {
+        byte[] output = new byte[8];
+        for (int length = 0; length <= 8; length++) {
+            byte[] input = new byte[length];
+            for (int i = 0; i < length; i++)
+                input[i] = (byte) (i * 77 + 200);
+
+            StringBuilder encoded = new StringBuilder();
+            Base64Codec.encode(input, length, encoded, false);
+            if (length == 0) {
+                assertEquals("", encoded.toString());
+                continue;
+            }
+            assertEquals(length, Base64Codec.decode(encoded, output));
+            for (int i = 0; i < length; i++)
+                assertEquals(input[i], output[i]);
+        }
+    }
+
+    public void testBase64RejectsNonCanonicalEncoding() {
+        byte[] output = new byte[20];
+        assertEquals(20, Base64Codec.decode("uvPcq+epk1wDfxlM5UOZp3bDJ2Y=", output));
+
+        // Same bytes with non-zero unused bits before the padding
+        assertEquals(-1, Base64Codec.decode("uvPcq+epk1wDfxlM5UOZp3bDJ2Z=", output));
+        assertEquals(-1, Base64Codec.decode("uvPcq+epk1wDfxlM5UOZp3bDJ2b=", output));
+        assertEquals(-1, Base64Codec.decode("QR==", output));
+        assertEquals(1, Base64Codec.decode("QQ==", output));
+    }
+}
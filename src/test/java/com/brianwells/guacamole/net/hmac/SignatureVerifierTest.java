@@ -3,6 +3,10 @@ package com.brianwells.guacamole.net.hmac;
 import junit.framework.TestCase;
 import com.brianwells.guacamole.net.hmac.SignatureVerifier;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+
 public class SignatureVerifierTest extends TestCase {
     private SignatureVerifier verifier;
 
@@ -19,4 +23,106 @@ public class SignatureVerifierTest extends TestCase {
     public void testFailureCase() {
         assertFalse(verifier.verifySignature("Definitely not the right signature", "Arbitrary String"));
     }
+
+    public void testTamperedSignature() {
+        // Same length and alphabet as the valid signature, last byte changed
+        assertFalse(verifier.verifySignature("nb42cSRCYM7jf7ZRCrLZ6e9d8p8=", "Arbitrary String"));
+    }
+
+    public void testMalformedBase64() {
+        assertFalse(verifier.verifySignature("nb42cSRCYM7jf7ZRCrLZ6e9d8p4", "Arbitrary String"));
+        assertFalse(verifier.verifySignature("nb42cSRCYM7jf7ZRCrLZ6e9d8p4=nb42", "Arbitrary String"));
+        assertFalse(verifier.verifySignature("nb42cSRCYM7jf7ZR*rLZ6e9d8p4=", "Arbitrary String"));
+        assertFalse(verifier.verifySignature("", "Arbitrary String"));
+    }
+
+    public void testRepeatedVerification() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(verifier.verifySignature("nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Arbitrary String"));
+            assertFalse(verifier.verifySignature("nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Other String"));
+        }
+    }
+
+    public void testKeyRing() {
+        SignatureVerifier ring = new SignatureVerifier(null, Arrays.asList(
+                new SigningKey("old", "secret", 2000L),
+                new SigningKey("new", "other secret", SigningKey.NO_EXPIRY)));
+
+        // echo base64_encode(hash_hmac('sha1', 'Arbitrary String', 'secret', true));
+        assertTrue(ring.verifySignature("old", "nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Arbitrary String", 1000L));
+        assertFalse(ring.verifySignature("new", "nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Arbitrary String", 1000L));
+
+        // Expired keys, unknown keys and the missing default key are refused
+        assertFalse(ring.verifySignature("old", "nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Arbitrary String", 2000L));
+        assertFalse(ring.verifySignature("unknown", "nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Arbitrary String", 1000L));
+        assertFalse(ring.verifySignature(null, "nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Arbitrary String", 1000L));
+    }
+
+    public void testSecretEncodedAsUtf8() throws Exception {
+        String secret = "s\u00e9cr\u00e8t \u20ac";
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA1"));
+        byte[] expected = mac.doFinal("Arbitrary String".getBytes("UTF-8"));
+        StringBuilder signature = new StringBuilder();
+        Base64Codec.encode(expected, expected.length, signature, false);
+
+        assertTrue(new SignatureVerifier(secret).verifySignature(signature.toString(), "Arbitrary String"));
+    }
+
+    public void testEncodedSuffix() throws Exception {
+        // The prefix and suffix together form the same message
+        byte[] suffix = "trary String".getBytes("UTF-8");
+        assertTrue(verifier.verifySignature(null, "nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Arbi", suffix, 1000L));
+        assertFalse(verifier.verifySignature(null, "nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "Arbx", suffix, 1000L));
+        assertTrue(verifier.verifySignature(null, "nb42cSRCYM7jf7ZRCrLZ6e9d8p4=", "", "Arbitrary String".getBytes("UTF-8"), 1000L));
+    }
+
+    public void testSignedSuffix() throws Exception {
+        HmacConfiguration config = new HmacConfiguration();
+        config.setProtocol("rdp");
+        config.setParameter("hostname", "10.2.3.4");
+        config.setParameter("port", "3389");
+        config.setParameter("username", "ignored");
+
+        byte[] suffix = config.getSignedSuffix("10000001");
+        assertEquals("rdp10000001hostname10.2.3.4port3389", new String(suffix, "UTF-8"));
+        assertSame(suffix, config.getSignedSuffix("10000001"));
+
+        // Changes to the configuration are reflected
+        config.setParameter("port", "3390");
+        assertEquals("rdp10000001hostname10.2.3.4port3390", new String(config.getSignedSuffix("10000001"), "UTF-8"));
+    }
+
+    public void testAlgorithms() throws Exception {
+        SignatureVerifier agile = new SignatureVerifier(new SigningKey(null, "secret", SigningKey.NO_EXPIRY), null,
+                Arrays.asList("HmacSHA256", "sha512"));
+        assertEquals("HmacSHA512", agile.getAlgorithms()[1]);
+
+        byte[] suffix = "rdp10000001hostname10.2.3.4port3389".getBytes("UTF-8");
+        String sha256 = "8yCDk1kGzKJQzRoWoN2i6yL2HZA0DtOmRIxxrD76liE=";
+        String sha512 = "ZCt0PgUKEsOIOGLG0UGnXL0IbMRP7rxFAkCOeHRo88tYSXm+fGb/9Wnpi6Osb6MK9pdj7YIt9Yxln1Dqj8fv5g==";
+
+        // The first algorithm is the default, others must be named
+        assertTrue(agile.verifySignature(null, null, sha256, "1373563683000", suffix, 1000L));
+        assertTrue(agile.verifySignature(null, "sha256", sha256, "1373563683000", suffix, 1000L));
+        assertTrue(agile.verifySignature(null, "HmacSHA512", sha512, "1373563683000", suffix, 1000L));
+        assertTrue(agile.verifySignature(null, "SHA-512", sha512, "1373563683000", suffix, 1000L));
+        assertFalse(agile.verifySignature(null, null, sha512, "1373563683000", suffix, 1000L));
+        assertFalse(agile.verifySignature(null, "sha512", sha256, "1373563683000", suffix, 1000L));
+
+        // Algorithms not enabled are refused even with a valid signature
+        assertFalse(agile.verifySignature(null, "sha1", "uvPcq+epk1wDfxlM5UOZp3bDJ2Y=", "1373563683000", suffix, 1000L));
+        assertTrue(verifier.verifySignature(null, "sha1", "uvPcq+epk1wDfxlM5UOZp3bDJ2Y=", "1373563683000", suffix, 1000L));
+
+        assertTrue(agile.benchmark("HmacSHA256", 10) > 0);
+    }
+
+    public void testUnsupportedAlgorithm() {
+        try {
+            new SignatureVerifier(null, null, Arrays.asList("sha3000"));
+            fail("Unsupported algorithm accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
 }
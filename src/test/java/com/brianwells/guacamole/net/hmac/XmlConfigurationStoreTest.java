@@ -0,0 +1,272 @@
+package com.brianwells.guacamole.net.hmac;
+
+import junit.framework.TestCase;
+import org.glyptodon.guacamole.GuacamoleException;
+import org.glyptodon.guacamole.protocol.GuacamoleConfiguration;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class XmlConfigurationStoreTest extends TestCase {
+    private File configFile;
+    private XmlConfigurationStore store;
+
+    public void setUp() throws Exception {
+        configFile = File.createTempFile("hmac-config", ".xml");
+        configFile.deleteOnExit();
+        writeConfig("<configs><config name=\"a\" protocol=\"rdp\"/></configs>", 1000000L);
+        store = new XmlConfigurationStore(configFile);
+    }
+
+    public void tearDown() {
+        configFile.delete();
+    }
+
+    public void testSnapshotReusedWhileUnchanged() throws GuacamoleException {
+        ConfigurationSnapshot first = store.getSnapshot();
+        assertEquals(1, first.size());
+        assertNotNull(first.getConfiguration("a"));
+        assertSame(first, store.getSnapshot());
+    }
+
+    public void testReloadOnChange() throws Exception {
+        ConfigurationSnapshot first = store.getSnapshot();
+        writeConfig("<configs><config name=\"a\" protocol=\"rdp\"/><config name=\"b\" protocol=\"vnc\"/></configs>", 2000000L);
+
+        ConfigurationSnapshot second = store.getSnapshot();
+        assertEquals(2, second.size());
+        assertEquals("vnc", second.getConfiguration("b").getProtocol());
+        assertEquals(first.getVersion() + 1, second.getVersion());
+    }
+
+    public void testTouchWithoutChangeKeepsVersion() throws Exception {
+        ConfigurationSnapshot first = store.getSnapshot();
+        assertTrue(configFile.setLastModified(3000000L));
+
+        ConfigurationSnapshot second = store.getSnapshot();
+        assertEquals(first.getVersion(), second.getVersion());
+        assertSame(first.getConfigs(), second.getConfigs());
+    }
+
+    public void testFailedReloadKeepsPreviousSnapshot() throws Exception {
+        ConfigurationSnapshot first = store.getSnapshot();
+        writeConfig("<configs><config name=\"broken\"", 4000000L);
+
+        ConfigurationSnapshot second = store.getSnapshot();
+        assertEquals(first.getVersion(), second.getVersion());
+        assertNotNull(second.getConfiguration("a"));
+    }
+
+    public void testInitialFailureThrows() throws Exception {
+        writeConfig("not xml", 5000000L);
+        try {
+            new XmlConfigurationStore(configFile).getSnapshot();
+            fail("Expected parse failure");
+        } catch (GuacamoleException e) {
+            // expected
+        }
+    }
+
+    public void testTemplates() throws Exception {
+        writeConfig("<configs>"
+                + "<template name=\"rdp\" protocol=\"rdp\">"
+                + "<param name=\"port\" value=\"3389\"/><param name=\"security\" value=\"any\"/>"
+                + "</template>"
+                + "<template name=\"rdp-nla\" template=\"rdp\"><param name=\"security\" value=\"nla\"/></template>"
+                + "<config name=\"a\" template=\"rdp\"><param name=\"hostname\" value=\"10.0.0.1\"/></config>"
+                + "<config name=\"b\" template=\"rdp\"><param name=\"hostname\" value=\"10.0.0.2\"/>"
+                + "<param name=\"port\" value=\"3390\"/></config>"
+                + "<config name=\"c\" template=\"rdp-nla\" protocol=\"vnc\"><param name=\"security\" value=\"any\"/></config>"
+                + "</configs>", 6000000L);
+
+        ConfigurationSnapshot snapshot = store.getSnapshot();
+        GuacamoleConfiguration a = snapshot.getConfiguration("a");
+        GuacamoleConfiguration b = snapshot.getConfiguration("b");
+        GuacamoleConfiguration c = snapshot.getConfiguration("c");
+
+        // Inherited parameters and protocol, with overrides winning
+        assertEquals("rdp", a.getProtocol());
+        assertEquals("3389", a.getParameter("port"));
+        assertEquals("3390", b.getParameter("port"));
+        assertEquals("vnc", c.getProtocol());
+        assertEquals("3389", c.getParameter("port"));
+        assertEquals(new HashSet<String>(Arrays.asList("hostname", "port", "security")), a.getParameterNames());
+        assertEquals("rdp10000001hostname10.0.0.1port3389",
+                new String(((HmacConfiguration) a).getSignedSuffix("10000001"), "UTF-8"));
+
+        // Equal values are stored once, whether inherited or not
+        assertSame(a.getParameter("security"), b.getParameter("security"));
+        assertSame(a.getParameter("security"), c.getParameter("security"));
+
+        // Removing an inherited parameter affects only that configuration
+        b.unsetParameter("security");
+        assertNull(b.getParameter("security"));
+        assertEquals("any", a.getParameter("security"));
+        assertEquals("10.0.0.2", b.getParameter("hostname"));
+    }
+
+    public void testUndefinedTemplate() throws Exception {
+        writeConfig("<configs><config name=\"a\" template=\"later\"/>"
+                + "<template name=\"later\" protocol=\"rdp\"/></configs>", 7000000L);
+        try {
+            new XmlConfigurationStore(configFile).getSnapshot();
+            fail("Expected undefined template");
+        } catch (GuacamoleException e) {
+            // expected
+        }
+    }
+
+    private void writeConfig(String xml, long lastModified) throws IOException {
+        FileOutputStream out = new FileOutputStream(configFile);
+        try {
+            out.write(xml.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertTrue(configFile.setLastModified(lastModified));
+    }
+
+    public void testPatterns() throws Exception {
+        writeConfig("<configs>"
+                + "<template name=\"rdp\" protocol=\"rdp\"><param name=\"port\" value=\"3389\"/></template>"
+                + "<config name=\"lab-1-pc-01\" protocol=\"vnc\"><param name=\"hostname\" value=\"exact\"/></config>"
+                + "<config-pattern name=\"lab-(\\d+)-pc-(\\d+)\" template=\"rdp\">"
+                + "<param name=\"hostname\" value=\"10.$1.${2}.1\"/><param name=\"domain\" value=\"$$LAB\"/>"
+                + "</config-pattern>"
+                + "<config-pattern name=\"lab-.*\" protocol=\"ssh\"/>"
+                + "</configs>", 8000000L);
+
+        ConfigurationSnapshot snapshot = store.getSnapshot();
+        assertEquals(1, snapshot.size());
+        assertEquals(2, snapshot.getPatterns().size());
+
+        // Exact names take precedence over patterns
+        assertEquals("exact", snapshot.getConfiguration("lab-1-pc-01").getParameter("hostname"));
+
+        GuacamoleConfiguration config = snapshot.getConfiguration("lab-12-pc-34");
+        assertEquals("rdp", config.getProtocol());
+        assertEquals("10.12.34.1", config.getParameter("hostname"));
+        assertEquals("$LAB", config.getParameter("domain"));
+        assertEquals("3389", config.getParameter("port"));
+
+        // Patterns are tried in order, and must match the whole name
+        assertEquals("ssh", snapshot.getConfiguration("lab-x").getProtocol());
+        assertNull(snapshot.getConfiguration("old-lab-1-pc-1"));
+
+        // Each lookup resolves a new configuration
+        assertNotSame(config, snapshot.getConfiguration("lab-12-pc-34"));
+    }
+
+    public void testInvalidPatterns() throws Exception {
+        String[] invalid = {
+            "<config-pattern name=\"pc-(\\d+\" protocol=\"rdp\"/>",
+            "<config-pattern name=\"pc-(\\d+)\" protocol=\"rdp\"><param name=\"hostname\" value=\"$2\"/></config-pattern>",
+            "<config-pattern name=\"pc-(\\d+)\" protocol=\"rdp\"><param name=\"hostname\" value=\"${1\"/></config-pattern>",
+            "<config-pattern name=\"pc-(\\d+)\"/>"
+        };
+        for (int i = 0; i < invalid.length; i++) {
+            try {
+                XmlConfigurationStore.parse(new ByteArrayInputStream(
+                        ("<configs>" + invalid[i] + "</configs>").getBytes("UTF-8")));
+                fail("Expected invalid pattern: " + invalid[i]);
+            } catch (GuacamoleException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testEntitiesRejected() throws Exception {
+        StringBuilder laughs = new StringBuilder("<!DOCTYPE configs [<!ENTITY l0 \"lol\">");
+        for (int i = 1; i < 10; i++) {
+            laughs.append("<!ENTITY l").append(i).append(" \"");
+            for (int j = 0; j < 10; j++)
+                laughs.append("&l").append(i - 1).append(';');
+            laughs.append("\">");
+        }
+        laughs.append("]><configs><config name=\"&l9;\" protocol=\"rdp\"/></configs>");
+
+        assertRejected(laughs.toString(), ConfigurationLimits.DEFAULT, "DOCTYPE");
+        assertRejected("<!DOCTYPE configs [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>"
+                + "<configs><config name=\"&x;\" protocol=\"rdp\"/></configs>", ConfigurationLimits.DEFAULT, "DOCTYPE");
+    }
+
+    public void testPathologicalInputsFailFast() throws Exception {
+        ConfigurationLimits limits = new ConfigurationLimits(1024, 8, 100, 1024);
+
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+            deep.append("<configs>");
+        assertRejected(deep.toString(), limits, "nested more than 8");
+
+        StringBuilder many = new StringBuilder("<configs>");
+        for (int i = 0; i < 200000; i++)
+            many.append("<config name=\"c").append(i).append("\" protocol=\"rdp\"/>");
+        assertRejected(many.append("</configs>").toString(), limits, "More than 100");
+
+        char[] value = new char[1 << 20];
+        Arrays.fill(value, 'x');
+        assertRejected("<configs><config name=\"" + new String(value) + "\" protocol=\"rdp\"/></configs>",
+                limits, "longer than 1024");
+    }
+
+    public void testOversizedFileKeepsPreviousSnapshot() throws Exception {
+        ConfigurationLimits limits = new ConfigurationLimits(1024, 8, 100, 1024);
+        XmlConfigurationStore limited = new XmlConfigurationStore(configFile, null, limits);
+        ConfigurationSnapshot first = limited.getSnapshot();
+
+        char[] padding = new char[2048];
+        Arrays.fill(padding, ' ');
+        writeConfig("<configs><config name=\"b\" protocol=\"rdp\"/>" + new String(padding) + "</configs>", 9000000L);
+
+        ConfigurationSnapshot second = limited.getSnapshot();
+        assertEquals(first.getVersion(), second.getVersion());
+        assertNotNull(second.getConfiguration("a"));
+        assertNull(second.getConfiguration("b"));
+
+        try {
+            new XmlConfigurationStore(configFile, null, limits).getSnapshot();
+            fail("Expected oversized file");
+        } catch (GuacamoleException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("larger than 1024 bytes"));
+        }
+    }
+
+    /**
+     * Asserts that the given XML is rejected with a message containing the
+     * given text, quickly and without allocating much more than the input.
+     */
+    private static void assertRejected(String xml, ConfigurationLimits limits, String message) throws Exception {
+        byte[] input = xml.getBytes("UTF-8");
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        try {
+            XmlConfigurationStore.parse(new ByteArrayInputStream(input), null, limits);
+            fail("Expected rejection: " + message);
+        } catch (GuacamoleException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis < 2000);
+        if (allocatedBefore >= 0) {
+            long allocated = allocatedBytes() - allocatedBefore;
+            assertTrue("Allocated " + allocated + " bytes", allocated < 32L * 1024 * 1024 + 4L * input.length);
+        }
+    }
+
+    /**
+     * @return Bytes allocated so far by the current thread, or -1 if the JVM
+     *     cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}